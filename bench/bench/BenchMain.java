@@ -0,0 +1,21 @@
+package bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Запуск бенчмарков с профилировщиком GC: кроме времени на операцию в результатах
+// gc.alloc.rate.norm - сколько байт выделяется на один вызов.
+//   java -cp out/production/ConnectionTesterWeb:out/production/ConnectionTesterWeb-bench:lib/* bench.BenchMain
+// Аргументы - как у org.openjdk.jmh.Main, например: JsonWriterBenchmark -p payload=serverStatus -f 1
+public class BenchMain {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
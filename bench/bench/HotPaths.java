@@ -0,0 +1,60 @@
+package bench;
+
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+// Доступ к измеряемым методам сервера.
+// Классы сервера лежат в пакете по умолчанию, а JMH не принимает бенчмарки в пакете по умолчанию,
+// поэтому методы берутся через MethodHandle. Хэндлы в static final полях JIT встраивает,
+// так что в замерах остаётся сам метод, а не reflection
+final class HotPaths {
+    // (String) -> QueryParams и (QueryParams, String) -> String, приведённые к Object
+    static final MethodHandle PARSE_QUERY;
+    static final MethodHandle QUERY_GET;
+    static final MethodHandle ADD_MONGO_CREDENTIALS;
+    static final MethodHandle ADD_CREDENTIALS_TO_URL;
+    static final MethodHandle TO_JDBC_URL;
+    static final MethodHandle CONVERT_TO_JDBC_URL;
+    // (OutputStream) -> JsonWriter и (JsonWriter, Object) -> JsonWriter, приведённые к Object
+    static final MethodHandle NEW_JSON_WRITER;
+    static final MethodHandle JSON_VALUE;
+    static final MethodHandle JSON_CLOSE;
+
+    static {
+        try {
+            Class<?> apiHandler = Class.forName("ApiHandler");
+            Class<?> postgresService = Class.forName("PostgresService");
+            Class<?> jsonWriter = Class.forName("JsonWriter");
+            Class<?> queryParams = Class.forName("QueryParams");
+            MethodHandles.Lookup api = MethodHandles.privateLookupIn(apiHandler, MethodHandles.lookup());
+            MethodHandles.Lookup postgres = MethodHandles.privateLookupIn(postgresService, MethodHandles.lookup());
+            MethodHandles.Lookup json = MethodHandles.privateLookupIn(jsonWriter, MethodHandles.lookup());
+            MethodHandles.Lookup query = MethodHandles.privateLookupIn(queryParams, MethodHandles.lookup());
+            MethodType stringToString = MethodType.methodType(String.class, String.class);
+            MethodType credentials = MethodType.methodType(String.class, String.class, String.class, String.class);
+
+            PARSE_QUERY = query.findStatic(queryParams, "parse", MethodType.methodType(queryParams, String.class))
+                    .asType(MethodType.methodType(Object.class, String.class));
+            QUERY_GET = query.findVirtual(queryParams, "get", stringToString)
+                    .asType(MethodType.methodType(String.class, Object.class, String.class));
+            ADD_MONGO_CREDENTIALS = api.findStatic(apiHandler, "addMongoCredentials", credentials);
+            ADD_CREDENTIALS_TO_URL = api.findStatic(apiHandler, "addCredentialsToUrl", credentials);
+            TO_JDBC_URL = postgres.findStatic(postgresService, "toJdbcUrl", stringToString);
+            CONVERT_TO_JDBC_URL = postgres.findStatic(postgresService, "convertToJdbcUrl", stringToString);
+
+            NEW_JSON_WRITER = json.findConstructor(jsonWriter, MethodType.methodType(void.class, OutputStream.class))
+                    .asType(MethodType.methodType(Object.class, OutputStream.class));
+            JSON_VALUE = json.findVirtual(jsonWriter, "value", MethodType.methodType(jsonWriter, Object.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, Object.class));
+            JSON_CLOSE = json.findVirtual(jsonWriter, "close", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private HotPaths() {
+    }
+}
@@ -0,0 +1,70 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Сериализация ответа пробы через JsonWriter - то, что раньше делали toJson/escapeJson/valueToJson.
+// Поток байт выбрасывается: меряется обход, экранирование и кодирование в UTF-8, а не сеть
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-XX:+UseParallelGC")
+@State(Scope.Thread)
+public class JsonWriterBenchmark {
+    // serverStatus - ответ MongoDB на serverStatus (~30 КБ JSON);
+    // databases - список баз и настроек из пробы PostgreSQL;
+    // escaped - строки с кавычками, переводами строк и не-ASCII (сообщения об ошибках, имена)
+    @Param({"serverStatus", "databases", "escaped"})
+    public String payload;
+
+    private Map<String, Object> data;
+    private final OutputStream sink = new Discard();
+
+    @Setup
+    public void setUp() {
+        switch (payload) {
+            case "serverStatus":
+                data = Payloads.serverStatus();
+                break;
+            case "databases":
+                data = Payloads.postgresDatabases(200);
+                break;
+            default:
+                data = Payloads.escapedStrings(500);
+        }
+    }
+
+    // Как sendJson: новый JsonWriter на ответ, одно значение, close
+    @Benchmark
+    public Object writeResponse() throws Throwable {
+        Object json = HotPaths.NEW_JSON_WRITER.invokeExact(sink);
+        Object result = HotPaths.JSON_VALUE.invokeExact(json, (Object) data);
+        HotPaths.JSON_CLOSE.invokeExact(json);
+        return result;
+    }
+
+    // Как OutputStream.nullOutputStream(), но переживает close(): JsonWriter закрывает поток на каждый ответ
+    private static final class Discard extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
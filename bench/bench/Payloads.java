@@ -0,0 +1,164 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Данные для бенчмарков: по форме и размеру как реальные ответы проб.
+// Генерируются детерминированно, чтобы результаты разных запусков были сравнимы.
+// LinkedHashMap вместо org.bson.Document: для JsonWriter оба - Map
+final class Payloads {
+    private static final String[] COMMANDS = {
+            "aggregate", "buildInfo", "collStats", "count", "create", "createIndexes", "currentOp", "dbStats",
+            "delete", "distinct", "drop", "dropIndexes", "endSessions", "explain", "find", "findAndModify",
+            "getCmdLineOpts", "getLog", "getMore", "getParameter", "hello", "hostInfo", "insert", "isMaster",
+            "killCursors", "listCollections", "listDatabases", "listIndexes", "ping", "replSetGetStatus",
+            "replSetHeartbeat", "replSetUpdatePosition", "saslContinue", "saslStart", "serverStatus", "update",
+            "whatsmyuri", "abortTransaction", "commitTransaction", "connectionStatus", "getFreeMonitoringStatus",
+            "logout", "refreshSessions", "startSession", "top", "validate", "_isSelf", "_refreshQueryAnalyzerConfiguration"
+    };
+    private static final String[] WIRED_TIGER_SECTIONS = {
+            "block-manager", "cache", "capacity", "checkpoint-cleanup", "connection", "cursor", "data-handle",
+            "lock", "log", "perf", "reconciliation", "session", "thread-state", "thread-yield", "transaction",
+            "concurrentTransactions", "snapshot-window-settings", "uri"
+    };
+    private static final String[] LOCKS = {"ParallelBatchWriterMode", "ReplicationStateTransition", "Global",
+            "Database", "Collection", "Mutex", "oplog"};
+
+    private Payloads() {
+    }
+
+    // Ответ serverStatus реплики: много вложенных секций с числовыми счётчиками
+    static Map<String, Object> serverStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("host", "mongo-1.prod.internal:27017");
+        status.put("version", "6.0.14");
+        status.put("process", "mongod");
+        status.put("pid", 2817L);
+        status.put("uptime", 8_640_123.0);
+        status.put("uptimeMillis", 8_640_123_456L);
+        status.put("uptimeEstimate", 8_640_123L);
+        status.put("localTime", "2024-05-14T09:12:33.512Z");
+        status.put("asserts", counters("regular", "warning", "msg", "user", "tripwire", "rollovers"));
+
+        Map<String, Object> connections = counters("current", "available", "totalCreated", "active", "threaded",
+                "exhaustIsMaster", "exhaustHello", "awaitingTopologyChanges");
+        status.put("connections", connections);
+
+        Map<String, Object> globalLock = new LinkedHashMap<>();
+        globalLock.put("totalTime", 8_640_123_456_000L);
+        globalLock.put("currentQueue", counters("total", "readers", "writers"));
+        globalLock.put("activeClients", counters("total", "readers", "writers"));
+        status.put("globalLock", globalLock);
+
+        Map<String, Object> locks = new LinkedHashMap<>();
+        for (String lock : LOCKS) {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("acquireCount", counters("r", "w", "R", "W"));
+            stats.put("acquireWaitCount", counters("r", "w"));
+            stats.put("timeAcquiringMicros", counters("r", "w"));
+            locks.put(lock, stats);
+        }
+        status.put("locks", locks);
+
+        status.put("network", counters("bytesIn", "bytesOut", "physicalBytesIn", "physicalBytesOut",
+                "numSlowDNSOperations", "numSlowSSLOperations", "numRequests", "tcpFastOpen"));
+        status.put("opcounters", counters("insert", "query", "update", "delete", "getmore", "command"));
+        status.put("opcountersRepl", counters("insert", "query", "update", "delete", "getmore", "command"));
+
+        Map<String, Object> repl = new LinkedHashMap<>();
+        repl.put("topologyVersion", counters("counter"));
+        repl.put("hosts", List.of("mongo-1.prod.internal:27017", "mongo-2.prod.internal:27017",
+                "mongo-3.prod.internal:27017"));
+        repl.put("setName", "rs0");
+        repl.put("setVersion", 7L);
+        repl.put("isWritablePrimary", true);
+        repl.put("secondary", false);
+        repl.put("primary", "mongo-1.prod.internal:27017");
+        repl.put("me", "mongo-1.prod.internal:27017");
+        repl.put("rbid", 1L);
+        status.put("repl", repl);
+
+        Map<String, Object> wiredTiger = new LinkedHashMap<>();
+        int seed = 0;
+        for (String section : WIRED_TIGER_SECTIONS) {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            // Ключи WiredTiger - длинные фразы с пробелами, как в реальном ответе
+            for (int i = 0; i < 30; i++) {
+                stats.put(section + " " + statName(seed++), (long) seed * 7919 % 1_000_000_007L);
+            }
+            wiredTiger.put(section, stats);
+        }
+        status.put("wiredTiger", wiredTiger);
+
+        Map<String, Object> commands = new LinkedHashMap<>();
+        for (String command : COMMANDS) {
+            commands.put(command, counters("failed", "total"));
+        }
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("commands", commands);
+        metrics.put("cursor", counters("moreThanOneBatch", "timedOut", "totalOpened"));
+        metrics.put("document", counters("deleted", "inserted", "returned", "updated"));
+        metrics.put("operation", counters("scanAndOrder", "writeConflicts"));
+        metrics.put("queryExecutor", counters("scanned", "scannedObjects", "collectionScans"));
+        metrics.put("repl", counters("apply", "buffer", "initialSync", "network", "preload"));
+        status.put("metrics", metrics);
+        status.put("mem", counters("bits", "resident", "virtual", "supported"));
+        status.put("ok", 1.0);
+        return status;
+    }
+
+    // Результат пробы PostgreSQL с развёрнутым списком баз
+    static Map<String, Object> postgresDatabases(int count) {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("version", "PostgreSQL 16.2 on x86_64-pc-linux-gnu, compiled by gcc (GCC) 12.2.0, 64-bit");
+        data.put("currentDatabase", "orders");
+        data.put("currentUser", "monitoring");
+        data.put("serverAddress", "10.20.30.40");
+        data.put("serverPort", 5432);
+        data.put("maxConnections", "500");
+        data.put("activeConnections", 87L);
+        List<Map<String, Object>> databases = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> db = new LinkedHashMap<>();
+            long size = 8_400_000L + i * 1_048_576L * 37;
+            db.put("name", "tenant_" + String.format("%04d", i));
+            db.put("size", size);
+            db.put("sizeFormatted", String.format("%.2f MB", size / 1048576.0));
+            databases.add(db);
+        }
+        data.put("databases", databases);
+        data.put("databaseCount", count);
+        return data;
+    }
+
+    // Строки, требующие экранирования: сообщения драйверов, стеки, имена в UTF-8
+    static Map<String, Object> escapedStrings(int count) {
+        Map<String, Object> data = new LinkedHashMap<>();
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            messages.add("Timed out after 30000 ms while waiting for a server that matches \"ReadPreferenceServerSelector"
+                    + "{readPreference=primary}\".\n\tCluster state: {type=REPLICA_SET, servers=[{address=mongo-" + i
+                    + ":27017, type=UNKNOWN, state=CONNECTING}]}\r\nБаза «заказы» № " + i + " \u0001\u001f");
+        }
+        data.put("errors", messages);
+        return data;
+    }
+
+    private static Map<String, Object> counters(String... names) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        long value = 1;
+        for (String name : names) {
+            value = value * 6364136223846793005L + 1442695040888963407L;
+            map.put(name, Math.abs(value % 10_000_000L));
+        }
+        return map;
+    }
+
+    private static String statName(int seed) {
+        String[] words = {"bytes", "pages", "currently", "in the cache", "read into", "written from", "evicted",
+                "tracked", "dirty", "modified", "requested", "maximum", "calls", "total", "time (usecs)"};
+        return words[seed % words.length] + " " + words[(seed / words.length + 3) % words.length] + " " + seed;
+    }
+}
@@ -1,12 +1,28 @@
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
+import org.bson.Document;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.URLDecoder;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 public class ApiHandler {
 
@@ -21,8 +37,8 @@ public class ApiHandler {
     public static class MongoTestHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            String query = exchange.getRequestURI().getQuery();
-            Map<String, String> params = parseQuery(query);
+            QueryParams params = readParams(exchange);
+            if (params == null) return;
             String connectionString = params.get("connection");
             String user = params.get("user");
             String secret = params.get("secret");
@@ -33,36 +49,107 @@ public class ApiHandler {
                 connectionString = addMongoCredentials(connectionString, user, secret);
             }
 
-            MongoService.TestResult result = MongoService.testConnection(connectionString, command);
+            // Одинаковые одновременные пробы схлопываются, результат живёт в кэше несколько секунд.
+            // В потоковом режиме шаги видит только запрос, который реально запустил пробу,
+            // остальные сразу получают итоговый результат
+            StepStream stream = StepStream.open(exchange, params.get("stream"));
+            MongoService.ProbeOptions options = new MongoService.ProbeOptions();
+            if (stream != null) {
+                options.listener = stream;
+            }
+            // database=<имя> (по умолчанию admin); limit и batchSize - для курсорных команд
+            if (params.get("database") != null && !params.get("database").trim().isEmpty()) {
+                options.database = params.get("database").trim();
+            }
+            options.limit = QueryParams.intParam(params.get("limit"), options.limit);
+            options.batchSize = QueryParams.intParam(params.get("batchSize"), options.batchSize);
+            // phases=true - DNS/TCP/TLS отдельным сокетом перед новым клиентом
+            options.phases = flagParam(params.get("phases"));
 
-            String json = toJson(result.success, result.message, result.data);
-            sendResponse(exchange, json);
-        }
+            // timeoutMs - общий срок пробы: таймауты драйвера и отмена по его истечении
+            Deadline deadline = Deadline.after(QueryParams.intParam(params.get("timeoutMs"), 0));
+            options.deadline = deadline;
+            // topology=members - каждый участник реплики напрямую и параллельно, вместо команды
+            boolean topology = "members".equalsIgnoreCase(params.get("topology"));
+            String key = ProbeCache.keyOf("mongo", normalize(connectionString), normalizeCommand(command),
+                    options.database, String.valueOf(options.limit), String.valueOf(options.batchSize),
+                    String.valueOf(topology), String.valueOf(options.phases));
+            cancelOnDisconnect(stream, deadline, key);
+            String target = connectionString;
 
-        private String addMongoCredentials(String url, String user, String secret) {
-            // Если URL уже содержит @ значит credentials уже есть
-            if (url.contains("@")) {
-                return url;
+            // engine=async (или -Dmongo.engine=async) - поток не ждёт сеть, ответ уходит из callback
+            if (!topology && MongoAsyncService.isAsync(params.get("engine"))) {
+                WebServer.detach(exchange);
+                // Шаги и ответ пишет исполнитель сервера, потоки продолжений (mongo-async) только считают
+                Executor responses = WebServer.executorOf(exchange);
+                if (stream != null) {
+                    stream.writeOn(responses);
+                }
+                ProbeCache.getAsync(key, flagParam(params.get("nocache")), deadline,
+                                () -> MongoAsyncService.testConnectionAsync(target, command, options),
+                                () -> sharedProbeTimedOut(deadline))
+                        .whenCompleteAsync((probe, error) -> {
+                            forgetIfCancelled(deadline, key);
+                            deadline.close();
+                            if (stream != null) {
+                                // Итог - после шагов, ещё стоящих в очереди на запись
+                                stream.afterSteps(() -> respondAsync(exchange, stream, probe, error));
+                            } else {
+                                respondAsync(exchange, null, probe, error);
+                            }
+                        }, responses);
+                return;
             }
 
-            // Добавляем credentials после mongodb://
-            if (url.startsWith("mongodb://")) {
-                String afterProtocol = url.substring("mongodb://".length());
-                StringBuilder newUrl = new StringBuilder("mongodb://");
+            try {
+                ProbeCache.Result<MongoService.TestResult> probe = ProbeCache.get(key,
+                        flagParam(params.get("nocache")), deadline,
+                        () -> topology
+                                ? MongoTopologyProbe.run(target, options)
+                                : MongoService.testConnection(target, command, options),
+                        () -> sharedProbeTimedOut(deadline));
+                forgetIfCancelled(deadline, key);
+                respond(exchange, stream, probe, null);
+            } finally {
+                deadline.close();
+            }
+        }
 
-                if (user != null && !user.isEmpty()) {
-                    newUrl.append(user);
-                    if (secret != null && !secret.isEmpty()) {
-                        newUrl.append(":").append(secret);
-                    }
-                    newUrl.append("@");
-                }
-                newUrl.append(afterProtocol);
+        // Та же проба, начатая другим запросом, идёт дольше timeoutMs этого запроса
+        private static MongoService.TestResult sharedProbeTimedOut(Deadline deadline) {
+            MongoService.TestResult result = new MongoService.TestResult(false,
+                    "MongoDB probe timed out waiting for a shared probe (timeoutMs=" + deadline.timeoutMs() + ")");
+            result.data.put("timedOutPhase", "shared probe");
+            result.data.put("deadline", deadline.describe());
+            return result;
+        }
 
-                return newUrl.toString();
+        private static void respondAsync(HttpExchange exchange, StepStream stream,
+                                         ProbeCache.Result<MongoService.TestResult> probe, Throwable error) {
+            try {
+                respond(exchange, stream, probe, error);
+            } catch (IOException e) {
+                // Клиент ушёл, не дождавшись ответа
+                exchange.close();
+            } finally {
+                WebServer.complete(exchange);
             }
+        }
 
-            return url;
+        private static void respond(HttpExchange exchange, StepStream stream,
+                                    ProbeCache.Result<MongoService.TestResult> probe,
+                                    Throwable error) throws IOException {
+            if (error instanceof CompletionException && error.getCause() != null) {
+                error = error.getCause();
+            }
+            boolean success = error == null && probe.value.success;
+            String message = error == null ? probe.value.message : "MongoDB probe failed: " + error.getMessage();
+            Map<String, Object> data = error == null ? withCacheInfo(probe.value.data, probe) : null;
+            if (stream != null) {
+                stream.finish(success, message, data);
+            } else {
+                sendJson(exchange, success, message, data);
+            }
         }
     }
 
@@ -70,8 +157,8 @@ public class ApiHandler {
     public static class PostgresTestHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            String query = exchange.getRequestURI().getQuery();
-            Map<String, String> params = parseQuery(query);
+            QueryParams params = readParams(exchange);
+            if (params == null) return;
             String connectionString = params.get("connection");
             String user = params.get("user");
             String secret = params.get("secret");
@@ -81,49 +168,412 @@ public class ApiHandler {
                 connectionString = addCredentialsToUrl(connectionString, user, secret);
             }
 
-            PostgresService.TestResult result = PostgresService.testConnection(connectionString);
+            // connect=pooled - соединение из пула, connect=cold (по умолчанию) - новое подключение
+            PostgresService.ProbeOptions options = new PostgresService.ProbeOptions();
+            options.pooled = "pooled".equalsIgnoreCase(params.get("connect"));
+            // probe=sequential - старый режим, по запросу на каждое поле
+            options.combined = !"sequential".equalsIgnoreCase(params.get("probe"));
+            // phases=true - DNS/TCP/TLS отдельным сокетом перед холодным подключением
+            options.phases = flagParam(params.get("phases"));
 
-            String json = toJson(result.success, result.message, result.data);
-            sendResponse(exchange, json);
-        }
+            StepStream stream = StepStream.open(exchange, params.get("stream"));
+            if (stream != null) {
+                options.listener = stream;
+            }
+            // timeoutMs - общий срок пробы: таймауты JDBC и отмена по его истечении
+            try (Deadline deadline = Deadline.after(QueryParams.intParam(params.get("timeoutMs"), 0))) {
+                options.deadline = deadline;
+                String key = ProbeCache.keyOf("postgres", normalizePostgres(connectionString),
+                        String.valueOf(options.pooled), String.valueOf(options.combined),
+                        String.valueOf(options.phases));
+                cancelOnDisconnect(stream, deadline, key);
+                String target = connectionString;
+                ProbeCache.Result<PostgresService.TestResult> probe = ProbeCache.get(key,
+                        flagParam(params.get("nocache")), deadline,
+                        () -> PostgresService.testConnection(target, options),
+                        () -> sharedProbeTimedOut(deadline));
+                PostgresService.TestResult result = probe.value;
+                forgetIfCancelled(deadline, key);
 
-        private String addCredentialsToUrl(String url, String user, String secret) {
-            // Добавляем credentials к URL
-            if (url.startsWith("postgresql://")) {
-                // Преобразуем в JDBC формат с параметрами
-                String jdbcUrl = "jdbc:" + url;
-                String separator = url.contains("?") ? "&" : "?";
-                if (user != null && !user.isEmpty()) {
-                    jdbcUrl += separator + "user=" + user;
-                    separator = "&";
+                if (stream != null) {
+                    stream.finish(result.success, result.message, withCacheInfo(result.data, probe));
+                } else {
+                    sendJson(exchange, result.success, result.message, withCacheInfo(result.data, probe));
                 }
-                if (secret != null && !secret.isEmpty()) {
-                    jdbcUrl += separator + "pass" + "word=" + secret;
+            }
+        }
+
+        // Та же проба, начатая другим запросом, идёт дольше timeoutMs этого запроса
+        private static PostgresService.TestResult sharedProbeTimedOut(Deadline deadline) {
+            PostgresService.TestResult result = new PostgresService.TestResult(false,
+                    "PostgreSQL probe timed out waiting for a shared probe (timeoutMs=" + deadline.timeoutMs() + ")");
+            result.data.put("timedOutPhase", "shared probe");
+            result.data.put("deadline", deadline.describe());
+            return result;
+        }
+
+        // Одна и та же цель в формате postgresql:// и jdbc:postgresql:// - один ключ кэша
+        private static String normalizePostgres(String connectionString) {
+            try {
+                return PostgresService.toJdbcUrl(normalize(connectionString));
+            } catch (IllegalArgumentException e) {
+                return normalize(connectionString);
+            }
+        }
+    }
+
+    // Размеры баз PostgreSQL отдельно от основной пробы:
+    // GET /api/test/postgres/sizes?connection=<url>&refresh=true&waitMs=30000
+    public static class PostgresSizesHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            QueryParams params = readParams(exchange);
+            if (params == null) return;
+            String connectionString = params.get("connection");
+            String user = params.get("user");
+            String secret = params.get("secret");
+
+            if (connectionString == null || connectionString.isEmpty()) {
+                sendJson(exchange, false, "Connection string is empty", null);
+                return;
+            }
+            if (user != null || secret != null) {
+                connectionString = addCredentialsToUrl(connectionString, user, secret);
+            }
+
+            String jdbcUrl;
+            try {
+                jdbcUrl = PostgresService.toJdbcUrl(connectionString);
+            } catch (IllegalArgumentException e) {
+                sendJson(exchange, false, e.getMessage(), null);
+                return;
+            }
+
+            long waitMs = Math.max(0, Math.min(600_000, QueryParams.intParam(params.get("waitMs"), 30_000)));
+            Map<String, Object> data = PostgresSizeCollector.get(jdbcUrl, flagParam(params.get("refresh")), waitMs);
+            boolean success = data.get("error") == null;
+            sendJson(exchange, success, success ? "PostgreSQL database sizes" : "PostgreSQL size collection failed", data);
+        }
+    }
+
+    // Пакетная проверка: POST /api/test/batch
+    // {"targets":[{"type":"mongo","connection":"..."},{"type":"postgres","connection":"..."}],
+    //  "timeoutMs":30000, "targetTimeoutMs":10000}
+    // или GET /api/test/batch?connection=<url>&connection=<url>&timeoutMs=30000 -
+    // user, secret, command и connect тогда общие для всех целей
+    public static class BatchTestHandler implements HttpHandler {
+        private static final int MAX_BODY_BYTES = 1024 * 1024;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                handleQuery(exchange);
+                return;
+            }
+
+            List<ProbeTarget> targets = new ArrayList<>();
+            long timeoutMs;
+            long targetTimeoutMs;
+            try {
+                Document body = Document.parse(readBody(exchange, MAX_BODY_BYTES));
+                List<?> list = body.get("targets", List.class);
+                if (list == null || list.isEmpty()) {
+                    sendJson(exchange, false, "No targets given", null);
+                    return;
                 }
-                return jdbcUrl;
-            } else if (url.startsWith("jdbc:postgresql://")) {
-                // Добавляем к существующему JDBC URL
-                String separator = url.contains("?") ? "&" : "?";
-                if (user != null && !user.isEmpty()) {
-                    url += separator + "user=" + user;
-                    separator = "&";
+                if (list.size() > BatchProbeService.MAX_TARGETS) {
+                    sendJson(exchange, false, "Too many targets: " + list.size()
+                            + " (max " + BatchProbeService.MAX_TARGETS + ")", null);
+                    return;
                 }
-                if (secret != null && !secret.isEmpty()) {
-                    url += separator + "pass" + "word=" + secret;
+                for (Object item : list) {
+                    targets.add(ProbeTarget.fromDocument((Document) item));
                 }
-                return url;
+                timeoutMs = clamp(longValue(body.get("timeoutMs"), 30_000), 100, 600_000);
+                targetTimeoutMs = clamp(longValue(body.get("targetTimeoutMs"), 10_000), 100, timeoutMs);
+            } catch (Exception e) {
+                sendJson(exchange, false, "Invalid batch request: " + e.getMessage(), null);
+                return;
+            }
+
+            run(exchange, targets, timeoutMs, targetTimeoutMs);
+        }
+
+        private static void handleQuery(HttpExchange exchange) throws IOException {
+            QueryParams params = readParams(exchange);
+            if (params == null) return;
+            List<String> connections = params.getAll("connection");
+            if (connections.isEmpty()) {
+                sendJson(exchange, false, "Use POST with a JSON body {\"targets\": [...]} "
+                        + "or repeat connection=<url> in the query", null);
+                return;
+            }
+            if (connections.size() > BatchProbeService.MAX_TARGETS) {
+                sendJson(exchange, false, "Too many targets: " + connections.size()
+                        + " (max " + BatchProbeService.MAX_TARGETS + ")", null);
+                return;
+            }
+            List<ProbeTarget> targets = new ArrayList<>();
+            for (String connection : connections) {
+                ProbeTarget target = new ProbeTarget();
+                target.connection = connection;
+                target.type = ProbeTarget.typeOf(connection);
+                target.user = params.get("user");
+                target.secret = params.get("secret");
+                target.command = params.get("command");
+                target.pooled = "pooled".equalsIgnoreCase(params.get("connect"));
+                target.engine = params.get("engine");
+                targets.add(target);
+            }
+            long timeoutMs = clamp(QueryParams.intParam(params.get("timeoutMs"), 30_000), 100, 600_000);
+            long targetTimeoutMs = clamp(QueryParams.intParam(params.get("targetTimeoutMs"), 10_000), 100, timeoutMs);
+            run(exchange, targets, timeoutMs, targetTimeoutMs);
+        }
+
+        private static void run(HttpExchange exchange, List<ProbeTarget> targets, long timeoutMs,
+                                long targetTimeoutMs) throws IOException {
+            // Ответ идёт chunked: каждый результат уходит клиенту сразу, как только проба завершилась
+            setJsonHeaders(exchange);
+            exchange.sendResponseHeaders(200, 0);
+            try (JsonWriter json = new JsonWriter(exchange.getResponseBody())) {
+                json.beginObject().name("data").beginObject().name("results").beginArray();
+                BatchProbeService.Summary summary = BatchProbeService.run(targets, timeoutMs, targetTimeoutMs, entry -> {
+                    try {
+                        json.value(entry);
+                        json.flush();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                json.endArray();
+                json.name("total").value(summary.total);
+                json.name("completed").value(summary.completed);
+                json.name("failed").value(summary.failed);
+                json.name("timedOut").value(summary.timedOut);
+                json.name("notFinished").value(summary.notFinished);
+                json.name("elapsedMs").value(summary.elapsedMs);
+                json.endObject();
+                json.name("success").value(summary.completed == summary.total && summary.failed == 0);
+                json.name("message").value("Probed " + summary.total + " targets in " + summary.elapsedMs + " ms");
+                json.endObject();
+            } catch (UncheckedIOException e) {
+                // Клиент ушёл, не дождавшись ответа
             }
-            return url;
+        }
+
+        private static long longValue(Object value, long defaultValue) {
+            return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+        }
+
+        private static long clamp(long value, long min, long max) {
+            return Math.max(min, Math.min(max, value));
         }
     }
 
-    // Обработчик для главной страницы
-    public static class RootHandler implements HttpHandler {
+    // Предварительная проверка доступности, без подключения драйверов:
+    // GET /api/scan?target=<строка подключения|host:port|10.0.0.0/28:5432-5434>&target=...&timeoutMs=2000
+    // POST - JSON {"target": [...], "timeoutMs": 2000}; port=<порт> - для хостов и диапазонов без порта
+    public static class ScanHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            QueryParams params = readParams(exchange);
+            if (params == null) return;
+            List<String> targets = new ArrayList<>(params.getAll("target"));
+            targets.addAll(params.getAll("connection"));
+            if (targets.isEmpty()) {
+                sendJson(exchange, false, "No targets given: repeat target=<connection string or host:port>", null);
+                return;
+            }
+
+            List<TcpScanner.Endpoint> endpoints;
+            try {
+                endpoints = TcpScanner.parseTargets(targets, QueryParams.intParam(params.get("port"), 0));
+            } catch (IllegalArgumentException e) {
+                sendJson(exchange, false, e.getMessage(), null);
+                return;
+            }
+            long timeoutMs = Math.max(100, Math.min(TcpScanner.MAX_TIMEOUT_MS,
+                    QueryParams.intParam(params.get("timeoutMs"), (int) TcpScanner.DEFAULT_TIMEOUT_MS)));
+
+            TcpScanner.Summary summary = TcpScanner.scan(endpoints, timeoutMs);
+            List<Map<String, Object>> results = new ArrayList<>();
+            for (TcpScanner.Endpoint endpoint : endpoints) {
+                results.add(endpoint.toMap());
+            }
+            Map<String, Object> data = new LinkedHashMap<>();
+            data.put("endpoints", results);
+            data.put("total", summary.total);
+            data.put("open", summary.open);
+            data.put("closed", summary.closed);
+            data.put("timedOut", summary.timedOut);
+            data.put("dnsFailed", summary.dnsFailed);
+            data.put("timeoutMs", timeoutMs);
+            data.put("elapsedMs", summary.elapsedMs);
+            sendJson(exchange, summary.open == summary.total,
+                    summary.open + " of " + summary.total + " endpoints reachable in " + summary.elapsedMs + " ms", data);
+        }
+    }
+
+    // Проверка "жив ли PostgreSQL" без JDBC-драйвера - протокол напрямую:
+    // GET /api/ping/postgres?connection=<url>&user=..&secret=..&timeoutMs=5000
+    public static class PostgresPingHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            QueryParams params = readParams(exchange);
+            if (params == null) return;
+            String connectionString = params.get("connection");
+            String user = params.get("user");
+            String secret = params.get("secret");
+
+            if (connectionString != null && (user != null || secret != null)) {
+                connectionString = addCredentialsToUrl(connectionString, user, secret);
+            }
+
+            PostgresService.TestResult result =
+                    PgWireProbe.ping(connectionString, QueryParams.intParam(params.get("timeoutMs"), 0));
+            sendJson(exchange, result.success, result.message, result.data);
+        }
+    }
+
+    // Проверка "жив ли MongoDB" без MongoClient - hello по OP_MSG на одном сокете:
+    // GET /api/ping/mongo?connection=mongodb://host:27017&user=..&secret=..&timeoutMs=5000
+    public static class MongoPingHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            QueryParams params = readParams(exchange);
+            if (params == null) return;
+            String connectionString = params.get("connection");
+            String user = params.get("user");
+            String secret = params.get("secret");
+
+            if (connectionString != null && (user != null || secret != null)) {
+                connectionString = addMongoCredentials(connectionString, user, secret);
+            }
+
+            MongoService.TestResult result =
+                    MongoWireProbe.ping(connectionString, QueryParams.intParam(params.get("timeoutMs"), 0));
+            sendJson(exchange, result.success, result.message, result.data);
+        }
+    }
+
+    // Нагрузочный тест PostgreSQL:
+    // GET /api/bench/postgres?connection=<url>&connections=8&iterations=1000&query=SELECT 1&prepared=true
+    public static class PostgresBenchHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            QueryParams params = readParams(exchange);
+            if (params == null) return;
+            String connectionString = params.get("connection");
+            String user = params.get("user");
+            String secret = params.get("secret");
+
+            if (connectionString != null && (user != null || secret != null)) {
+                connectionString = addCredentialsToUrl(connectionString, user, secret);
+            }
+
+            PostgresService.TestResult result = PostgresBenchmark.run(connectionString,
+                    PostgresBenchmark.optionsFrom(params));
+
+            sendJson(exchange, result.success, result.message, result.data);
+        }
+    }
+
+    // Нагрузочный тест MongoDB:
+    // GET /api/bench/mongo?connection=<url>&documents=10000&documentSize=1024&batchSize=100&writeConcern=majority&workers=8&timeoutMs=120000
+    public static class MongoBenchHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            QueryParams params = readParams(exchange);
+            if (params == null) return;
+            String connectionString = params.get("connection");
+            String user = params.get("user");
+            String secret = params.get("secret");
+
+            if (connectionString != null && (user != null || secret != null)) {
+                connectionString = addMongoCredentials(connectionString, user, secret);
+            }
+
+            MongoTester.BenchmarkOptions options = new MongoTester.BenchmarkOptions();
+            options.documents = QueryParams.intParam(params.get("documents"), options.documents);
+            options.documentSize = QueryParams.intParam(params.get("documentSize"), options.documentSize);
+            options.batchSize = QueryParams.intParam(params.get("batchSize"), options.batchSize);
+            options.workers = QueryParams.intParam(params.get("workers"), options.workers);
+            options.timeoutMs = Math.max(1000,
+                    Math.min(600_000, QueryParams.intParam(params.get("timeoutMs"), (int) options.timeoutMs)));
+            if (params.get("writeConcern") != null) {
+                options.writeConcern = params.get("writeConcern");
+            }
+
+            MongoTester.TestResult result = MongoTester.benchmark(connectionString, options);
+
+            sendJson(exchange, result.success, result.message, result.data);
+        }
+    }
+
+    // Статистика фонового мониторинга: GET /api/monitor
+    public static class MonitorHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (ProbeMonitor.isEnabled()) {
+                sendJson(exchange, true, "Monitoring statistics", ProbeMonitor.snapshot());
+            } else {
+                sendJson(exchange, false, "Monitoring is not configured (start with -Dmonitor.config=<file>)", null);
+            }
+        }
+    }
+
+    // История проб с диска:
+    // GET /api/history?target=db1:27017&from=<мс или ISO-8601>&to=...&limit=1000
+    // По умолчанию - последний час по всем целям; target - подстрока "тип цель"
+    public static class HistoryHandler implements HttpHandler {
+        private static final int MAX_LIMIT = 100_000;
+
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            String html = WebUI.getHTML();
-            byte[] response = html.getBytes(StandardCharsets.UTF_8);
-            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+            if (!ProbeHistory.isEnabled()) {
+                sendJson(exchange, false, "Probe history is not configured (start with -Dhistory.dir=<dir>)", null);
+                return;
+            }
+            QueryParams params = readParams(exchange);
+            if (params == null) return;
+            long to;
+            long from;
+            try {
+                to = timeParam(params.get("to"), System.currentTimeMillis());
+                from = timeParam(params.get("from"), to - 3_600_000);
+            } catch (DateTimeParseException e) {
+                sendJson(exchange, false, "Invalid time: " + e.getParsedString()
+                        + " (epoch milliseconds or ISO-8601, e.g. 2024-05-01T10:00:00Z)", null);
+                return;
+            }
+            int limit = Math.max(0, Math.min(QueryParams.intParam(params.get("limit"), 1000), MAX_LIMIT));
+
+            Map<String, Object> data = ProbeHistory.query(params.get("target"), from, to, limit);
+            if (data == null) {
+                sendJson(exchange, false, "Probe history is disabled", null);
+                return;
+            }
+            sendJson(exchange, true, data.get("matched") + " probes between " + Instant.ofEpochMilli(from)
+                    + " and " + Instant.ofEpochMilli(to), data);
+        }
+
+        private static long timeParam(String value, long defaultValue) {
+            if (value == null || value.trim().isEmpty()) return defaultValue;
+            String trimmed = value.trim();
+            try {
+                return Long.parseLong(trimmed);
+            } catch (NumberFormatException e) {
+                return Instant.parse(trimmed).toEpochMilli();
+            }
+        }
+    }
+
+    // Метрики для Prometheus: GET /metrics
+    public static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] response = Metrics.render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=UTF-8");
             exchange.sendResponseHeaders(200, response.length);
             try (OutputStream os = exchange.getResponseBody()) {
                 os.write(response);
@@ -131,84 +581,387 @@ public class ApiHandler {
         }
     }
 
+    // Обработчик для главной страницы.
+    // Страница кодируется один раз при загрузке класса: готовые байты как есть и в gzip,
+    // ETag по содержимому. Повторная загрузка из браузера - 304 без тела
+    public static class RootHandler implements HttpHandler {
+        private static final byte[] IDENTITY = WebUI.getHTML().getBytes(StandardCharsets.UTF_8);
+        private static final byte[] GZIPPED = gzip(IDENTITY);
+        private static final String ETAG = etagOf(IDENTITY);
+        // У сжатого варианта свой ETag: это другие байты
+        private static final String GZIP_ETAG = ETAG.substring(0, ETAG.length() - 1) + "-gz\"";
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            boolean gzip = acceptsGzip(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            String etag = gzip ? GZIP_ETAG : ETAG;
+
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Content-Type", "text/html; charset=UTF-8");
+            // Браузер хранит страницу, но каждый раз сверяет ETag - после обновления сервера UI не залипает
+            headers.set("Cache-Control", "no-cache");
+            headers.set("Vary", "Accept-Encoding");
+            headers.set("ETag", etag);
+
+            if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+
+            byte[] body = gzip ? GZIPPED : IDENTITY;
+            if (gzip) {
+                headers.set("Content-Encoding", "gzip");
+            }
+            if ("HEAD".equalsIgnoreCase(exchange.getRequestMethod())) {
+                headers.set("Content-Length", String.valueOf(body.length));
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+
+        // gzip принимается, если он (или *) указан в Accept-Encoding без q=0
+        static boolean acceptsGzip(String acceptEncoding) {
+            if (acceptEncoding == null) return false;
+            for (String part : acceptEncoding.split(",")) {
+                String[] tokens = part.trim().split(";");
+                String coding = tokens[0].trim();
+                if (!coding.equalsIgnoreCase("gzip") && !coding.equals("*")) continue;
+                boolean rejected = false;
+                for (int i = 1; i < tokens.length; i++) {
+                    String param = tokens[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            rejected = Double.parseDouble(param.substring(2)) <= 0;
+                        } catch (NumberFormatException e) {
+                            rejected = true;
+                        }
+                    }
+                }
+                return !rejected;
+            }
+            return false;
+        }
+
+        // If-None-Match: список ETag через запятую, слабые (W/) сравниваются как обычные, * - любой
+        private static boolean matches(String ifNoneMatch, String etag) {
+            if (ifNoneMatch == null) return false;
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals("*") || candidate.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static byte[] gzip(byte[] data) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 3);
+            try (GZIPOutputStream gz = new GZIPOutputStream(bytes) {
+                { def.setLevel(Deflater.BEST_COMPRESSION); }
+            }) {
+                gz.write(data);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        private static String etagOf(byte[] data) {
+            try {
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
+                StringBuilder etag = new StringBuilder("\"");
+                for (int i = 0; i < 8; i++) {
+                    etag.append(String.format("%02x", hash[i]));
+                }
+                return etag.append('"').toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    // Потоковая отдача шагов пробы: stream=ndjson - JSON-документ на строку,
+    // stream=sse - события Server-Sent Events. Каждый шаг уходит клиенту сразу:
+    // {"event":"step","step":"connected","stepMs":..,"elapsedMs":..,"data":{..}}
+    // Последним идёт {"event":"result","success":..,"message":..,"data":{..}} - как в обычном ответе
+    private static class StepStream implements ProbeListener {
+        private final JsonWriter json;
+        private final boolean sse;
+        private final long start = System.nanoTime();
+        private boolean broken;
+        private Runnable onDisconnect;
+        private ScheduledFuture<?> keepAlive;
+        // Не null - шаги пишутся по очереди на этом исполнителе, а не в потоке, который их прислал
+        private Executor writer;
+        private CompletableFuture<Void> pending = CompletableFuture.completedFuture(null);
+
+        private StepStream(JsonWriter json, boolean sse) {
+            this.json = json;
+            this.sse = sse;
+        }
+
+        // null - потоковый режим не запрошен
+        static StepStream open(HttpExchange exchange, String mode) throws IOException {
+            boolean sse = "sse".equalsIgnoreCase(mode);
+            if (!sse && !"ndjson".equalsIgnoreCase(mode)) {
+                return null;
+            }
+            exchange.getResponseHeaders().set("Content-Type",
+                    sse ? "text/event-stream; charset=UTF-8" : "application/x-ndjson; charset=UTF-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*"); // CORS
+            exchange.sendResponseHeaders(200, 0); // chunked
+            return new StepStream(new JsonWriter(exchange.getResponseBody()), sse);
+        }
+
+        // Асинхронная проба: шаги приходят из потоков продолжений драйвера, запись клиенту
+        // (которая может ждать медленного клиента) уходит на executor
+        synchronized void writeOn(Executor executor) {
+            writer = executor;
+        }
+
+        // action - после того, как записаны все шаги, поставленные в очередь до этого вызова
+        synchronized void afterSteps(Runnable action) {
+            pending.whenComplete((ignored, error) -> action.run());
+        }
+
+        @Override
+        public synchronized void onStep(String step, Map<String, Object> fields, long stepNanos) {
+            if (broken) return;
+            long elapsedNanos = System.nanoTime() - start;
+            if (writer != null) {
+                pending = pending.thenRunAsync(() -> writeStep(step, fields, stepNanos, elapsedNanos), writer);
+                return;
+            }
+            writeStep(step, fields, stepNanos, elapsedNanos);
+        }
+
+        private synchronized void writeStep(String step, Map<String, Object> fields, long stepNanos,
+                                            long elapsedNanos) {
+            if (broken) return;
+            try {
+                begin("step");
+                json.name("step").value(step);
+                json.name("stepMs").value(LatencyHistogram.toMillis(stepNanos));
+                json.name("elapsedMs").value(LatencyHistogram.toMillis(elapsedNanos));
+                json.name("data").value(fields);
+                end();
+            } catch (IOException e) {
+                disconnected();
+            }
+        }
+
+        // Раз в секунду пустая строка (NDJSON) или комментарий (SSE): так разрыв соединения
+        // обнаруживается, даже когда проба долго ничего не присылает
+        synchronized void onDisconnect(Runnable callback) {
+            onDisconnect = callback;
+            keepAlive = Deadline.TIMER.scheduleWithFixedDelay(this::keepAlive, 1, 1, TimeUnit.SECONDS);
+        }
+
+        private synchronized void keepAlive() {
+            if (broken) return;
+            try {
+                json.raw(sse ? ": keep-alive\n\n" : "\n");
+                json.flush();
+            } catch (IOException e) {
+                disconnected();
+            }
+        }
+
+        // Клиент ушёл. Саму пробу отменяет onDisconnect, если её результат больше никому не нужен
+        private void disconnected() {
+            broken = true;
+            if (keepAlive != null) {
+                keepAlive.cancel(false);
+            }
+            if (onDisconnect != null) {
+                onDisconnect.run();
+            }
+        }
+
+        synchronized void finish(boolean success, String message, Map<String, Object> data) {
+            if (keepAlive != null) {
+                keepAlive.cancel(false);
+            }
+            try (JsonWriter out = json) {
+                if (broken) return;
+                begin("result");
+                out.name("success").value(success);
+                out.name("message").value(message != null ? message : "");
+                out.name("elapsedMs").value(LatencyHistogram.toMillis(System.nanoTime() - start));
+                out.name("data").value(data != null ? data : Map.of());
+                end();
+            } catch (IOException e) {
+                // Клиент ушёл, не дождавшись результата
+            }
+        }
+
+        private void begin(String event) throws IOException {
+            if (sse) {
+                json.raw("event: " + event + "\ndata: ");
+            }
+            json.beginObject();
+            json.name("event").value(event);
+        }
+
+        private void end() throws IOException {
+            json.endObject();
+            json.raw(sse ? "\n\n" : "\n");
+            json.flush();
+        }
+    }
+
     // Вспомогательные методы
-    private static Map<String, String> parseQuery(String query) {
-        Map<String, String> params = new HashMap<>();
-        if (query != null && !query.isEmpty()) {
-            String[] pairs = query.split("&");
-            for (String pair : pairs) {
-                String[] keyValue = pair.split("=", 2);
-                if (keyValue.length == 2) {
-                    String key = URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8);
-                    String value = URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8);
-                    params.put(key, value);
+    static String addMongoCredentials(String url, String user, String secret) {
+        // Если URL уже содержит @ значит credentials уже есть
+        if (url.contains("@")) {
+            return url;
+        }
+
+        // Добавляем credentials после mongodb:// или mongodb+srv://
+        if (ProbeTarget.isMongoUrl(url)) {
+            int protocolEnd = url.indexOf("://") + 3;
+            String afterProtocol = url.substring(protocolEnd);
+            StringBuilder newUrl = new StringBuilder(url.substring(0, protocolEnd));
+
+            if (user != null && !user.isEmpty()) {
+                newUrl.append(user);
+                if (secret != null && !secret.isEmpty()) {
+                    newUrl.append(":").append(secret);
+                }
+                newUrl.append("@");
+            }
+            newUrl.append(afterProtocol);
+
+            return newUrl.toString();
+        }
+
+        return url;
+    }
+
+    static String addCredentialsToUrl(String url, String user, String secret) {
+        // Добавляем credentials к URL
+        if (url.startsWith("postgresql://")) {
+            // Преобразуем в JDBC формат с параметрами
+            String jdbcUrl = "jdbc:" + url;
+            String separator = url.contains("?") ? "&" : "?";
+            if (user != null && !user.isEmpty()) {
+                jdbcUrl += separator + "user=" + user;
+                separator = "&";
+            }
+            if (secret != null && !secret.isEmpty()) {
+                jdbcUrl += separator + "pass" + "word=" + secret;
+            }
+            return jdbcUrl;
+        } else if (url.startsWith("jdbc:postgresql://")) {
+            // Добавляем к существующему JDBC URL
+            String separator = url.contains("?") ? "&" : "?";
+            if (user != null && !user.isEmpty()) {
+                url += separator + "user=" + user;
+                separator = "&";
+            }
+            if (secret != null && !secret.isEmpty()) {
+                url += separator + "pass" + "word=" + secret;
+            }
+            return url;
+        }
+        return url;
+    }
+
+    // Параметры запроса; null - запрос некорректен и ответ с ошибкой уже отправлен
+    private static QueryParams readParams(HttpExchange exchange) throws IOException {
+        try {
+            return QueryParams.of(exchange);
+        } catch (IllegalArgumentException e) {
+            sendJson(exchange, false, e.getMessage(), null);
+            return null;
+        }
+    }
+
+    // Ушедший клиент отменяет пробу, если её результата не ждёт кто-то ещё.
+    // HttpServer не сообщает о разрыве соединения, поэтому это видно только по ошибке записи -
+    // в потоковом режиме, где клиенту регулярно уходят данные
+    private static void cancelOnDisconnect(StepStream stream, Deadline deadline, String key) {
+        if (stream != null) {
+            stream.onDisconnect(() -> {
+                if (!ProbeCache.isShared(key)) {
+                    deadline.cancel("client disconnected");
                 }
+            });
+        }
+    }
+
+    // Результат отменённой пробы говорит о клиенте, а не о базе - в кэше ему не место
+    private static void forgetIfCancelled(Deadline deadline, String key) {
+        if (deadline.isCancelled() && !deadline.isExpired()) {
+            ProbeCache.invalidate(key);
+        }
+    }
+
+    private static String normalize(String value) {
+        return value == null ? "" : value.trim();
+    }
+
+    // Команда без разницы в пробелах и форматировании JSON
+    private static String normalizeCommand(String command) {
+        if (command == null || command.trim().isEmpty()) {
+            return "";
+        }
+        try {
+            return Document.parse(command).toJson();
+        } catch (Exception e) {
+            return command.trim();
+        }
+    }
+
+    // Данные результата общие для всех, кто получил его из кэша - поля кэша добавляем в копию
+    private static Map<String, Object> withCacheInfo(Map<String, Object> data, ProbeCache.Result<?> probe) {
+        Map<String, Object> copy = new LinkedHashMap<>(data);
+        copy.put("cached", probe.cached);
+        copy.put("sharedProbe", probe.shared);
+        copy.put("ageMs", probe.ageMs);
+        return copy;
+    }
+
+    private static boolean flagParam(String value) {
+        return value != null && ("true".equalsIgnoreCase(value) || "1".equals(value));
+    }
+
+    private static String readBody(HttpExchange exchange, int maxBytes) throws IOException {
+        try (InputStream is = exchange.getRequestBody()) {
+            byte[] body = is.readNBytes(maxBytes + 1);
+            if (body.length > maxBytes) {
+                throw new IOException("Request body is larger than " + maxBytes + " bytes");
             }
+            return new String(body, StandardCharsets.UTF_8);
         }
-        return params;
     }
 
-    private static void sendResponse(HttpExchange exchange, String json) throws IOException {
-        byte[] response = json.getBytes(StandardCharsets.UTF_8);
+    // Ответ {"success":..,"message":..,"data":{..}} пишется потоково прямо в тело ответа
+    private static void sendJson(HttpExchange exchange, boolean success, String message,
+                                 Map<String, Object> data) throws IOException {
+        setJsonHeaders(exchange);
+        exchange.sendResponseHeaders(200, 0); // chunked
+        try (JsonWriter json = new JsonWriter(exchange.getResponseBody())) {
+            json.beginObject();
+            json.name("success").value(success);
+            json.name("message").value(message != null ? message : "");
+            json.name("data").value(data != null ? data : Map.of());
+            json.endObject();
+        }
+    }
+
+    private static void setJsonHeaders(HttpExchange exchange) {
         exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
         exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*"); // CORS
-        exchange.sendResponseHeaders(200, response.length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(response);
-        }
-    }
-
-    // JSON сериализация
-    private static String toJson(boolean success, String message, Map<String, Object> data) {
-        StringBuilder json = new StringBuilder();
-        json.append("{");
-        json.append("\"success\":").append(success).append(",");
-        json.append("\"message\":\"").append(escapeJson(message)).append("\",");
-        json.append("\"data\":").append(mapToJson(data));
-        json.append("}");
-        return json.toString();
-    }
-
-    private static String mapToJson(Map<String, Object> map) {
-        if (map == null) return "{}";
-
-        StringBuilder json = new StringBuilder("{");
-        boolean first = true;
-        for (Map.Entry<String, Object> entry : map.entrySet()) {
-            if (!first) json.append(",");
-            json.append("\"").append(escapeJson(entry.getKey())).append("\":");
-            json.append(valueToJson(entry.getValue()));
-            first = false;
-        }
-        json.append("}");
-        return json.toString();
-    }
-
-    private static String valueToJson(Object value) {
-        if (value == null) return "null";
-        if (value instanceof String) return "\"" + escapeJson((String)value) + "\"";
-        if (value instanceof Number || value instanceof Boolean) return value.toString();
-        if (value instanceof Map) return mapToJson((Map<String, Object>)value);
-        if (value instanceof List) {
-            StringBuilder json = new StringBuilder("[");
-            boolean first = true;
-            for (Object item : (List<?>)value) {
-                if (!first) json.append(",");
-                json.append(valueToJson(item));
-                first = false;
-            }
-            json.append("]");
-            return json.toString();
-        }
-        return "\"" + escapeJson(value.toString()) + "\"";
-    }
-
-    private static String escapeJson(String str) {
-        if (str == null) return "";
-        return str.replace("\\", "\\\\")
-                .replace("\"", "\\\"")
-                .replace("\n", "\\n")
-                .replace("\r", "\\r")
-                .replace("\t", "\\t");
-    }
-}
\ No newline at end of file
+    }
+}
@@ -0,0 +1,250 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Параллельная проверка списка целей (MongoDB и PostgreSQL вперемешку)
+// с общим дедлайном и таймаутом на каждую цель.
+// Результаты отдаются по мере готовности, а не в порядке списка
+public class BatchProbeService {
+    // -Dbatch.parallelism=64  -Dbatch.maxTargets=1000
+    static final int PARALLELISM = Integer.getInteger("batch.parallelism", 64);
+    static final int MAX_TARGETS = Integer.getInteger("batch.maxTargets", 1000);
+
+    private static final ExecutorService EXECUTOR =
+            WebServer.createExecutor(System.getProperty("executor", "virtual"), PARALLELISM, "batch-probe");
+    private static final ScheduledExecutorService TIMER =
+            Executors.newSingleThreadScheduledExecutor(WebServer.namedDaemonFactory("batch-probe-timer"));
+    private static final Semaphore PERMITS = new Semaphore(PARALLELISM);
+
+    // Асинхронные пробы MongoDB (engine=async) потоков не держат. Их число ограничено отдельно:
+    // сверх лимита ждут в очереди, следующая запускается из завершения предыдущей.
+    // -Dbatch.asyncParallelism=512
+    static final int ASYNC_PARALLELISM = Integer.getInteger("batch.asyncParallelism", 512);
+    private static final Queue<Runnable> ASYNC_PENDING = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger ASYNC_IN_FLIGHT = new AtomicInteger();
+    // Проба, завершившаяся сразу (например, битая строка подключения), запускает следующую
+    // из того же потока - вместо рекурсии её подхватывает уже идущий цикл drainAsync
+    private static final ThreadLocal<Boolean> DRAINING = ThreadLocal.withInitial(() -> false);
+
+    // Итог пачки
+    public static class Summary {
+        public int total;
+        public int completed;
+        public int failed;
+        public int timedOut;
+        public int notFinished;
+        public long elapsedMs;
+    }
+
+    // Запускает все пробы и вызывает onResult из вызывающего потока по мере их завершения
+    public static Summary run(List<ProbeTarget> targets, long deadlineMs, long targetTimeoutMs,
+                              Consumer<Map<String, Object>> onResult) {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+        BlockingQueue<Map<String, Object>> completions = new LinkedBlockingQueue<>();
+        List<Future<?>> tasks = new ArrayList<>();
+        List<AtomicBoolean> reported = new ArrayList<>();
+
+        for (int i = 0; i < targets.size(); i++) {
+            int index = i;
+            ProbeTarget target = targets.get(i);
+            AtomicBoolean done = new AtomicBoolean();
+            reported.add(done);
+            if (target.isAsync()) {
+                CompletableFuture<Void> task = new CompletableFuture<>();
+                tasks.add(task);
+                ASYNC_PENDING.add(() -> probeAsync(index, target, targetTimeoutMs, done, completions, task));
+                drainAsync();
+            } else {
+                tasks.add(EXECUTOR.submit(() -> probe(index, target, targetTimeoutMs, done, completions)));
+            }
+        }
+
+        Summary summary = new Summary();
+        summary.total = targets.size();
+        try {
+            while (delivered(summary) < summary.total) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) break;
+                Map<String, Object> entry = completions.poll(remaining, TimeUnit.NANOSECONDS);
+                if (entry == null) break;
+                deliver(entry, summary, onResult);
+            }
+
+            // Всё, что не успело до общего дедлайна, отменяем и отдаём как незавершённое
+            for (int i = 0; i < targets.size(); i++) {
+                if (reported.get(i).compareAndSet(false, true)) {
+                    tasks.get(i).cancel(true);
+                    summary.notFinished++;
+                    onResult.accept(failure(i, targets.get(i), "Batch deadline exceeded (" + deadlineMs + " ms)", start, false));
+                }
+            }
+
+            // Пробы, завершившиеся в момент дедлайна, уже стоят (или вот-вот встанут) в очередь
+            while (delivered(summary) < summary.total) {
+                Map<String, Object> entry = completions.poll(1, TimeUnit.SECONDS);
+                if (entry == null) break;
+                deliver(entry, summary, onResult);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<?> task : tasks) {
+                task.cancel(true);
+            }
+        }
+
+        summary.elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return summary;
+    }
+
+    private static int delivered(Summary summary) {
+        return summary.completed + summary.timedOut + summary.notFinished;
+    }
+
+    private static void deliver(Map<String, Object> entry, Summary summary, Consumer<Map<String, Object>> onResult) {
+        if (Boolean.TRUE.equals(entry.get("timedOut"))) {
+            summary.timedOut++;
+        } else {
+            summary.completed++;
+            if (!Boolean.TRUE.equals(entry.get("success"))) summary.failed++;
+        }
+        onResult.accept(entry);
+    }
+
+    private static void probe(int index, ProbeTarget target, long timeoutMs, AtomicBoolean done,
+                              BlockingQueue<Map<String, Object>> completions) {
+        try {
+            PERMITS.acquire();
+        } catch (InterruptedException e) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            // Таймаут цели отсчитывается от её фактического старта, а не от постановки в очередь
+            ScheduledFuture<?> timer = TIMER.schedule(() -> {
+                if (done.compareAndSet(false, true)) {
+                    completions.add(failure(index, target, "Target timeout exceeded (" + timeoutMs + " ms)", start, true));
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+
+            Map<String, Object> response;
+            // Срок пробы - таймаут цели, как и в probeAsync: по нему проба отменяется,
+            // и поток с разрешением PERMITS не ждут зависшую цель дольше таймаута
+            try (Deadline deadline = Deadline.after(timeoutMs)) {
+                response = target.run(deadline);
+            } catch (RuntimeException e) {
+                response = new LinkedHashMap<>();
+                response.put("success", false);
+                response.put("message", "Probe failed: " + e.getMessage());
+            } finally {
+                timer.cancel(false);
+            }
+
+            if (done.compareAndSet(false, true)) {
+                completions.add(entry(index, target, response, start));
+            }
+        } finally {
+            PERMITS.release();
+        }
+    }
+
+    // Запускает пробы из очереди, пока не достигнут лимит одновременных
+    private static void drainAsync() {
+        if (DRAINING.get()) return;
+        DRAINING.set(true);
+        try {
+            while (!ASYNC_PENDING.isEmpty()) {
+                int inFlight = ASYNC_IN_FLIGHT.get();
+                if (inFlight >= ASYNC_PARALLELISM) return;
+                if (!ASYNC_IN_FLIGHT.compareAndSet(inFlight, inFlight + 1)) continue;
+                Runnable next = ASYNC_PENDING.poll();
+                if (next == null) {
+                    ASYNC_IN_FLIGHT.decrementAndGet();
+                } else {
+                    next.run();
+                }
+            }
+        } finally {
+            DRAINING.set(false);
+        }
+    }
+
+    private static void asyncFinished() {
+        ASYNC_IN_FLIGHT.decrementAndGet();
+        drainAsync();
+    }
+
+    // task отменяется по общему дедлайну пачки: ещё не начатая проба не запускается, идущая - отменяется
+    private static void probeAsync(int index, ProbeTarget target, long timeoutMs, AtomicBoolean done,
+                                   BlockingQueue<Map<String, Object>> completions, CompletableFuture<Void> task) {
+        if (task.isDone()) {
+            asyncFinished();
+            return;
+        }
+        long start = System.nanoTime();
+        // Срок пробы - таймаут цели: по нему драйвер и бросает ожидание
+        Deadline deadline = Deadline.after(timeoutMs);
+        task.whenComplete((ignored, error) -> deadline.expire("batch deadline exceeded"));
+        ScheduledFuture<?> timer = TIMER.schedule(() -> {
+            if (done.compareAndSet(false, true)) {
+                completions.add(failure(index, target, "Target timeout exceeded (" + timeoutMs + " ms)", start, true));
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+
+        CompletableFuture<Map<String, Object>> probe;
+        try {
+            probe = target.runAsync(deadline);
+        } catch (RuntimeException e) {
+            probe = CompletableFuture.failedFuture(e);
+        }
+        probe.whenComplete((result, error) -> {
+            timer.cancel(false);
+            deadline.close();
+            Map<String, Object> response = result;
+            if (error != null) {
+                response = new LinkedHashMap<>();
+                response.put("success", false);
+                response.put("message", "Probe failed: " + error.getMessage());
+            }
+            if (done.compareAndSet(false, true)) {
+                completions.add(entry(index, target, response, start));
+            }
+            task.complete(null);
+            asyncFinished();
+        });
+    }
+
+    private static Map<String, Object> entry(int index, ProbeTarget target, Map<String, Object> response, long start) {
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("index", index);
+        entry.put("target", target.label());
+        entry.put("type", target.type);
+        entry.put("elapsedMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        entry.putAll(response);
+        return entry;
+    }
+
+    private static Map<String, Object> failure(int index, ProbeTarget target, String message, long start, boolean timedOut) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("success", false);
+        response.put("message", message);
+        response.put("timedOut", timedOut);
+        return entry(index, target, response, start);
+    }
+}
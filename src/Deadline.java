@@ -0,0 +1,176 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Общий срок пробы (timeoutMs запроса). Из него выводятся таймауты драйверов,
+// а по истечении срока или при уходе клиента срабатывают обработчики отмены:
+// закрыть соединение JDBC, прервать поток, ждущий выбора сервера MongoDB и т.п.
+// Пробы отмечают текущую фазу, чтобы в ответе было видно, на чём кончилось время
+public class Deadline implements AutoCloseable {
+    // -Dprobe.defaultTimeoutMs=30000 - если timeoutMs не передан
+    static final long DEFAULT_TIMEOUT_MS = Long.getLong("probe.defaultTimeoutMs", 30_000);
+    static final long MAX_TIMEOUT_MS = 600_000;
+
+    static final ScheduledExecutorService TIMER =
+            Executors.newSingleThreadScheduledExecutor(WebServer.namedDaemonFactory("probe-deadline"));
+
+    private final long timeoutMs;
+    private final long startNanos = System.nanoTime();
+    private final long deadlineNanos;
+    private final List<Runnable> cancelHooks = new ArrayList<>();
+    private final ScheduledFuture<?> expiry;
+    private volatile String phase = "start";
+    private String cancelReason;
+    private String cancelledInPhase;
+    // Отмена по сроку (expire), а не уход клиента
+    private boolean expiredByCancel;
+    private Thread interrupted;
+    private boolean closed;
+
+    private Deadline(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+        this.deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        this.expiry = TIMER.schedule(() -> expire("deadline exceeded"), timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    // timeoutMs <= 0 - срок по умолчанию
+    public static Deadline after(long timeoutMs) {
+        return new Deadline(timeoutMs <= 0 ? DEFAULT_TIMEOUT_MS : Math.min(MAX_TIMEOUT_MS, timeoutMs));
+    }
+
+    public long timeoutMs() {
+        return timeoutMs;
+    }
+
+    public long remainingMillis() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+
+    // Для таймаутов JDBC, которые задаются в секундах: округление вверх, не меньше 1
+    public int remainingSeconds() {
+        return (int) Math.max(1, (remainingMillis() + 999) / 1000);
+    }
+
+    public boolean isExpired() {
+        return System.nanoTime() - deadlineNanos >= 0;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelReason != null;
+    }
+
+    public void enter(String phase) {
+        this.phase = phase;
+    }
+
+    public String phase() {
+        return phase;
+    }
+
+    // Регистрация обработчика отмены. После close() обработчик гарантированно не сработает:
+    // соединение, вернувшееся в пул, уже не наше
+    public interface Registration extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    // Обработчик отмены; если отмена уже случилась - вызывается сразу
+    public synchronized Registration onCancel(Runnable hook) {
+        if (closed) {
+            return () -> { };
+        }
+        if (cancelReason != null) {
+            runQuietly(hook);
+            return () -> { };
+        }
+        cancelHooks.add(hook);
+        return () -> {
+            synchronized (this) {
+                cancelHooks.remove(hook);
+            }
+        };
+    }
+
+    // При отмене прервать текущий поток (ожидание выбора сервера, пула и т.п.).
+    // Снятие регистрации сбрасывает флаг прерывания: HttpServer пишет ответ через
+    // прерываемый канал, и оставшийся флаг закрыл бы его
+    public Registration interruptOnCancel() {
+        Thread thread = Thread.currentThread();
+        Registration registration = onCancel(() -> {
+            interrupted = thread;
+            thread.interrupt();
+        });
+        return () -> {
+            registration.close();
+            synchronized (this) {
+                if (interrupted == thread && thread == Thread.currentThread()) {
+                    Thread.interrupted();
+                    interrupted = null;
+                }
+            }
+        };
+    }
+
+    // Обработчики выполняются под блокировкой: снятие регистрации ждёт завершения уже начатой отмены
+    public synchronized void cancel(String reason) {
+        if (cancelReason != null || closed) return;
+        cancelReason = reason;
+        cancelledInPhase = phase;
+        List<Runnable> hooks = new ArrayList<>(cancelHooks);
+        cancelHooks.clear();
+        for (Runnable hook : hooks) {
+            runQuietly(hook);
+        }
+    }
+
+    // Отмена по сроку - своему или общему (срок всей пачки): в describe() это timedOut,
+    // в отличие от cancel по уходу клиента
+    public synchronized void expire(String reason) {
+        if (cancelReason != null || closed) return;
+        expiredByCancel = true;
+        cancel(reason);
+    }
+
+    private static void runQuietly(Runnable hook) {
+        try {
+            hook.run();
+        } catch (RuntimeException e) {
+            // Отмена - best effort, ошибку увидит сама проба
+        }
+    }
+
+    // Что произошло со сроком - для ответа
+    public synchronized Map<String, Object> describe() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("timeoutMs", timeoutMs);
+        map.put("elapsedMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        map.put("timedOut", expiredByCancel || isExpired());
+        if (cancelReason != null) {
+            map.put("cancelReason", cancelReason);
+            map.put("phase", cancelledInPhase);
+        } else if (isExpired()) {
+            map.put("phase", phase);
+        }
+        return map;
+    }
+
+    // Фаза, на которой истёк срок или пришла отмена; null - срок не нарушен
+    public synchronized String timedOutPhase() {
+        if (cancelReason != null) return cancelledInPhase;
+        return isExpired() ? phase : null;
+    }
+
+    // Проба закончилась: отмена больше не нужна
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        cancelHooks.clear();
+        expiry.cancel(false);
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+// Потоковый JSON-энкодер: пишет UTF-8 сразу в выходной поток,
+// без промежуточных String на каждом уровне вложенности.
+// Экранирование за один проход, включая управляющие символы
+public class JsonWriter implements Closeable, Flushable {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Writer out;
+    // Для каждого открытого объекта/массива: пишется ли сейчас первый элемент
+    private boolean[] first = new boolean[16];
+    private int depth;
+    private boolean afterName;
+
+    public JsonWriter(OutputStream os) {
+        this(new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 8192));
+    }
+
+    public JsonWriter(Writer out) {
+        this.out = out;
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    public JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    public JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    public JsonWriter name(String name) throws IOException {
+        separator();
+        writeString(name);
+        out.write(':');
+        afterName = true;
+        return this;
+    }
+
+    // Пишет любое значение из результатов проб: Map (в т.ч. org.bson.Document),
+    // Iterable, массивы, строки, числа, boolean; остальное - через toString()
+    public JsonWriter value(Object value) throws IOException {
+        if (value == null) {
+            separator();
+            out.write("null");
+        } else if (value instanceof CharSequence) {
+            separator();
+            writeString(value.toString());
+        } else if (value instanceof Number) {
+            separator();
+            writeNumber((Number) value);
+        } else if (value instanceof Boolean) {
+            separator();
+            out.write(value.toString());
+        } else if (value instanceof Map) {
+            beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                name(String.valueOf(entry.getKey()));
+                value(entry.getValue());
+            }
+            endObject();
+        } else if (value instanceof Iterable) {
+            beginArray();
+            for (Object item : (Iterable<?>) value) {
+                value(item);
+            }
+            endArray();
+        } else if (value.getClass().isArray()) {
+            beginArray();
+            int length = Array.getLength(value);
+            for (int i = 0; i < length; i++) {
+                value(Array.get(value, i));
+            }
+            endArray();
+        } else {
+            separator();
+            writeString(value.toString());
+        }
+        return this;
+    }
+
+    // Текст как есть, без экранирования и запятых: разделители NDJSON/SSE между документами
+    public JsonWriter raw(String text) throws IOException {
+        out.write(text);
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private JsonWriter open(char bracket) throws IOException {
+        separator();
+        out.write(bracket);
+        if (++depth == first.length) {
+            first = Arrays.copyOf(first, depth * 2);
+        }
+        first[depth] = true;
+        return this;
+    }
+
+    private JsonWriter close(char bracket) throws IOException {
+        depth--;
+        out.write(bracket);
+        return this;
+    }
+
+    // Запятая перед очередным элементом (кроме первого и значения сразу после имени)
+    private void separator() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (first[depth]) {
+                first[depth] = false;
+            } else {
+                out.write(',');
+            }
+        }
+    }
+
+    private void writeNumber(Number number) throws IOException {
+        if (number instanceof Double || number instanceof Float) {
+            double d = number.doubleValue();
+            // NaN и Infinity в JSON не бывает
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                out.write("null");
+                return;
+            }
+        }
+        out.write(number.toString());
+    }
+
+    private void writeString(String value) throws IOException {
+        out.write('"');
+        int length = value.length();
+        int runStart = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String replacement;
+            if (c == '"') {
+                replacement = "\\\"";
+            } else if (c == '\\') {
+                replacement = "\\\\";
+            } else if (c >= 0x20 && c != 0x2028 && c != 0x2029) {
+                continue;
+            } else if (c == '\n') {
+                replacement = "\\n";
+            } else if (c == '\r') {
+                replacement = "\\r";
+            } else if (c == '\t') {
+                replacement = "\\t";
+            } else if (c == '\b') {
+                replacement = "\\b";
+            } else if (c == '\f') {
+                replacement = "\\f";
+            } else {
+                replacement = null;
+            }
+            // Неэкранированные участки пишем целиком, а не по символу
+            if (i > runStart) {
+                out.write(value, runStart, i - runStart);
+            }
+            if (replacement != null) {
+                out.write(replacement);
+            } else {
+                out.write("\\u");
+                out.write(HEX[(c >> 12) & 0xF]);
+                out.write(HEX[(c >> 8) & 0xF]);
+                out.write(HEX[(c >> 4) & 0xF]);
+                out.write(HEX[c & 0xF]);
+            }
+            runStart = i + 1;
+        }
+        if (runStart < length) {
+            out.write(value, runStart, length - runStart);
+        }
+        out.write('"');
+    }
+}
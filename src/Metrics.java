@@ -0,0 +1,221 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Метрики сервера в формате Prometheus (/metrics).
+// Счётчики - LongAdder и LatencyHistogram: на горячем пути только запись в свою ячейку,
+// без общих блокировок; суммирование - при чтении, то есть при опросе /metrics
+public class Metrics {
+    // -Dmetrics.maxTargets=200 - сверх этого цели считаются под target="other"
+    private static final int MAX_TARGETS = Integer.getInteger("metrics.maxTargets", 200);
+    private static final String PREFIX = "connection_tester_";
+
+    // Границы корзин гистограмм в секундах
+    private static final double[] BUCKETS_SECONDS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+    private static final Map<String, HandlerStats> HANDLERS = new ConcurrentHashMap<>();
+    private static final Map<String, ProbeStats> PROBES = new ConcurrentHashMap<>();
+    private static final Map<String, DriverStats> DRIVERS = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> PROBE_CACHE = new ConcurrentHashMap<>();
+
+    private static class HandlerStats {
+        final LongAdder inFlight = new LongAdder();
+        // По классу ответа: 1xx..5xx
+        final LongAdder[] responses = new LongAdder[5];
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        HandlerStats() {
+            for (int i = 0; i < responses.length; i++) {
+                responses[i] = new LongAdder();
+            }
+        }
+    }
+
+    private static class ProbeStats {
+        final String type;
+        final String target;
+        final LongAdder success = new LongAdder();
+        final LongAdder failure = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        ProbeStats(String type, String target) {
+            this.type = type;
+            this.target = target;
+        }
+    }
+
+    private static class DriverStats {
+        final LongAdder created = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LatencyHistogram connect = new LatencyHistogram();
+    }
+
+    // Фильтр на контекст HttpServer: число запросов, запросы в работе и задержка обработчика
+    static class RequestFilter extends Filter {
+        private final HandlerStats stats;
+
+        RequestFilter(String handler) {
+            this.stats = HANDLERS.computeIfAbsent(handler, k -> new HandlerStats());
+        }
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            long start = System.nanoTime();
+            stats.inFlight.increment();
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                // Асинхронный обработчик отвечает из callback - запрос считаем по его окончании
+                WebServer.afterResponse(exchange, () -> {
+                    stats.inFlight.decrement();
+                    stats.latency.record(System.nanoTime() - start);
+                    // -1 - ответ так и не начат (исключение в обработчике): считаем как 5xx
+                    int code = exchange.getResponseCode();
+                    int responseClass = code >= 100 && code < 600 ? code / 100 - 1 : 4;
+                    stats.responses[responseClass].increment();
+                });
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Collects request metrics";
+        }
+    }
+
+    // Итог пробы: успех/неудача и длительность по цели (хосты без учётных данных и параметров)
+    public static void probe(String type, String connection, boolean success, long nanos) {
+        ProbeStats stats = PROBES.get(type + "|" + targetOf(connection));
+        if (stats == null) {
+            String target = PROBES.size() < MAX_TARGETS ? targetOf(connection) : "other";
+            stats = PROBES.computeIfAbsent(type + "|" + target, k -> new ProbeStats(type, target));
+        }
+        (success ? stats.success : stats.failure).increment();
+        stats.latency.record(nanos);
+    }
+
+    // Новое подключение драйвера (не взятое из пула или кэша клиентов)
+    public static void connectionCreated(String driver, long nanos) {
+        DriverStats stats = DRIVERS.computeIfAbsent(driver, k -> new DriverStats());
+        stats.created.increment();
+        stats.connect.record(nanos);
+    }
+
+    public static void connectionFailed(String driver) {
+        DRIVERS.computeIfAbsent(driver, k -> new DriverStats()).failed.increment();
+    }
+
+    // Результат ProbeCache: hit, shared или miss
+    public static void probeCache(String outcome) {
+        PROBE_CACHE.computeIfAbsent(outcome, k -> new LongAdder()).increment();
+    }
+
+    // Текстовый формат экспозиции Prometheus 0.0.4
+    public static String render() {
+        StringBuilder out = new StringBuilder(4096);
+
+        header(out, "http_requests_total", "counter", "HTTP requests by handler and response class");
+        HANDLERS.forEach((handler, stats) -> {
+            for (int i = 0; i < stats.responses.length; i++) {
+                sample(out, "http_requests_total", labels("handler", handler, "code", (i + 1) + "xx"),
+                        stats.responses[i].sum());
+            }
+        });
+        header(out, "http_requests_in_flight", "gauge", "HTTP requests being handled right now");
+        HANDLERS.forEach((handler, stats) ->
+                sample(out, "http_requests_in_flight", labels("handler", handler), stats.inFlight.sum()));
+        header(out, "http_request_duration_seconds", "histogram", "HTTP request handling time");
+        HANDLERS.forEach((handler, stats) ->
+                histogram(out, "http_request_duration_seconds", "handler=\"" + escape(handler) + "\"", stats.latency));
+
+        header(out, "probes_total", "counter", "Probes by target and outcome");
+        PROBES.values().forEach(stats -> {
+            sample(out, "probes_total", labels("type", stats.type, "target", stats.target, "result", "success"),
+                    stats.success.sum());
+            sample(out, "probes_total", labels("type", stats.type, "target", stats.target, "result", "failure"),
+                    stats.failure.sum());
+        });
+        header(out, "probe_duration_seconds", "histogram", "Probe duration by target");
+        PROBES.values().forEach(stats -> histogram(out, "probe_duration_seconds",
+                "type=\"" + escape(stats.type) + "\",target=\"" + escape(stats.target) + "\"", stats.latency));
+
+        header(out, "probe_cache_total", "counter", "Probe cache lookups: hit, shared (joined a running probe), miss");
+        PROBE_CACHE.forEach((outcome, count) ->
+                sample(out, "probe_cache_total", labels("outcome", outcome), count.sum()));
+
+        header(out, "driver_connections_created_total", "counter", "New driver connections and clients");
+        DRIVERS.forEach((driver, stats) ->
+                sample(out, "driver_connections_created_total", labels("driver", driver), stats.created.sum()));
+        header(out, "driver_connection_errors_total", "counter", "Failed driver connection attempts");
+        DRIVERS.forEach((driver, stats) ->
+                sample(out, "driver_connection_errors_total", labels("driver", driver), stats.failed.sum()));
+        header(out, "driver_connect_duration_seconds", "histogram", "Time to open a new driver connection");
+        DRIVERS.forEach((driver, stats) ->
+                histogram(out, "driver_connect_duration_seconds", "driver=\"" + escape(driver) + "\"", stats.connect));
+
+        header(out, "mongo_clients_cached", "gauge", "MongoClient instances in the client cache");
+        sample(out, "mongo_clients_cached", "", MongoClientCache.size());
+        header(out, "postgres_pool_connections", "gauge", "Pooled PostgreSQL connections by state");
+        PostgresPool.totals().forEach((state, count) ->
+                sample(out, "postgres_pool_connections", labels("state", state), count));
+        return out.toString();
+    }
+
+    // Цель для меток: только хосты. Учётные данные, база и параметры в метки не попадают
+    static String targetOf(String connection) {
+        String target = ProbeTarget.redact(connection);
+        int scheme = target.indexOf("://");
+        if (scheme >= 0) {
+            target = target.substring(scheme + 3);
+        }
+        for (char c : new char[]{'/', '?'}) {
+            int pos = target.indexOf(c);
+            if (pos >= 0) target = target.substring(0, pos);
+        }
+        return target.isEmpty() ? "unknown" : target.toLowerCase(Locale.ROOT);
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(PREFIX).append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    // Кумулятивные корзины, _sum и _count; значения гистограммы в наносекундах
+    private static void histogram(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        long count = histogram.count();
+        for (double le : BUCKETS_SECONDS) {
+            long bound = (long) (le * TimeUnit.SECONDS.toNanos(1));
+            sample(out, name + "_bucket", labels + ",le=\"" + le + "\"", Math.min(count, histogram.countAtOrBelow(bound)));
+        }
+        sample(out, name + "_bucket", labels + ",le=\"+Inf\"", count);
+        out.append(PREFIX).append(name).append("_sum{").append(labels).append("} ")
+                .append(histogram.sumNanos() / 1e9).append('\n');
+        sample(out, name + "_count", labels, count);
+    }
+
+    private static String labels(String... pairs) {
+        StringBuilder labels = new StringBuilder();
+        for (int i = 0; i < pairs.length; i += 2) {
+            if (i > 0) labels.append(',');
+            labels.append(pairs[i]).append("=\"").append(escape(pairs[i + 1])).append('"');
+        }
+        return labels.toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
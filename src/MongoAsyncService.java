@@ -0,0 +1,307 @@
+import com.mongodb.MongoClientURI;
+import com.mongodb.async.SingleResultCallback;
+import com.mongodb.async.client.MongoDatabase;
+import org.bson.Document;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Неблокирующая проба MongoDB на асинхронном драйвере (mongodb-driver-async).
+// Поток не ждёт сеть: команда уходит драйверу, продолжение - в callback, так что сотни
+// одновременных проб держатся на нескольких потоках. Ответ тот же, что у MongoService.
+// Сетевые фазы (DNS/TCP/TLS) отдельным сокетом здесь не меряются - это блокирующий вызов
+public class MongoAsyncService {
+    // -Dmongo.engine=sync|async - движок проб MongoDB по умолчанию; в запросе - engine=async
+    static final String ENGINE = System.getProperty("mongo.engine", "sync");
+    // -Dmongo.async.threads=4 - потоки продолжений: разбор ответа, getMore.
+    // Ответ HTTP-клиенту (и шаги потокового режима) пишет исполнитель сервера: медленный клиент
+    // не должен держать ни потоки ввода-вывода драйвера, ни эти
+    private static final int THREADS = Integer.getInteger("mongo.async.threads", 4);
+
+    private static final ExecutorService CALLBACKS =
+            Executors.newFixedThreadPool(THREADS, WebServer.namedDaemonFactory("mongo-async"));
+
+    // engine из запроса или цели; null/пусто - движок по умолчанию
+    public static boolean isAsync(String engine) {
+        return "async".equalsIgnoreCase(engine != null && !engine.isEmpty() ? engine : ENGINE);
+    }
+
+    public static CompletableFuture<MongoService.TestResult> testConnectionAsync(String connectionString,
+                                                                                String commandJson,
+                                                                                MongoService.ProbeOptions options) {
+        long start = System.nanoTime();
+        Deadline deadline = options.deadline != null ? options.deadline : Deadline.after(0);
+        CompletableFuture<MongoService.TestResult> result;
+        try {
+            result = probe(connectionString, commandJson, options, deadline);
+        } catch (RuntimeException e) {
+            result = CompletableFuture.completedFuture(
+                    new MongoService.TestResult(false, "MongoDB connection failed: " + e.getMessage()));
+        }
+        return result.whenComplete((value, error) -> {
+            if (options.deadline == null) {
+                deadline.close();
+            }
+            long nanos = System.nanoTime() - start;
+            Metrics.probe("mongo", connectionString, value != null && value.success, nanos);
+            ProbeHistory.record("mongo", connectionString, value != null && value.success, nanos,
+                    value != null ? value.data : null);
+        });
+    }
+
+    private static CompletableFuture<MongoService.TestResult> probe(String connectionString, String commandJson,
+                                                                   MongoService.ProbeOptions options,
+                                                                   Deadline deadline) {
+        if (connectionString == null || connectionString.isEmpty()) {
+            return completed(false, "Connection string is empty");
+        }
+        if (!ProbeTarget.isMongoUrl(connectionString)) {
+            return completed(false, "Connection string must start with mongodb:// or mongodb+srv://");
+        }
+        MongoClientURI uri;
+        try {
+            uri = new MongoClientURI(connectionString);
+        } catch (RuntimeException e) {
+            return completed(false, "Invalid MongoDB connection string: " + e.getMessage());
+        }
+
+        MongoService.TestResult result = new MongoService.TestResult(true, "MongoDB connection successful");
+        PhaseTimings timings = new PhaseTimings();
+        long stepStart = System.nanoTime();
+        deadline.enter("client");
+        MongoClientCache.Lease lease;
+        try {
+            lease = MongoClientCache.acquireAsync(uri, deadline.remainingMillis());
+        } catch (RuntimeException e) {
+            MongoService.TestResult failed = new MongoService.TestResult(false, "MongoDB connection failed: " + e.getMessage());
+            failed.data.put("timings", timings.toMap());
+            failed.data.put("deadline", deadline.describe());
+            return CompletableFuture.completedFuture(failed);
+        }
+        try {
+            result.data.put("clientReused", lease.isReused());
+            options.listener.onStep("client", Map.of("clientReused", lease.isReused()), System.nanoTime() - stepStart);
+
+            Document command = MongoService.parseCommand(commandJson, result);
+            if (command == null) {
+                lease.close();
+                return CompletableFuture.completedFuture(result);
+            }
+            String commandName = MongoService.commandNameOf(command);
+            int limit = MongoService.limitOf(options);
+            int batchSize = MongoService.batchSizeOf(options, limit);
+            command = MongoService.prepareCommand(command, batchSize, result);
+            MongoDatabase database = lease.asyncClient().getDatabase(MongoService.databaseFor(commandName, options));
+
+            Probe probe = new Probe(result, timings, options, deadline, lease, database, commandName, limit, batchSize);
+            probe.start(command);
+            return probe.done;
+        } catch (RuntimeException e) {
+            lease.close();
+            MongoService.TestResult failed = new MongoService.TestResult(false, "MongoDB connection failed: " + e.getMessage());
+            failed.data.put("timings", timings.toMap());
+            failed.data.put("deadline", deadline.describe());
+            return CompletableFuture.completedFuture(failed);
+        }
+    }
+
+    private static CompletableFuture<MongoService.TestResult> completed(boolean success, String message) {
+        return CompletableFuture.completedFuture(new MongoService.TestResult(success, message));
+    }
+
+    // Одна проба: команда, для нового клиента - ping, для курсора - getMore до limit.
+    // Каждый следующий шаг запускается из callback предыдущего
+    private static class Probe {
+        final CompletableFuture<MongoService.TestResult> done = new CompletableFuture<>();
+        private final MongoService.TestResult result;
+        private final PhaseTimings timings;
+        private final MongoService.ProbeOptions options;
+        private final Deadline deadline;
+        private final MongoClientCache.Lease lease;
+        private final MongoDatabase database;
+        private final String commandName;
+        private final int limit;
+        private final int batchSize;
+        private Deadline.Registration cancelRegistration;
+        private long stepStart;
+        private long commandNanos;
+        // Курсор: ответ команды, коллекция для getMore, id и уже прочитанные записи
+        private Document response;
+        private String collection;
+        private long cursorId;
+        private final List<Object> entries = new ArrayList<>();
+        private int batches;
+
+        Probe(MongoService.TestResult result, PhaseTimings timings, MongoService.ProbeOptions options,
+              Deadline deadline, MongoClientCache.Lease lease, MongoDatabase database, String commandName,
+              int limit, int batchSize) {
+            this.result = result;
+            this.timings = timings;
+            this.options = options;
+            this.deadline = deadline;
+            this.lease = lease;
+            this.database = database;
+            this.commandName = commandName;
+            this.limit = limit;
+            this.batchSize = batchSize;
+        }
+
+        synchronized void start(Document command) {
+            // По сроку или при уходе клиента результат отдаётся сразу, ответ драйвера уже не ждём.
+            // Обработчик отмены вызывается под блокировкой Deadline - сама отмена идёт в другом потоке
+            cancelRegistration = deadline.onCancel(() -> CALLBACKS.execute(this::cancelled));
+            deadline.enter("command:" + commandName);
+            stepStart = System.nanoTime();
+            run(command, this::commandDone);
+        }
+
+        private void run(Document command, SingleResultCallback<Document> next) {
+            SingleResultCallback<Document> callback = (document, error) -> CALLBACKS.execute(() -> {
+                try {
+                    next.onResult(document, error);
+                } catch (RuntimeException e) {
+                    crashed(e);
+                }
+            });
+            try {
+                database.runCommand(command, callback);
+            } catch (RuntimeException e) {
+                // Например, клиент уже закрыт
+                callback.onResult(null, e);
+            }
+        }
+
+        private synchronized void commandDone(Document commandResult, Throwable error) {
+            if (done.isDone()) return;
+            if (error != null) {
+                failed(error);
+                return;
+            }
+            commandNanos = System.nanoTime() - stepStart;
+            timings.query(commandName, commandNanos);
+            if (options.phases && !lease.isReused()) {
+                // На новом клиенте первая команда ждёт и подключение драйвера с handshake
+                // и аутентификацией. Повторный ping - чистый round-trip, его и вычитаем
+                response = commandResult;
+                deadline.enter("ping");
+                stepStart = System.nanoTime();
+                run(new Document("ping", 1), this::pingDone);
+                return;
+            }
+            handle(commandResult);
+        }
+
+        private synchronized void pingDone(Document ping, Throwable error) {
+            if (done.isDone()) return;
+            if (error != null) {
+                // Ping только для разбивки по фазам - команда уже выполнена, проба не проваливается
+                lease.invalidateOnFailure(error);
+                timings.failed("ping", error.getMessage());
+                handle(response);
+                return;
+            }
+            long rttNanos = System.nanoTime() - stepStart;
+            timings.put("pingNanos", rttNanos);
+            // handshake (hello) + сама команда - два round-trip
+            timings.driverConnect(commandNanos, 2 * rttNanos);
+            handle(response);
+        }
+
+        private void handle(Document commandResult) {
+            if (commandResult.get("cursor") instanceof Document) {
+                options.listener.onStep("command", Map.of("command", commandName), commandNanos);
+                response = commandResult;
+                Document cursor = (Document) commandResult.get("cursor");
+                String ns = cursor.getString("ns");
+                // ns = "<база>.<коллекция>", для listCollections коллекция - "$cmd.listCollections"
+                collection = ns.substring(ns.indexOf('.') + 1);
+                cursorId = ((Number) cursor.get("id")).longValue();
+                nextBatch((List<?>) cursor.get("firstBatch"), 0);
+                return;
+            }
+            MongoService.addCommandResult(result, commandName, commandResult, options, commandNanos);
+            finish();
+        }
+
+        // Как MongoService.readCursor: в памяти не больше limit записей, каждая пачка сразу уходит слушателю
+        private void nextBatch(List<?> batch, long batchNanos) {
+            batches++;
+            List<?> part = batch.subList(0, Math.min(batch.size(), limit - entries.size()));
+            entries.addAll(part);
+            options.listener.onStep("cursorBatch", Map.of(
+                    "batch", batches, "entries", part, "returned", entries.size()), batchNanos);
+            if (cursorId == 0 || entries.size() >= limit) {
+                boolean hasMore = cursorId != 0;
+                killCursor();
+                result.data.put("commandResult",
+                        MongoService.cursorResult(response, entries, limit, batchSize, batches, hasMore));
+                finish();
+                return;
+            }
+            deadline.enter("getMore");
+            stepStart = System.nanoTime();
+            run(new Document("getMore", cursorId)
+                    .append("collection", collection)
+                    .append("batchSize", Math.min(batchSize, limit - entries.size())), this::getMoreDone);
+        }
+
+        private synchronized void getMoreDone(Document more, Throwable error) {
+            if (done.isDone()) return;
+            if (error != null) {
+                failed(error);
+                return;
+            }
+            long batchNanos = System.nanoTime() - stepStart;
+            timings.query("getMore", batchNanos);
+            Document cursor = (Document) more.get("cursor");
+            cursorId = ((Number) cursor.get("id")).longValue();
+            nextBatch((List<?>) cursor.get("nextBatch"), batchNanos);
+        }
+
+        // Недочитанный курсор закрываем, не дожидаясь ответа.
+        // Не закроется - сервер сам закроет его по таймауту простоя
+        private void killCursor() {
+            if (cursorId == 0 || collection == null) return;
+            try {
+                database.runCommand(new Document("killCursors", collection).append("cursors", List.of(cursorId)),
+                        (ignored, error) -> { });
+            } catch (RuntimeException e) {
+                // Клиент уже закрыт - курсор закроет сервер
+            }
+            cursorId = 0;
+        }
+
+        private void failed(Throwable e) {
+            lease.invalidateOnFailure(e);
+            killCursor();
+            MongoService.commandFailed(result, e, commandName, deadline);
+            finish();
+        }
+
+        private synchronized void crashed(RuntimeException e) {
+            if (done.isDone()) return;
+            failed(e);
+        }
+
+        // Срок истёк или клиент ушёл. Клиента не инвалидируем: команда на сервере просто
+        // доработает, а соединение драйвера вернётся в пул
+        private synchronized void cancelled() {
+            if (done.isDone()) return;
+            killCursor();
+            MongoService.commandFailed(result, new CancellationException("Probe cancelled"), commandName, deadline);
+            finish();
+        }
+
+        private void finish() {
+            result.data.put("timings", timings.toMap());
+            result.data.put("deadline", deadline.describe());
+            cancelRegistration.close();
+            lease.close();
+            done.complete(result);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoClientURI;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.async.client.MongoClients;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Кэш живых MongoClient: повторные пробы одного кластера не платят
+// за discovery, пул соединений и TLS/auth заново.
+// LRU с ограничением размера и вытеснением по времени простоя.
+// Синхронные и асинхронные (MongoAsyncService) клиенты лежат в одном кэше под разными ключами
+public class MongoClientCache {
+    // -Dmongo.cache.maxSize=32  -Dmongo.cache.idleSeconds=300
+    private static final int MAX_SIZE = Integer.getInteger("mongo.cache.maxSize", 32);
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(Integer.getInteger("mongo.cache.idleSeconds", 300));
+
+    private static final Map<String, Entry> CLIENTS = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static final ScheduledExecutorService SWEEPER =
+            Executors.newSingleThreadScheduledExecutor(WebServer.namedDaemonFactory("mongo-cache-sweeper"));
+
+    static {
+        SWEEPER.scheduleWithFixedDelay(MongoClientCache::evictIdle, 30, 30, TimeUnit.SECONDS);
+    }
+
+    // Аренда клиента: пока она не закрыта, клиент не будет закрыт вытеснением
+    public static class Lease implements AutoCloseable {
+        private final Entry entry;
+        private final boolean reused;
+        private boolean closed;
+
+        private Lease(Entry entry, boolean reused) {
+            this.entry = entry;
+            this.reused = reused;
+        }
+
+        public MongoClient client() {
+            return (MongoClient) entry.client;
+        }
+
+        // Для аренды из acquireAsync
+        public com.mongodb.async.client.MongoClient asyncClient() {
+            return (com.mongodb.async.client.MongoClient) entry.client;
+        }
+
+        // true, если клиент был взят из кэша, а не создан заново
+        public boolean isReused() {
+            return reused;
+        }
+
+        // Убирает клиента из кэша (например, после сетевой ошибки),
+        // следующая проба построит его заново
+        public void invalidate() {
+            remove(entry);
+        }
+
+        // Инвалидирует клиента только при сетевых ошибках и ошибках аутентификации.
+        // Ответ сервера с ошибкой команды (нет прав, неизвестная команда) клиента не портит
+        public void invalidateOnFailure(Throwable e) {
+            if (e instanceof MongoException && !(e instanceof MongoCommandException)) {
+                invalidate();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            release(entry);
+        }
+    }
+
+    private static class Entry {
+        final String key;
+        final Closeable client;
+        int leases;
+        long lastUsedNanos;
+        boolean evicted;
+
+        Entry(String key, Closeable client) {
+            this.key = key;
+            this.client = client;
+        }
+    }
+
+    // Ступени таймаутов: клиент с таймаутами драйвера под срок пробы,
+    // но не отдельный клиент на каждое значение timeoutMs
+    private static final int[] TIMEOUT_BUCKETS_MS = {1000, 2000, 5000, 10_000, 30_000, 60_000, 120_000, 300_000, 600_000};
+
+    public static Lease acquire(MongoClientURI uri) {
+        return acquire(uri, 0);
+    }
+
+    // timeoutMs > 0 - клиент с serverSelectionTimeout/connectTimeout/socketTimeout не больше
+    // ближайшей ступени сверху. Опции, заданные в самой строке подключения, важнее
+    public static Lease acquire(MongoClientURI uri, long timeoutMs) {
+        int bucket = timeoutBucket(timeoutMs);
+        String key = bucket > 0 ? keyOf(uri) + "|timeout=" + bucket : keyOf(uri);
+        return acquire(key, () -> new MongoClient(bucket > 0 ? withTimeouts(uri, bucket) : uri));
+    }
+
+    // Асинхронный клиент (mongodb-driver-async) с теми же ступенями таймаутов
+    public static Lease acquireAsync(MongoClientURI uri, long timeoutMs) {
+        int bucket = timeoutBucket(timeoutMs);
+        String key = keyOf(uri) + "|async" + (bucket > 0 ? "|timeout=" + bucket : "");
+        return acquire(key, () -> newAsyncClient(uri, bucket));
+    }
+
+    // Клиент строится вне общей блокировки: сборка MongoClient (разбор URI, потоки мониторинга)
+    // не должна задерживать пробы других целей и попадания в кэш. Если параллельная проба
+    // успела положить клиента с тем же ключом, свой закрываем и берём её
+    private static Lease acquire(String key, Supplier<Closeable> factory) {
+        Entry entry;
+        synchronized (CLIENTS) {
+            entry = CLIENTS.get(key);
+            if (entry != null) {
+                entry.leases++;
+                entry.lastUsedNanos = System.nanoTime();
+                return new Lease(entry, true);
+            }
+        }
+
+        long start = System.nanoTime();
+        Closeable client = factory.get();
+        long createNanos = System.nanoTime() - start;
+
+        List<Entry> toClose = new ArrayList<>();
+        boolean reused;
+        synchronized (CLIENTS) {
+            entry = CLIENTS.get(key);
+            reused = entry != null;
+            if (entry == null) {
+                entry = new Entry(key, client);
+                CLIENTS.put(key, entry);
+                collectOverflow(toClose);
+            } else {
+                toClose.add(new Entry(key, client));
+            }
+            entry.leases++;
+            entry.lastUsedNanos = System.nanoTime();
+        }
+        if (!reused) {
+            // Клиент подключается лениво: это время создания клиента, а не TCP-подключения
+            Metrics.connectionCreated("mongo", createNanos);
+        }
+
+        closeAll(toClose);
+        return new Lease(entry, reused);
+    }
+
+    static int timeoutBucket(long timeoutMs) {
+        if (timeoutMs <= 0) return 0;
+        for (int bucket : TIMEOUT_BUCKETS_MS) {
+            if (timeoutMs <= bucket) return bucket;
+        }
+        return TIMEOUT_BUCKETS_MS[TIMEOUT_BUCKETS_MS.length - 1];
+    }
+
+    private static MongoClientURI withTimeouts(MongoClientURI uri, int timeoutMs) {
+        return new MongoClientURI(uri.getURI(), MongoClientOptions.builder()
+                .serverSelectionTimeout(timeoutMs)
+                .connectTimeout(Math.min(timeoutMs, 10_000))
+                .socketTimeout(timeoutMs)
+                .maxWaitTime(timeoutMs));
+    }
+
+    private static com.mongodb.async.client.MongoClient newAsyncClient(MongoClientURI uri, int timeoutMs) {
+        MongoClientSettings.Builder settings = MongoClientSettings.builder();
+        if (timeoutMs > 0) {
+            settings.applyToClusterSettings(cluster -> cluster.serverSelectionTimeout(timeoutMs, TimeUnit.MILLISECONDS))
+                    .applyToSocketSettings(socket -> socket
+                            .connectTimeout(Math.min(timeoutMs, 10_000), TimeUnit.MILLISECONDS)
+                            .readTimeout(timeoutMs, TimeUnit.MILLISECONDS))
+                    .applyToConnectionPoolSettings(pool -> pool.maxWaitTime(timeoutMs, TimeUnit.MILLISECONDS));
+        }
+        // После наших таймаутов: опции из строки подключения важнее
+        settings.applyConnectionString(new ConnectionString(uri.getURI()));
+        return MongoClients.create(settings.build());
+    }
+
+    public static int size() {
+        synchronized (CLIENTS) {
+            return CLIENTS.size();
+        }
+    }
+
+    public static void clear() {
+        List<Entry> toClose = new ArrayList<>();
+        synchronized (CLIENTS) {
+            for (Entry entry : CLIENTS.values()) {
+                markEvicted(entry, toClose);
+            }
+            CLIENTS.clear();
+        }
+        closeAll(toClose);
+    }
+
+    // Ключ: отсортированные хосты, база, учётные данные и опции из URI.
+    // Порядок хостов в строке подключения не должен порождать отдельного клиента
+    static String keyOf(MongoClientURI uri) {
+        StringBuilder key = new StringBuilder();
+        key.append(new TreeSet<>(uri.getHosts()));
+        key.append('|').append(uri.getDatabase());
+        key.append('|').append(uri.getUsername());
+        char[] password = uri.getPassword();
+        key.append('|').append(password == null ? "" : new String(password));
+        String raw = uri.getURI();
+        int optionsStart = raw.indexOf('?');
+        if (optionsStart >= 0) {
+            String[] options = raw.substring(optionsStart + 1).split("&");
+            Arrays.sort(options);
+            key.append('|').append(String.join("&", options));
+        }
+        return key.toString();
+    }
+
+    private static void release(Entry entry) {
+        boolean close;
+        synchronized (CLIENTS) {
+            entry.leases--;
+            entry.lastUsedNanos = System.nanoTime();
+            close = entry.evicted && entry.leases == 0;
+        }
+        if (close) {
+            closeQuietly(entry);
+        }
+    }
+
+    private static void remove(Entry entry) {
+        List<Entry> toClose = new ArrayList<>();
+        synchronized (CLIENTS) {
+            if (CLIENTS.get(entry.key) == entry) {
+                CLIENTS.remove(entry.key);
+            }
+            markEvicted(entry, toClose);
+        }
+        closeAll(toClose);
+    }
+
+    private static void evictIdle() {
+        List<Entry> toClose = new ArrayList<>();
+        long now = System.nanoTime();
+        synchronized (CLIENTS) {
+            Iterator<Entry> it = CLIENTS.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.leases == 0 && now - entry.lastUsedNanos > IDLE_NANOS) {
+                    it.remove();
+                    markEvicted(entry, toClose);
+                }
+            }
+        }
+        closeAll(toClose);
+    }
+
+    // Вызывается под блокировкой: вытесняет самые давно использованные записи сверх лимита
+    private static void collectOverflow(List<Entry> toClose) {
+        Iterator<Entry> it = CLIENTS.values().iterator();
+        while (CLIENTS.size() > MAX_SIZE && it.hasNext()) {
+            Entry eldest = it.next();
+            it.remove();
+            markEvicted(eldest, toClose);
+        }
+    }
+
+    private static void markEvicted(Entry entry, List<Entry> toClose) {
+        if (entry.evicted) return;
+        entry.evicted = true;
+        // Клиент, который сейчас кто-то использует, закроет последний release()
+        if (entry.leases == 0) {
+            toClose.add(entry);
+        }
+    }
+
+    private static void closeAll(List<Entry> entries) {
+        for (Entry entry : entries) {
+            closeQuietly(entry);
+        }
+    }
+
+    private static void closeQuietly(Entry entry) {
+        try {
+            entry.client.close();
+        } catch (Exception e) {
+            // Клиент уже не нужен, ошибка закрытия не важна
+        }
+    }
+}
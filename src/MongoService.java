@@ -1,11 +1,12 @@
-import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
 import com.mongodb.client.MongoDatabase;
 import org.bson.Document;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 public class MongoService {
 
@@ -21,120 +22,390 @@ public class MongoService {
         }
     }
 
+    // Команды, которые отдают результат курсором: читаем его пачками через getMore
+    private static final Set<String> CURSOR_COMMANDS = Set.of("find", "aggregate", "listCollections", "listIndexes");
+    // Сколько записей курсора можно запросить за одну пробу (-Dmongo.cursor.maxLimit)
+    static final int MAX_CURSOR_LIMIT = Integer.getInteger("mongo.cursor.maxLimit", 10_000);
+
+    // Параметры пробы
+    public static class ProbeOptions {
+        // Получает каждый шаг пробы сразу по завершении (потоковый режим)
+        public ProbeListener listener = ProbeListener.NONE;
+        // База, в которой выполняется команда
+        public String database = "admin";
+        // Для курсорных команд: сколько записей вернуть и размер пачки на сервере
+        public int limit = 100;
+        public int batchSize = 100;
+        // Срок пробы; null - срок по умолчанию (Deadline.DEFAULT_TIMEOUT_MS)
+        public Deadline deadline;
+        // true - перед новым клиентом отдельно мерить DNS, TCP и TLS (лишнее подключение)
+        public boolean phases;
+    }
+
     public static TestResult testConnection(String connectionString) {
         return testConnection(connectionString, null);
     }
 
     public static TestResult testConnection(String connectionString, String commandJson) {
+        return testConnection(connectionString, commandJson, new ProbeOptions());
+    }
+
+    public static TestResult testConnection(String connectionString, String commandJson, ProbeOptions options) {
+        long start = System.nanoTime();
+        TestResult result;
+        if (options.deadline != null) {
+            result = probe(connectionString, commandJson, options, options.deadline);
+        } else {
+            try (Deadline deadline = Deadline.after(0)) {
+                result = probe(connectionString, commandJson, options, deadline);
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        Metrics.probe("mongo", connectionString, result.success, nanos);
+        ProbeHistory.record("mongo", connectionString, result.success, nanos, result.data);
+        return result;
+    }
+
+    private static TestResult probe(String connectionString, String commandJson, ProbeOptions options,
+                                    Deadline deadline) {
         try {
             // Валидация строки подключения
             if (connectionString == null || connectionString.isEmpty()) {
                 return new TestResult(false, "Connection string is empty");
             }
 
-            if (!connectionString.startsWith("mongodb://")) {
-                return new TestResult(false, "Connection string must start with mongodb://");
+            if (!ProbeTarget.isMongoUrl(connectionString)) {
+                return new TestResult(false, "Connection string must start with mongodb:// or mongodb+srv://");
             }
 
             MongoClientURI uri = new MongoClientURI(connectionString);
             TestResult result = new TestResult(true, "MongoDB connection successful");
+            PhaseTimings timings = new PhaseTimings();
 
-            try (MongoClient mongoClient = new MongoClient(uri)) {
-                // Получаем базу данных admin
-                MongoDatabase adminDatabase = mongoClient.getDatabase("admin");
-
-                // Выполняем команду - либо переданную, либо hello по умолчанию
-                Document commandToExecute;
-                String commandName = "hello";
-
-                if (commandJson != null && !commandJson.trim().isEmpty()) {
-                    try {
-                        // Парсим JSON команду
-                        commandToExecute = Document.parse(commandJson);
-                        result.data.put("executedCommand", commandJson);
-
-                        // Определяем имя команды для логирования
-                        if (!commandToExecute.isEmpty()) {
-                            commandName = commandToExecute.keySet().iterator().next();
-                        }
-                    } catch (Exception e) {
-                        // Если не удалось распарсить, возвращаем ошибку
+            long stepStart = System.nanoTime();
+            deadline.enter("client");
+            // Таймауты драйвера - по сроку пробы (клиенты кэшируются по ступеням таймаута)
+            try (MongoClientCache.Lease lease = MongoClientCache.acquire(uri, deadline.remainingMillis())) {
+                result.data.put("clientReused", lease.isReused());
+                options.listener.onStep("client", Map.of("clientReused", lease.isReused()), System.nanoTime() - stepStart);
+                // Для mongodb+srv хосты и порты известны только после SRV-запроса - там не меряем
+                if (options.phases && !lease.isReused() && !uri.getURI().startsWith("mongodb+srv://")
+                        && uri.getHosts() != null && !uri.getHosts().isEmpty()) {
+                    // Новый клиент: заранее меряем DNS, TCP и TLS до первого хоста
+                    deadline.enter("network");
+                    timings.measureNetwork(uri.getHosts().get(0), 27017,
+                            uri.getOptions().isSslEnabled() ? PhaseTimings.Tls.DIRECT : PhaseTimings.Tls.NONE,
+                            deadline.remainingMillis());
+                    if (timings.networkError() != null) {
+                        // Не ждём ещё и таймаута драйвера к тому же хосту
                         result.success = false;
-                        result.message = "Invalid JSON command format";
-                        result.data.put("error", e.getMessage());
-                        result.data.put("hint", "Use valid JSON like: {\"ping\": 1} or {\"listCollections\": 1}");
-                        result.data.put("examples", new String[]{
-                                "{\"ping\": 1}",
-                                "{\"hello\": 1}",
-                                "{\"listDatabases\": 1}",
-                                "{\"listCollections\": 1}",
-                                "{\"serverStatus\": 1}",
-                                "{\"connectionStatus\": 1}",
-                                "{\"currentOp\": 1}",
-                                "{\"replSetGetStatus\": 1}"
-                        });
+                        result.message = "MongoDB connection failed: " + timings.networkError();
+                        result.data.put("timings", timings.toMap());
+                        result.data.put("deadline", deadline.describe());
                         return result;
                     }
-                } else {
-                    commandToExecute = new Document("hello", 1);
-                    result.data.put("executedCommand", "hello (default)");
                 }
 
-                // Выполняем только запрошенную команду
-                try {
-                    Document commandResult = adminDatabase.runCommand(commandToExecute);
+                // Выполняем команду - либо переданную, либо hello по умолчанию
+                Document commandToExecute = parseCommand(commandJson, result);
+                if (commandToExecute == null) {
+                    return result;
+                }
+                String commandName = commandNameOf(commandToExecute);
+                int limit = limitOf(options);
+                int batchSize = batchSizeOf(options, limit);
+                commandToExecute = prepareCommand(commandToExecute, batchSize, result);
+                MongoDatabase database = lease.client().getDatabase(databaseFor(commandName, options));
 
-                    // Добавляем результат команды
-                    Map<String, Object> cmdResult = new HashMap<>();
-                    for (String key : commandResult.keySet()) {
-                        Object value = commandResult.get(key);
-                        // Ограничиваем вывод больших объектов
-                        if (value instanceof List && ((List<?>)value).size() > 10) {
-                            List<?> list = (List<?>) value;
-                            List<Object> preview = new ArrayList<>();
-                            for (int i = 0; i < Math.min(10, list.size()); i++) {
-                                preview.add(list.get(i));
-                            }
-                            cmdResult.put(key, preview);
-                            cmdResult.put(key + "_total_count", list.size());
-                            cmdResult.put(key + "_note", "Showing first 10 of " + list.size());
-                        } else {
-                            cmdResult.put(key, value);
-                        }
+                // Выполняем только запрошенную команду.
+                // По сроку или при уходе клиента поток прерывается - ожидание выбора сервера и пула обрывается
+                try (Deadline.Registration interruptOnCancel = deadline.interruptOnCancel()) {
+                    deadline.enter("command:" + commandName);
+                    stepStart = System.nanoTime();
+                    Document commandResult = database.runCommand(commandToExecute);
+                    long commandNanos = System.nanoTime() - stepStart;
+                    timings.query(commandName, commandNanos);
+                    if (options.phases && !lease.isReused()) {
+                        measureDriverConnect(database, lease, commandNanos, timings, deadline);
                     }
-                    result.data.put("commandResult", cmdResult);
-
-                    // Добавляем дополнительную информацию в зависимости от команды
-                    if (commandName.equals("hello") && commandResult.getBoolean("isWritablePrimary") != null) {
-                        result.data.put("connectionInfo", Map.of(
-                                "isWritablePrimary", commandResult.getBoolean("isWritablePrimary"),
-                                "hosts", commandResult.get("hosts"),
-                                "primary", commandResult.get("primary")
-                        ));
+
+                    // Курсор дочитываем пачками до limit, остальное на сервере закрываем
+                    if (commandResult.get("cursor") instanceof Document) {
+                        options.listener.onStep("command", Map.of("command", commandName), commandNanos);
+                        result.data.put("commandResult",
+                                readCursor(database, commandResult, limit, batchSize, options, timings, deadline));
+                        result.data.put("timings", timings.toMap());
+                        result.data.put("deadline", deadline.describe());
+                        return result;
                     }
 
+                    // Добавляем результат команды
+                    addCommandResult(result, commandName, commandResult, options, commandNanos);
+
                 } catch (Exception e) {
-                    result.success = false;
-                    result.message = "Command execution failed";
-                    result.data.put("commandError", e.getMessage());
-                    result.data.put("executedCommand", commandName);
-
-                    // Даем подсказку по возможной причине
-                    if (e.getMessage().contains("not authorized") || e.getMessage().contains("permission")) {
-                        result.data.put("hint", "User may not have permission to execute this command");
-                    } else if (e.getMessage().contains("UnknownHostException") || e.getMessage().contains("Timed out")) {
-                        result.data.put("hint", "Cannot connect to MongoDB server. Check host and port");
-                    }
+                    lease.invalidateOnFailure(e);
+                    commandFailed(result, e, commandName, deadline);
                 }
 
+                result.data.put("timings", timings.toMap());
+                result.data.put("deadline", deadline.describe());
                 return result;
 
             } catch (Exception e) {
-                return new TestResult(false, "MongoDB connection failed: " + e.getMessage());
+                TestResult failed = new TestResult(false, "MongoDB connection failed: " + e.getMessage());
+                failed.data.put("timings", timings.toMap());
+                failed.data.put("deadline", deadline.describe());
+                return failed;
             }
 
         } catch (Exception e) {
             return new TestResult(false, "Invalid MongoDB connection string: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    // Первая пачка уже пришла в ответе команды, следующие - через getMore.
+    // В памяти держим не больше limit записей; в потоковом режиме каждая пачка уходит клиенту сразу
+    private static Map<String, Object> readCursor(MongoDatabase database, Document response, int limit, int batchSize,
+                                                  ProbeOptions options, PhaseTimings timings, Deadline deadline) {
+        Document cursor = (Document) response.get("cursor");
+        String ns = cursor.getString("ns");
+        // ns = "<база>.<коллекция>", для listCollections коллекция - "$cmd.listCollections"
+        String collection = ns.substring(ns.indexOf('.') + 1);
+        long cursorId = ((Number) cursor.get("id")).longValue();
+        List<?> batch = (List<?>) cursor.get("firstBatch");
+        long batchNanos = 0;
+
+        List<Object> entries = new ArrayList<>();
+        int batches = 0;
+        boolean hasMore;
+        try {
+            while (true) {
+                batches++;
+                List<?> part = batch.subList(0, Math.min(batch.size(), limit - entries.size()));
+                entries.addAll(part);
+                options.listener.onStep("cursorBatch", Map.of(
+                        "batch", batches, "entries", part, "returned", entries.size()), batchNanos);
+                if (cursorId == 0 || entries.size() >= limit) {
+                    break;
+                }
+                deadline.enter("getMore");
+                long start = System.nanoTime();
+                Document more = database.runCommand(new Document("getMore", cursorId)
+                        .append("collection", collection)
+                        .append("batchSize", Math.min(batchSize, limit - entries.size())));
+                batchNanos = System.nanoTime() - start;
+                timings.query("getMore", batchNanos);
+                cursor = (Document) more.get("cursor");
+                cursorId = ((Number) cursor.get("id")).longValue();
+                batch = (List<?>) cursor.get("nextBatch");
+            }
+        } finally {
+            hasMore = cursorId != 0;
+            if (hasMore) {
+                try {
+                    database.runCommand(new Document("killCursors", collection).append("cursors", List.of(cursorId)));
+                } catch (RuntimeException e) {
+                    // Не закрылся - сервер сам закроет его по таймауту простоя
+                }
+            }
+        }
+
+        return cursorResult(response, entries, limit, batchSize, batches, hasMore);
+    }
+
+    static Map<String, Object> cursorResult(Document response, List<Object> entries, int limit, int batchSize,
+                                            int batches, boolean hasMore) {
+        Map<String, Object> cmdResult = new LinkedHashMap<>();
+        cmdResult.put("ok", response.get("ok"));
+        cmdResult.put("ns", ((Document) response.get("cursor")).getString("ns"));
+        cmdResult.put("entries", entries);
+        cmdResult.put("returned", entries.size());
+        cmdResult.put("limit", limit);
+        cmdResult.put("batchSize", batchSize);
+        cmdResult.put("batches", batches);
+        cmdResult.put("hasMore", hasMore);
+        return cmdResult;
+    }
+
+    // Общее для синхронной и асинхронной проб (MongoAsyncService): разбор и подготовка команды,
+    // форма результата. Ответ /api/test/mongo от способа выполнения не зависит
+
+    // Команда из JSON или hello по умолчанию; null - JSON не разобран, ошибка уже в result
+    static Document parseCommand(String commandJson, TestResult result) {
+        if (commandJson == null || commandJson.trim().isEmpty()) {
+            result.data.put("executedCommand", "hello (default)");
+            return new Document("hello", 1);
+        }
+        try {
+            Document command = Document.parse(commandJson);
+            if (command.isEmpty()) {
+                // {} - та же проба по умолчанию, что и без команды
+                result.data.put("executedCommand", "hello (default)");
+                return new Document("hello", 1);
+            }
+            result.data.put("executedCommand", commandJson);
+            return command;
+        } catch (Exception e) {
+            // Если не удалось распарсить, возвращаем ошибку
+            result.success = false;
+            result.message = "Invalid JSON command format";
+            result.data.put("error", e.getMessage());
+            result.data.put("hint", "Use valid JSON like: {\"ping\": 1} or {\"listCollections\": 1}");
+            result.data.put("examples", new String[]{
+                    "{\"ping\": 1}",
+                    "{\"hello\": 1}",
+                    "{\"listDatabases\": 1}",
+                    "{\"listCollections\": 1}",
+                    "{\"serverStatus\": 1}",
+                    "{\"connectionStatus\": 1}",
+                    "{\"currentOp\": 1}",
+                    "{\"replSetGetStatus\": 1}"
+            });
+            return null;
+        }
+    }
+
+    // Имя команды для логирования - первый ключ
+    static String commandNameOf(Document command) {
+        return command.isEmpty() ? "hello" : command.keySet().iterator().next();
+    }
+
+    static int limitOf(ProbeOptions options) {
+        return Math.max(1, Math.min(MAX_CURSOR_LIMIT, options.limit));
+    }
+
+    static int batchSizeOf(ProbeOptions options, int limit) {
+        return Math.max(1, Math.min(limit, options.batchSize));
+    }
+
+    // База для команды: по умолчанию admin, currentOp - всегда admin
+    static String databaseFor(String commandName, ProbeOptions options) {
+        if (commandName.equals("currentOp")) return "admin";
+        return options.database == null || options.database.isEmpty() ? "admin" : options.database;
+    }
+
+    // currentOp отдаёт все операции одним массивом, $currentOp - курсором;
+    // курсорным командам - размер пачки
+    static Document prepareCommand(Document command, int batchSize, TestResult result) {
+        if (commandNameOf(command).equals("currentOp")) {
+            command = currentOpAsAggregate(command);
+            result.data.put("rewrittenAs", "aggregate [$currentOp]");
+        }
+        if (CURSOR_COMMANDS.contains(commandNameOf(command))) {
+            withBatchSize(command, batchSize);
+        }
+        return command;
+    }
+
+    // Результат некурсорной команды: большие массивы - первые 10 элементов; для hello - connectionInfo
+    static void addCommandResult(TestResult result, String commandName, Document commandResult,
+                                 ProbeOptions options, long commandNanos) {
+        Map<String, Object> cmdResult = new HashMap<>();
+        for (String key : commandResult.keySet()) {
+            Object value = commandResult.get(key);
+            // Ограничиваем вывод больших объектов
+            if (value instanceof List && ((List<?>)value).size() > 10) {
+                List<?> list = (List<?>) value;
+                List<Object> preview = new ArrayList<>();
+                for (int i = 0; i < Math.min(10, list.size()); i++) {
+                    preview.add(list.get(i));
+                }
+                cmdResult.put(key, preview);
+                cmdResult.put(key + "_total_count", list.size());
+                cmdResult.put(key + "_note", "Showing first 10 of " + list.size());
+            } else {
+                cmdResult.put(key, value);
+            }
+        }
+        result.data.put("commandResult", cmdResult);
+        options.listener.onStep("command", Map.of("command", commandName, "commandResult", cmdResult), commandNanos);
+
+        // Добавляем дополнительную информацию в зависимости от команды
+        if (commandName.equals("hello") && commandResult.getBoolean("isWritablePrimary") != null) {
+            result.data.put("connectionInfo", Map.of(
+                    "isWritablePrimary", commandResult.getBoolean("isWritablePrimary"),
+                    "hosts", commandResult.get("hosts"),
+                    "primary", commandResult.get("primary")
+            ));
+            options.listener.onStep("connectionInfo",
+                    Map.of("connectionInfo", result.data.get("connectionInfo")), 0);
+        }
+    }
+
+    // На новом клиенте первая команда ждёт и подключение драйвера с handshake
+    // и аутентификацией. Повторный ping - чистый round-trip, его и вычитаем.
+    // Ping нужен только для разбивки по фазам: его ошибка идёт в timings, проба остаётся успешной
+    private static void measureDriverConnect(MongoDatabase database, MongoClientCache.Lease lease, long commandNanos,
+                                             PhaseTimings timings, Deadline deadline) {
+        deadline.enter("ping");
+        long pingStart = System.nanoTime();
+        try {
+            database.runCommand(new Document("ping", 1));
+        } catch (RuntimeException e) {
+            lease.invalidateOnFailure(e);
+            timings.failed("ping", e.getMessage());
+            return;
+        }
+        long rttNanos = System.nanoTime() - pingStart;
+        timings.put("pingNanos", rttNanos);
+        // handshake (hello) + сама команда - два round-trip
+        timings.driverConnect(commandNanos, 2 * rttNanos);
+    }
+
+    static void commandFailed(TestResult result, Throwable e, String commandName, Deadline deadline) {
+        result.success = false;
+        String timedOutPhase = deadline.timedOutPhase();
+        result.message = timedOutPhase != null
+                ? "MongoDB probe timed out during " + timedOutPhase + " (timeoutMs=" + deadline.timeoutMs() + ")"
+                : "Command execution failed";
+        if (timedOutPhase != null) {
+            result.data.put("timedOutPhase", timedOutPhase);
+        }
+        String message = String.valueOf(e.getMessage());
+        result.data.put("commandError", e.getMessage());
+        result.data.put("executedCommand", commandName);
+
+        // Даем подсказку по возможной причине
+        if (message.contains("not authorized") || message.contains("permission")) {
+            result.data.put("hint", "User may not have permission to execute this command");
+        } else if (message.contains("UnknownHostException") || message.contains("Timed out")) {
+            result.data.put("hint", "Cannot connect to MongoDB server. Check host and port");
+        }
+    }
+
+    // Размер пачки на сервере: у find - поле batchSize, у остальных - cursor.batchSize
+    static void withBatchSize(Document command, int batchSize) {
+        if (commandNameOf(command).equals("find")) {
+            command.put("batchSize", batchSize);
+            return;
+        }
+        Object cursor = command.get("cursor");
+        Document cursorOptions = cursor instanceof Document ? (Document) cursor : new Document();
+        cursorOptions.put("batchSize", batchSize);
+        command.put("cursor", cursorOptions);
+    }
+
+    // {currentOp: 1, $all: true, <фильтр>} -> {aggregate: 1, pipeline: [{$currentOp: {...}}, {$match: <фильтр>}]}
+    private static Document currentOpAsAggregate(Document command) {
+        Document stage = new Document("allUsers", true);
+        Document match = new Document();
+        for (Map.Entry<String, Object> entry : command.entrySet()) {
+            String key = entry.getKey();
+            if (key.equals("currentOp")) {
+                continue;
+            } else if (key.equals("$all")) {
+                stage.put("idleConnections", Boolean.TRUE.equals(entry.getValue()));
+            } else if (key.equals("$ownOps")) {
+                stage.put("allUsers", !Boolean.TRUE.equals(entry.getValue()));
+            } else {
+                match.put(key, entry.getValue());
+            }
+        }
+        List<Document> pipeline = new ArrayList<>();
+        pipeline.add(new Document("$currentOp", stage));
+        if (!match.isEmpty()) {
+            pipeline.add(new Document("$match", match));
+        }
+        return new Document("aggregate", 1).append("pipeline", pipeline);
+    }
+}
@@ -1,11 +1,21 @@
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import org.bson.Document;
+import org.bson.types.ObjectId;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class MongoTester {
 
@@ -28,54 +38,58 @@ public class MongoTester {
                 return new TestResult(false, "Connection string is empty");
             }
 
-            if (!connectionString.startsWith("mongodb://")) {
-                return new TestResult(false, "Connection string must start with mongodb://");
+            if (!ProbeTarget.isMongoUrl(connectionString)) {
+                return new TestResult(false, "Connection string must start with mongodb:// or mongodb+srv://");
             }
 
             MongoClientURI uri = new MongoClientURI(connectionString);
             TestResult result = new TestResult(true, "Connection successful");
 
-            try (MongoClient mongoClient = new MongoClient(uri)) {
-                // Получаем базу данных admin
-                MongoDatabase adminDatabase = mongoClient.getDatabase("admin");
-
-                // Выполняем команду hello
-                Document helloResult = adminDatabase.runCommand(new Document("hello", 1));
-                result.data.put("isWritablePrimary", helloResult.getBoolean("isWritablePrimary"));
-                result.data.put("hosts", helloResult.get("hosts"));
-                result.data.put("primary", helloResult.get("primary"));
-                result.data.put("me", helloResult.get("me"));
-
-                // Получаем список баз данных
-                List<String> databases = new ArrayList<>();
-                for (Document db : mongoClient.listDatabases()) {
-                    databases.add(db.getString("name"));
-                }
-                result.data.put("databases", databases);
-                result.data.put("databaseCount", databases.size());
+            try (MongoClientCache.Lease lease = MongoClientCache.acquire(uri)) {
+                MongoClient mongoClient = lease.client();
+                try {
+                    // Получаем базу данных admin
+                    MongoDatabase adminDatabase = mongoClient.getDatabase("admin");
 
-                // Информация о сервере
-                Document serverStatus = adminDatabase.runCommand(new Document("serverStatus", 1));
-                result.data.put("version", serverStatus.get("version"));
-                result.data.put("uptime", serverStatus.get("uptime"));
-                result.data.put("host", serverStatus.get("host"));
+                    // Выполняем команду hello
+                    Document helloResult = adminDatabase.runCommand(new Document("hello", 1));
+                    result.data.put("isWritablePrimary", helloResult.getBoolean("isWritablePrimary"));
+                    result.data.put("hosts", helloResult.get("hosts"));
+                    result.data.put("primary", helloResult.get("primary"));
+                    result.data.put("me", helloResult.get("me"));
 
-                // Статус replica set (если есть)
-                try {
-                    Document replStatus = adminDatabase.runCommand(new Document("replSetGetStatus", 1));
-                    Map<String, Object> replicaInfo = new HashMap<>();
-                    replicaInfo.put("set", replStatus.getString("set"));
-                    replicaInfo.put("myState", replStatus.getInteger("myState"));
-                    result.data.put("replicaSet", replicaInfo);
-                } catch (Exception e) {
-                    // Не replica set - это нормально
-                    result.data.put("replicaSet", "Not a replica set");
-                }
+                    // Получаем список баз данных
+                    List<String> databases = new ArrayList<>();
+                    for (Document db : mongoClient.listDatabases()) {
+                        databases.add(db.getString("name"));
+                    }
+                    result.data.put("databases", databases);
+                    result.data.put("databaseCount", databases.size());
+
+                    // Информация о сервере
+                    Document serverStatus = adminDatabase.runCommand(new Document("serverStatus", 1));
+                    result.data.put("version", serverStatus.get("version"));
+                    result.data.put("uptime", serverStatus.get("uptime"));
+                    result.data.put("host", serverStatus.get("host"));
+
+                    // Статус replica set (если есть)
+                    try {
+                        Document replStatus = adminDatabase.runCommand(new Document("replSetGetStatus", 1));
+                        Map<String, Object> replicaInfo = new HashMap<>();
+                        replicaInfo.put("set", replStatus.getString("set"));
+                        replicaInfo.put("myState", replStatus.getInteger("myState"));
+                        result.data.put("replicaSet", replicaInfo);
+                    } catch (Exception e) {
+                        // Не replica set - это нормально
+                        result.data.put("replicaSet", "Not a replica set");
+                    }
 
-                return result;
+                    return result;
 
-            } catch (Exception e) {
-                return new TestResult(false, "Connection failed: " + e.getMessage());
+                } catch (Exception e) {
+                    lease.invalidateOnFailure(e);
+                    return new TestResult(false, "Connection failed: " + e.getMessage());
+                }
             }
 
         } catch (Exception e) {
@@ -92,7 +106,10 @@ public class MongoTester {
 
         try {
             MongoClientURI uri = new MongoClientURI(connectionString);
-            try (MongoClient mongoClient = new MongoClient(uri)) {
+            // Клиент берётся из кэша, поэтому повторная проба не строит его заново
+            try (MongoClientCache.Lease lease = MongoClientCache.acquire(uri)) {
+                MongoClient mongoClient = lease.client();
+
                 // Тест записи/чтения
                 var testDb = mongoClient.getDatabase("test");
                 var collection = testDb.getCollection("test_java_web");
@@ -122,4 +139,176 @@ public class MongoTester {
 
         return result;
     }
-}
\ No newline at end of file
+
+    // Параметры нагрузочного теста
+    public static class BenchmarkOptions {
+        public int documentSize = 1024;
+        public int documents = 1000;
+        // 1 - insertOne, больше 1 - insertMany пачками такого размера
+        public int batchSize = 1;
+        // "w1" или "majority"
+        public String writeConcern = "w1";
+        public int workers = 4;
+        public long timeoutMs = 120_000;
+    }
+
+    static final int MAX_DOCUMENT_SIZE = 1024 * 1024;
+    static final int MAX_DOCUMENTS = 1_000_000;
+    static final int MAX_BATCH_SIZE = 10_000;
+    static final int MAX_WORKERS = 32;
+
+    // Нагрузочный тест: запись документов заданного размера (insertOne или insertMany),
+    // затем чтение по _id. Временная коллекция удаляется в конце
+    public static TestResult benchmark(String connectionString, BenchmarkOptions options) {
+        TestResult result = testConnection(connectionString);
+        if (!result.success) {
+            return result;
+        }
+
+        int documentSize = Math.max(16, Math.min(MAX_DOCUMENT_SIZE, options.documentSize));
+        int documents = Math.max(1, Math.min(MAX_DOCUMENTS, options.documents));
+        int batchSize = Math.max(1, Math.min(MAX_BATCH_SIZE, options.batchSize));
+        int workers = Math.max(1, Math.min(MAX_WORKERS, options.workers));
+        boolean majority = "majority".equalsIgnoreCase(options.writeConcern);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.timeoutMs);
+
+        // Результат обычной пробы остаётся в ответе, бенчмарк добавляется отдельным разделом
+        Map<String, Object> bench = new LinkedHashMap<>();
+        bench.put("documentSize", documentSize);
+        bench.put("documents", documents);
+        bench.put("insertMode", batchSize == 1 ? "insertOne" : "insertMany");
+        bench.put("batchSize", batchSize);
+        bench.put("writeConcern", majority ? "majority" : "w1");
+        bench.put("workers", workers);
+        result.data.put("benchmark", bench);
+
+        MongoClientURI uri = new MongoClientURI(connectionString);
+        String collectionName = "bench_" + new ObjectId().toHexString();
+        ExecutorService pool = Executors.newFixedThreadPool(workers, WebServer.namedDaemonFactory("mongo-bench"));
+
+        // С таймаутами драйвера под срок бенчмарка: ни одна операция воркера не висит дольше,
+        // поэтому перед удалением коллекции их можно дождаться
+        try (MongoClientCache.Lease lease = MongoClientCache.acquire(uri, options.timeoutMs)) {
+            MongoCollection<Document> collection = lease.client().getDatabase("test")
+                    .getCollection(collectionName)
+                    .withWriteConcern(majority ? WriteConcern.MAJORITY : WriteConcern.W1);
+            try {
+                // _id генерируем на клиенте, чтобы фаза чтения знала, что искать
+                ObjectId[] ids = new ObjectId[documents];
+                for (int i = 0; i < documents; i++) {
+                    ids[i] = new ObjectId();
+                }
+                String padding = "x".repeat(documentSize);
+
+                bench.put("insert", runPhase(pool, workers, documents, batchSize, deadline, (from, to) -> {
+                    if (to - from == 1) {
+                        collection.insertOne(benchDocument(ids[from], padding));
+                    } else {
+                        List<Document> batch = new ArrayList<>(to - from);
+                        for (int i = from; i < to; i++) {
+                            batch.add(benchDocument(ids[i], padding));
+                        }
+                        collection.insertMany(batch);
+                    }
+                }));
+
+                bench.put("readById", runPhase(pool, workers, documents, 1, deadline, (from, to) -> {
+                    if (collection.find(new Document("_id", ids[from])).first() == null) {
+                        throw new IllegalStateException("Document " + ids[from].toHexString() + " not found");
+                    }
+                }));
+            } finally {
+                // Временную коллекцию удаляем в любом случае, но только после остановки воркеров:
+                // вставка, ещё идущая после срока фазы, создала бы коллекцию заново
+                boolean stopped = stopWorkers(pool, options.timeoutMs);
+                try {
+                    collection.drop();
+                    bench.put("cleanup", "Collection test." + collectionName + " dropped"
+                            + (stopped ? "" : " (workers were still running, it may reappear)"));
+                } catch (Exception e) {
+                    bench.put("cleanup", "Failed to drop test." + collectionName + ": " + e.getMessage());
+                }
+            }
+        } catch (Exception e) {
+            result.success = false;
+            result.message += " (Benchmark failed: " + e.getMessage() + ")";
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return result;
+    }
+
+    private static boolean stopWorkers(ExecutorService pool, long timeoutMs) {
+        pool.shutdownNow();
+        try {
+            return pool.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private interface BatchOperation {
+        void run(int from, int to) throws Exception;
+    }
+
+    private static Document benchDocument(ObjectId id, String padding) {
+        return new Document("_id", id)
+                .append("timestamp", new java.util.Date())
+                .append("payload", padding);
+    }
+
+    // Делит [0, total) между воркерами и выполняет операцию пачками по batchSize.
+    // Задержка меряется на каждый вызов драйвера
+    private static Map<String, Object> runPhase(ExecutorService pool, int workers, int total, int batchSize,
+                                                long deadline, BatchOperation operation) throws InterruptedException {
+        LatencyHistogram latency = new LatencyHistogram();
+        LongAdder docs = new LongAdder();
+        LongAdder errors = new LongAdder();
+        List<String> errorSamples = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch finished = new CountDownLatch(workers);
+        int share = (total + workers - 1) / workers;
+
+        long start = System.nanoTime();
+        for (int w = 0; w < workers; w++) {
+            int from = Math.min(total, w * share);
+            int to = Math.min(total, from + share);
+            pool.execute(() -> {
+                try {
+                    for (int i = from; i < to && System.nanoTime() < deadline; i += batchSize) {
+                        int end = Math.min(to, i + batchSize);
+                        long opStart = System.nanoTime();
+                        try {
+                            operation.run(i, end);
+                            latency.record(System.nanoTime() - opStart);
+                            docs.add(end - i);
+                        } catch (Exception e) {
+                            errors.increment();
+                            synchronized (errorSamples) {
+                                if (errorSamples.size() < 5) errorSamples.add(e.getMessage());
+                            }
+                        }
+                    }
+                } finally {
+                    finished.countDown();
+                }
+            });
+        }
+        boolean completed = finished.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        long elapsedNanos = System.nanoTime() - start;
+
+        Map<String, Object> phase = new LinkedHashMap<>();
+        phase.put("completed", completed);
+        phase.put("docs", docs.sum());
+        phase.put("ops", latency.count());
+        phase.put("errors", errors.sum());
+        synchronized (errorSamples) {
+            phase.put("errorSamples", new ArrayList<>(errorSamples));
+        }
+        phase.put("elapsedMs", LatencyHistogram.toMillis(elapsedNanos));
+        phase.put("docsPerSec", elapsedNanos == 0 ? 0 : Math.round(docs.sum() * 1e9 / elapsedNanos));
+        phase.put("latencyMs", latency.toMap());
+        return phase;
+    }
+}
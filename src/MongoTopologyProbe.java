@@ -0,0 +1,340 @@
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+import com.mongodb.MongoCredential;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoDatabase;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Топология реплики: каждый участник проверяется напрямую и параллельно.
+// Список участников - из hello через обычный клиент (плюс скрытые из replSetGetStatus, если есть права),
+// дальше к каждому хосту отдельный клиент без обнаружения топологии: RTT, состояние,
+// отставание репликации по lastWrite относительно primary
+public class MongoTopologyProbe {
+    // -Dmongo.topology.workers=16 - одновременно проверяемых участников (на все запросы)
+    private static final int WORKERS = Integer.getInteger("mongo.topology.workers", 16);
+    // Больше участников в реплике не бывает (лимит MongoDB - 50)
+    private static final int MAX_MEMBERS = 50;
+
+    private static final ExecutorService EXECUTOR =
+            Executors.newFixedThreadPool(WORKERS, WebServer.namedDaemonFactory("mongo-member"));
+
+    public static MongoService.TestResult run(String connectionString, MongoService.ProbeOptions options) {
+        long start = System.nanoTime();
+        MongoService.TestResult result;
+        if (options.deadline != null) {
+            result = probe(connectionString, options, options.deadline);
+        } else {
+            try (Deadline deadline = Deadline.after(0)) {
+                result = probe(connectionString, options, deadline);
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        Metrics.probe("mongo", connectionString, result.success, nanos);
+        ProbeHistory.record("mongo", connectionString, result.success, nanos, result.data);
+        return result;
+    }
+
+    private static MongoService.TestResult probe(String connectionString, MongoService.ProbeOptions options,
+                                                 Deadline deadline) {
+        if (connectionString == null || !ProbeTarget.isMongoUrl(connectionString)) {
+            return new MongoService.TestResult(false, "Connection string must start with mongodb:// or mongodb+srv://");
+        }
+        MongoClientURI uri;
+        try {
+            uri = new MongoClientURI(connectionString);
+        } catch (RuntimeException e) {
+            return new MongoService.TestResult(false, "Invalid MongoDB connection string: " + e.getMessage());
+        }
+
+        // 1. Участники - глазами обычного клиента
+        Set<String> hosts = new LinkedHashSet<>();
+        Set<String> hidden = new LinkedHashSet<>();
+        String setName;
+        long discoveryStart = System.nanoTime();
+        deadline.enter("discovery");
+        try (MongoClientCache.Lease lease = MongoClientCache.acquire(uri, deadline.remainingMillis());
+             Deadline.Registration interruptOnCancel = deadline.interruptOnCancel()) {
+            MongoDatabase admin = lease.client().getDatabase("admin");
+            Document hello;
+            try {
+                hello = admin.runCommand(new Document("hello", 1));
+            } catch (RuntimeException e) {
+                lease.invalidateOnFailure(e);
+                throw e;
+            }
+            setName = hello.getString("setName");
+            for (String field : new String[]{"hosts", "passives", "arbiters"}) {
+                List<String> list = hello.getList(field, String.class);
+                if (list != null) hosts.addAll(list);
+            }
+            if (setName != null) {
+                // Скрытых и delayed участников hello не показывает; replSetGetStatus требует clusterMonitor
+                try {
+                    Document status = admin.runCommand(new Document("replSetGetStatus", 1));
+                    List<Document> members = status.getList("members", Document.class);
+                    if (members != null) {
+                        for (Document member : members) {
+                            String name = member.getString("name");
+                            if (name != null && hosts.add(name)) hidden.add(name);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    // Нет прав - обходимся списком из hello
+                }
+            }
+        } catch (RuntimeException e) {
+            String timedOutPhase = deadline.timedOutPhase();
+            MongoService.TestResult failed = new MongoService.TestResult(false, timedOutPhase != null
+                    ? "MongoDB topology probe timed out during " + timedOutPhase + " (timeoutMs=" + deadline.timeoutMs() + ")"
+                    : "MongoDB topology discovery failed: " + e.getMessage());
+            failed.data.put("deadline", deadline.describe());
+            return failed;
+        }
+        if (hosts.isEmpty() && uri.getHosts() != null) {
+            if (connectionString.startsWith("mongodb+srv://")) {
+                // В mongodb+srv указано имя SRV-записи, а не host:port - подключаться к нему напрямую нельзя
+                MongoService.TestResult failed = new MongoService.TestResult(false,
+                        "No replica set members found behind the SRV record (mongos or standalone)");
+                failed.data.put("deadline", deadline.describe());
+                return failed;
+            }
+            // Не реплика (standalone или mongos) - проверяем то, что указано в строке подключения
+            hosts.addAll(uri.getHosts());
+        }
+        options.listener.onStep("discovery", Map.of("setName", String.valueOf(setName), "members", new ArrayList<>(hosts)),
+                System.nanoTime() - discoveryStart);
+
+        // 2. Каждый участник - параллельно, своим прямым подключением
+        deadline.enter("members");
+        List<String> targets = new ArrayList<>(hosts).subList(0, Math.min(hosts.size(), MAX_MEMBERS));
+        Map<String, CompletableFuture<Map<String, Object>>> futures = new LinkedHashMap<>();
+        for (String host : targets) {
+            futures.put(host, CompletableFuture.supplyAsync(() -> {
+                long memberStart = System.nanoTime();
+                Map<String, Object> member = probeMember(uri, host, deadline);
+                member.put("hidden", hidden.contains(host));
+                options.listener.onStep("member", member, System.nanoTime() - memberStart);
+                return member;
+            }, EXECUTOR));
+        }
+
+        List<Map<String, Object>> members = new ArrayList<>();
+        for (Map.Entry<String, CompletableFuture<Map<String, Object>>> entry : futures.entrySet()) {
+            members.add(await(entry.getKey(), entry.getValue(), deadline));
+        }
+        return summarize(setName, members, deadline);
+    }
+
+    // Прямое подключение к одному хосту: hello (подключение + handshake + состояние), затем ping - чистый RTT.
+    // По сроку клиент закрывается - ожидание драйвера обрывается и поток mongo-member освобождается
+    private static Map<String, Object> probeMember(MongoClientURI uri, String host, Deadline deadline) {
+        Map<String, Object> member = new LinkedHashMap<>();
+        member.put("host", host);
+        if (deadline.isCancelled()) {
+            // Срок вышел, пока участник ждал свободного потока
+            return timedOut(host);
+        }
+        int timeoutMs = (int) Math.max(1, deadline.remainingMillis());
+        MongoClientOptions clientOptions = MongoClientOptions.builder(uri.getOptions())
+                .serverSelectionTimeout(timeoutMs)
+                .connectTimeout(Math.min(timeoutMs, 10_000))
+                .socketTimeout(timeoutMs)
+                .maxWaitTime(timeoutMs)
+                .build();
+        MongoCredential credential = uri.getCredentials();
+        ServerAddress address = new ServerAddress(host);
+
+        long start = System.nanoTime();
+        // Одиночный ServerAddress - прямое подключение, без поиска primary
+        AtomicReference<MongoClient> client = new AtomicReference<>();
+        try (Deadline.Registration closeOnCancel = deadline.onCancel(() -> closeQuietly(client.get()))) {
+            client.set(credential != null
+                    ? new MongoClient(address, credential, clientOptions)
+                    : new MongoClient(address, clientOptions));
+            if (deadline.isCancelled()) {
+                // Отмена пришла, пока клиент создавался - обработчик его уже не увидел
+                closeQuietly(client.get());
+            }
+            MongoDatabase admin = client.get().getDatabase("admin");
+            Document hello = admin.runCommand(new Document("hello", 1), ReadPreference.primaryPreferred());
+            long connectNanos = System.nanoTime() - start;
+            Metrics.connectionCreated("mongo", connectNanos);
+
+            long pingStart = System.nanoTime();
+            admin.runCommand(new Document("ping", 1), ReadPreference.primaryPreferred());
+            long rttNanos = System.nanoTime() - pingStart;
+
+            member.put("reachable", true);
+            member.put("state", stateOf(hello));
+            member.put("rttMs", LatencyHistogram.toMillis(rttNanos));
+            member.put("connectMs", LatencyHistogram.toMillis(connectNanos));
+            if (hello.getString("me") != null) member.put("me", hello.getString("me"));
+            Document lastWrite = hello.get("lastWrite", Document.class);
+            if (lastWrite != null) {
+                // В JSON - числами: Date и BsonTimestamp сериализовались бы через toString()
+                Date lastWriteDate = lastWrite.getDate("lastWriteDate");
+                if (lastWriteDate != null) member.put("lastWriteDate", lastWriteDate.getTime());
+                Document opTime = lastWrite.get("opTime", Document.class);
+                if (opTime != null) member.put("opTime", opTimeOf(opTime));
+            }
+        } catch (RuntimeException e) {
+            if (deadline.isCancelled()) {
+                // Клиент закрыт по сроку - это не отказ хоста
+                Map<String, Object> timedOut = timedOut(host);
+                timedOut.put("elapsedMs", LatencyHistogram.toMillis(System.nanoTime() - start));
+                return timedOut;
+            }
+            Metrics.connectionFailed("mongo");
+            member.put("reachable", false);
+            member.put("state", "UNREACHABLE");
+            member.put("error", e.getMessage());
+            member.put("elapsedMs", LatencyHistogram.toMillis(System.nanoTime() - start));
+        } finally {
+            closeQuietly(client.get());
+        }
+        return member;
+    }
+
+    // opTime из hello: ts - секунды и счётчик, t - срок полномочий primary
+    private static Map<String, Object> opTimeOf(Document opTime) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        Object ts = opTime.get("ts");
+        if (ts instanceof BsonTimestamp) {
+            result.put("ts", ((BsonTimestamp) ts).getTime());
+            result.put("inc", ((BsonTimestamp) ts).getInc());
+        }
+        Object term = opTime.get("t");
+        if (term instanceof Number) {
+            result.put("t", ((Number) term).longValue());
+        }
+        return result;
+    }
+
+    private static Map<String, Object> timedOut(String host) {
+        Map<String, Object> member = new LinkedHashMap<>();
+        member.put("host", host);
+        member.put("reachable", false);
+        member.put("state", "TIMED_OUT");
+        member.put("error", "Timed out");
+        return member;
+    }
+
+    private static void closeQuietly(MongoClient client) {
+        if (client != null) {
+            try {
+                client.close();
+            } catch (RuntimeException e) {
+                // Клиент уже закрыт или закрывается
+            }
+        }
+    }
+
+    static String stateOf(Document hello) {
+        if (hello.getBoolean("isWritablePrimary", false) || hello.getBoolean("ismaster", false)) {
+            return hello.getString("setName") != null ? "PRIMARY" : "STANDALONE";
+        }
+        if (hello.getBoolean("secondary", false)) {
+            return hello.getBoolean("hidden", false) ? "SECONDARY (hidden)" : "SECONDARY";
+        }
+        if (hello.getBoolean("arbiterOnly", false)) return "ARBITER";
+        // RECOVERING, STARTUP2, ROLLBACK и т.п. - hello не называет состояние точно
+        return "OTHER";
+    }
+
+    // cancel(true) у CompletableFuture поток не прерывает - участника останавливает сам срок:
+    // отмена закрывает его клиент. Таймер мог ещё не сработать - отменяем срок здесь же,
+    // пока он не закрыт и обработчики участников ещё зарегистрированы
+    private static Map<String, Object> await(String host, CompletableFuture<Map<String, Object>> future,
+                                             Deadline deadline) {
+        try {
+            return future.get(Math.max(1, deadline.remainingMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | InterruptedException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            if (e instanceof TimeoutException) {
+                deadline.expire("deadline exceeded");
+            } else {
+                deadline.cancel("interrupted");
+            }
+            return timedOut(host);
+        } catch (ExecutionException e) {
+            Map<String, Object> member = new LinkedHashMap<>();
+            member.put("host", host);
+            member.put("reachable", false);
+            member.put("state", "UNREACHABLE");
+            member.put("error", e.getCause().getMessage());
+            return member;
+        }
+    }
+
+    // Отставание - от lastWrite primary (без primary - от самого свежего участника), самый медленный - по RTT
+    private static MongoService.TestResult summarize(String setName, List<Map<String, Object>> members,
+                                                     Deadline deadline) {
+        Long reference = null;
+        String primary = null;
+        for (Map<String, Object> member : members) {
+            Long lastWrite = (Long) member.get("lastWriteDate");
+            if ("PRIMARY".equals(member.get("state"))) {
+                primary = (String) member.get("host");
+                reference = lastWrite;
+                break;
+            }
+            if (lastWrite != null && (reference == null || lastWrite > reference)) {
+                reference = lastWrite;
+            }
+        }
+
+        Map<String, Object> slowest = null;
+        Map<String, Object> mostLagging = null;
+        int reachable = 0;
+        for (Map<String, Object> member : members) {
+            if (!Boolean.TRUE.equals(member.get("reachable"))) continue;
+            reachable++;
+            Long lastWrite = (Long) member.get("lastWriteDate");
+            if (reference != null && lastWrite != null) {
+                member.put("lagMs", Math.max(0, reference - lastWrite));
+                if (mostLagging == null || (long) member.get("lagMs") > (long) mostLagging.get("lagMs")) {
+                    mostLagging = member;
+                }
+            }
+            if (slowest == null || (double) member.get("rttMs") > (double) slowest.get("rttMs")) {
+                slowest = member;
+            }
+        }
+
+        boolean allReachable = reachable == members.size();
+        MongoService.TestResult result = new MongoService.TestResult(allReachable && !members.isEmpty(),
+                members.isEmpty() ? "No replica set members found"
+                        : reachable + " of " + members.size() + " members reachable");
+        result.data.put("setName", setName);
+        result.data.put("primary", primary);
+        result.data.put("lagReference", primary != null ? "primary" : "most recent member");
+        result.data.put("members", members);
+        if (slowest != null) {
+            result.data.put("slowestMember", Map.of("host", slowest.get("host"), "rttMs", slowest.get("rttMs")));
+        }
+        if (mostLagging != null) {
+            result.data.put("mostLaggingMember", Map.of("host", mostLagging.get("host"), "lagMs", mostLagging.get("lagMs")));
+        }
+        result.data.put("deadline", deadline.describe());
+        return result;
+    }
+}
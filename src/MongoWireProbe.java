@@ -0,0 +1,335 @@
+import com.mongodb.MongoClientURI;
+import com.mongodb.MongoCredential;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.Binary;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Проба MongoDB без MongoClient: один сокет, OP_MSG с hello, при наличии учётных данных - SCRAM,
+// и закрытие. Ни пула, ни потоков мониторинга драйвера - поэтому проба дешёвая и её можно
+// гонять тысячами. BSON кодирует и разбирает org.bson из комплекта драйвера.
+// Работает с любым host:port, в том числе с локальным поддельным сервером протокола.
+// OP_MSG понимают серверы с 3.6; у более старых hello не пройдёт
+public class MongoWireProbe {
+    private static final int OP_MSG = 2013;
+    private static final int CHECKSUM_PRESENT = 1;
+    // Ответы hello и SASL маленькие; больше - это уже не MongoDB
+    private static final int MAX_MESSAGE_BYTES = 1024 * 1024;
+    private static final int COMMAND_NOT_FOUND = 59;
+    private static final DocumentCodec CODEC = new DocumentCodec();
+    private static final AtomicInteger REQUEST_IDS = new AtomicInteger();
+
+    public static MongoService.TestResult ping(String connectionString, long timeoutMs) {
+        long start = System.nanoTime();
+        MongoService.TestResult result;
+        try (Deadline deadline = Deadline.after(timeoutMs)) {
+            result = probe(connectionString, deadline);
+        }
+        long nanos = System.nanoTime() - start;
+        Metrics.probe("mongo_wire", connectionString, result.success, nanos);
+        ProbeHistory.record("mongo_wire", connectionString, result.success, nanos, result.data);
+        return result;
+    }
+
+    private static MongoService.TestResult probe(String connectionString, Deadline deadline) {
+        if (connectionString == null || connectionString.isEmpty()) {
+            return new MongoService.TestResult(false, "Connection string is empty");
+        }
+        if (connectionString.startsWith("mongodb+srv://")) {
+            // Хосты, порты и TLS для SRV - из DNS (SRV и TXT): это уже работа драйвера, а не одного сокета
+            return new MongoService.TestResult(false, "mongodb+srv:// is not supported by the wire probe: "
+                    + "it needs SRV/TXT DNS lookups. Use mongodb://host:port or /api/test/mongo");
+        }
+        if (!connectionString.startsWith("mongodb://")) {
+            return new MongoService.TestResult(false, "Connection string must start with mongodb://");
+        }
+        Target target;
+        try {
+            target = Target.parse(connectionString);
+        } catch (RuntimeException e) {
+            return new MongoService.TestResult(false, "Invalid MongoDB connection string: " + e.getMessage());
+        }
+
+        MongoService.TestResult result = new MongoService.TestResult(true, "MongoDB is alive");
+        result.data.put("host", target.host);
+        result.data.put("port", target.port);
+        if (target.credential != null) {
+            result.data.put("user", target.credential.getUserName());
+            result.data.put("authSource", target.credential.getSource());
+        }
+        PhaseTimings timings = new PhaseTimings();
+        long start = System.nanoTime();
+
+        try (ProbeSocket wire = new ProbeSocket();
+             // По истечении срока или при уходе клиента закрываем сокет - блокирующее чтение сразу упадёт
+             Deadline.Registration closeOnCancel = deadline.onCancel(wire::abort)) {
+            deadline.enter("dns");
+            long phaseStart = System.nanoTime();
+            InetAddress address = InetAddress.getByName(target.host);
+            timings.put("dnsNanos", wire.waited(phaseStart));
+            result.data.put("resolvedAddress", address.getHostAddress());
+
+            deadline.enter("connect");
+            phaseStart = System.nanoTime();
+            wire.connect(new InetSocketAddress(address, target.port));
+            timings.put("tcpConnectNanos", wire.waited(phaseStart));
+
+            if (target.tls) {
+                deadline.enter("tls");
+                phaseStart = System.nanoTime();
+                result.data.put("tls", wire.startTls(target.host, target.port,
+                        target.verifyCertificates, target.verifyHostname));
+                timings.put("tlsHandshakeNanos", System.nanoTime() - phaseStart);
+            } else {
+                result.data.put("tls", "none");
+            }
+
+            deadline.enter("hello");
+            phaseStart = System.nanoTime();
+            Document hello = hello(wire, target);
+            timings.query("hello", System.nanoTime() - phaseStart);
+            addHello(result, hello);
+
+            if (target.credential != null) {
+                deadline.enter("auth");
+                phaseStart = System.nanoTime();
+                result.data.put("authMethod", authenticate(wire, target, hello));
+                timings.put("authNanos", System.nanoTime() - phaseStart);
+            } else {
+                result.data.put("authMethod", "none");
+            }
+            // Всё, что не ожидание сети, - собственные затраты пробы
+            timings.put("clientNanosEstimated", Math.max(0, System.nanoTime() - start - wire.waitNanos()));
+        } catch (IOException | RuntimeException e) {
+            String timedOutPhase = deadline.timedOutPhase();
+            result.success = false;
+            result.message = timedOutPhase != null
+                    ? "MongoDB wire probe timed out during " + timedOutPhase + " (timeoutMs=" + deadline.timeoutMs() + ")"
+                    : "MongoDB wire probe failed during " + deadline.phase() + ": " + e.getMessage();
+            if (timedOutPhase != null) {
+                result.data.put("timedOutPhase", timedOutPhase);
+            }
+            result.data.put("error", e.getMessage());
+        }
+        result.data.put("timings", timings.toMap());
+        result.data.put("deadline", deadline.describe());
+        return result;
+    }
+
+    // hello, а для серверов до 4.4.2 / 4.2.10 без него - isMaster. С учётными данными
+    // просим saslSupportedMechs, чтобы выбрать SCRAM без лишнего round-trip
+    private static Document hello(ProbeSocket wire, Target target) throws IOException {
+        Document client = new Document("application", new Document("name", "ConnectionTesterWeb"))
+                .append("driver", new Document("name", "ConnectionTesterWeb wire probe").append("version", "1"))
+                .append("os", new Document("type", System.getProperty("os.name")));
+        Document command = new Document("hello", 1)
+                .append("helloOk", true)
+                .append("client", client);
+        if (target.credential != null && target.credential.getMechanism() == null) {
+            command.append("saslSupportedMechs", target.credential.getSource() + "." + target.credential.getUserName());
+        }
+        command.append("$db", "admin");
+        Document reply = send(wire, command);
+        if (!isOk(reply) && reply.getInteger("code", 0) == COMMAND_NOT_FOUND) {
+            Document isMaster = new Document("isMaster", 1);
+            for (Map.Entry<String, Object> entry : command.entrySet()) {
+                if (!entry.getKey().equals("hello")) isMaster.append(entry.getKey(), entry.getValue());
+            }
+            reply = send(wire, isMaster);
+        }
+        return checkOk("hello", reply);
+    }
+
+    private static void addHello(MongoService.TestResult result, Document hello) {
+        // mongos отвечает как одиночный сервер, но с msg=isdbgrid
+        result.data.put("state", "isdbgrid".equals(hello.getString("msg")) ? "MONGOS" : MongoTopologyProbe.stateOf(hello));
+        if (hello.getString("setName") != null) result.data.put("setName", hello.getString("setName"));
+        if (hello.getString("me") != null) result.data.put("me", hello.getString("me"));
+        if (hello.getString("primary") != null) result.data.put("primary", hello.getString("primary"));
+        result.data.put("minWireVersion", hello.get("minWireVersion"));
+        result.data.put("maxWireVersion", hello.get("maxWireVersion"));
+        if (hello.get("localTime") != null) result.data.put("localTime", hello.get("localTime"));
+    }
+
+    // SCRAM-SHA-256 или SCRAM-SHA-1: механизм из authMechanism, иначе - лучший из saslSupportedMechs.
+    // Без saslSupportedMechs (сервер до 4.0 или пользователь не найден) - SCRAM-SHA-1, как у драйвера
+    private static String authenticate(ProbeSocket wire, Target target, Document hello) throws IOException {
+        MongoCredential credential = target.credential;
+        String mechanism = credential.getMechanism();
+        if (mechanism == null) {
+            List<?> supported = hello.get("saslSupportedMechs", List.class);
+            mechanism = supported == null ? ScramClient.SHA_1
+                    : supported.contains(ScramClient.MECHANISM) ? ScramClient.MECHANISM : ScramClient.SHA_1;
+        }
+        if (!mechanism.equals(ScramClient.MECHANISM) && !mechanism.equals(ScramClient.SHA_1)) {
+            throw new IllegalArgumentException("Unsupported authMechanism " + mechanism + " (only SCRAM)");
+        }
+        if (credential.getPassword() == null) {
+            throw new IllegalArgumentException("Password is required for " + mechanism);
+        }
+        String user = credential.getUserName();
+        String password = new String(credential.getPassword());
+        // Для SCRAM-SHA-1 MongoDB солит не сам пароль, а md5("user:mongo:password"), как в MONGODB-CR
+        ScramClient scram = new ScramClient(mechanism, user,
+                mechanism.equals(ScramClient.SHA_1) ? md5Hex(user + ":mongo:" + password) : password);
+
+        Document reply = checkOk("saslStart", send(wire, new Document("saslStart", 1)
+                .append("mechanism", mechanism)
+                .append("payload", payload(scram.clientFirstMessage()))
+                .append("autoAuthorize", 1)
+                .append("options", new Document("skipEmptyExchange", true))
+                .append("$db", credential.getSource())));
+        Object conversationId = reply.get("conversationId");
+        reply = checkOk("saslContinue", send(wire, new Document("saslContinue", 1)
+                .append("conversationId", conversationId)
+                .append("payload", payload(scram.clientFinalMessage(text(reply))))
+                .append("$db", credential.getSource())));
+        scram.verifyServerFinal(text(reply));
+        // Сервер без skipEmptyExchange (до 4.4) ждёт ещё один пустой шаг
+        if (!reply.getBoolean("done", false)) {
+            checkOk("saslContinue", send(wire, new Document("saslContinue", 1)
+                    .append("conversationId", conversationId)
+                    .append("payload", new Binary(new byte[0]))
+                    .append("$db", credential.getSource())));
+        }
+        return mechanism;
+    }
+
+    private static Binary payload(String message) {
+        return new Binary(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String text(Document reply) {
+        Binary payload = reply.get("payload", Binary.class);
+        if (payload == null) throw new IllegalStateException("SASL reply without payload");
+        return new String(payload.getData(), StandardCharsets.UTF_8);
+    }
+
+    private static boolean isOk(Document reply) {
+        Object ok = reply.get("ok");
+        return ok instanceof Number && ((Number) ok).doubleValue() == 1;
+    }
+
+    private static Document checkOk(String command, Document reply) throws IOException {
+        if (!isOk(reply)) {
+            throw new IOException("Command " + command + " failed: " + reply.getString("errmsg")
+                    + " (code " + reply.get("code") + ", " + reply.getString("codeName") + ")");
+        }
+        return reply;
+    }
+
+    // OP_MSG: заголовок (длина, requestId, responseTo, opCode), флаги и одна секция kind 0 с командой.
+    // Всё little-endian, как и сам BSON
+    private static Document send(ProbeSocket wire, Document command) throws IOException {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        int requestId = REQUEST_IDS.incrementAndGet();
+        buffer.writeInt32(0);
+        buffer.writeInt32(requestId);
+        buffer.writeInt32(0);
+        buffer.writeInt32(OP_MSG);
+        buffer.writeInt32(0);
+        buffer.writeByte(0);
+        CODEC.encode(new BsonBinaryWriter(buffer), command, EncoderContext.builder().build());
+        buffer.writeInt32(0, buffer.getPosition());
+        wire.write(buffer.toByteArray());
+        wire.flush();
+        return read(wire, requestId);
+    }
+
+    private static Document read(ProbeSocket wire, int requestId) throws IOException {
+        byte[] header = new byte[16];
+        wire.readFully(header);
+        ByteBuffer fields = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        int length = fields.getInt();
+        fields.getInt();
+        int responseTo = fields.getInt();
+        int opCode = fields.getInt();
+        if (length < 21 || length > MAX_MESSAGE_BYTES) {
+            throw new IOException("Invalid message length " + length);
+        }
+        if (opCode != OP_MSG) {
+            throw new IOException("Unexpected opCode " + opCode + " (server older than 3.6?)");
+        }
+        if (responseTo != requestId) {
+            throw new IOException("Reply to request " + responseTo + ", expected " + requestId);
+        }
+        byte[] body = new byte[length - 16];
+        wire.readFully(body);
+        ByteBuffer message = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+        int flags = message.getInt();
+        // Контрольная сумма CRC-32C в конце сообщения не проверяется - TCP и TLS уже проверили данные
+        int end = body.length - ((flags & CHECKSUM_PRESENT) != 0 ? 4 : 0);
+        if (message.get() != 0) {
+            throw new IOException("Reply does not start with a body section");
+        }
+        int documentLength = message.getInt(5);
+        if (documentLength < 5 || 5 + documentLength > end) {
+            throw new IOException("Invalid BSON document length " + documentLength);
+        }
+        return new RawBsonDocument(body, 5, documentLength).decode(CODEC);
+    }
+
+    private static String md5Hex(String value) {
+        try {
+            StringBuilder hex = new StringBuilder(32);
+            for (byte b : MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8))) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Куда подключаться - первый хост из строки подключения, учётные данные и TLS из неё же
+    private static class Target {
+        String host;
+        int port = 27017;
+        MongoCredential credential;
+        boolean tls;
+        boolean verifyCertificates = true;
+        boolean verifyHostname = true;
+
+        static Target parse(String connectionString) {
+            MongoClientURI uri = new MongoClientURI(connectionString);
+            Target target = new Target();
+            String hostPort = uri.getHosts().get(0);
+            int colon = hostPort.lastIndexOf(':');
+            if (colon > 0 && colon > hostPort.lastIndexOf(']')) {
+                target.port = Integer.parseInt(hostPort.substring(colon + 1));
+                hostPort = hostPort.substring(0, colon);
+            }
+            if (hostPort.startsWith("[") && hostPort.endsWith("]")) {
+                hostPort = hostPort.substring(1, hostPort.length() - 1);
+            }
+            target.host = hostPort;
+            target.credential = uri.getCredentials();
+
+            int query = connectionString.indexOf('?');
+            QueryParams params = QueryParams.parse(query >= 0 ? connectionString.substring(query + 1) : "");
+            target.tls = "true".equalsIgnoreCase(params.get("tls")) || "true".equalsIgnoreCase(params.get("ssl"));
+            if ("true".equalsIgnoreCase(params.get("tlsInsecure"))
+                    || "true".equalsIgnoreCase(params.get("tlsAllowInvalidCertificates"))) {
+                target.verifyCertificates = false;
+            }
+            if ("true".equalsIgnoreCase(params.get("tlsAllowInvalidHostnames"))) {
+                target.verifyHostname = false;
+            }
+            return target;
+        }
+    }
+}
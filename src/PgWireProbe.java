@@ -0,0 +1,419 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Проба PostgreSQL без JDBC-драйвера: протокол frontend/backend 3.0 напрямую поверх SocketChannel.
+// SSLRequest, StartupMessage, аутентификация (trust, пароль, MD5, SCRAM-SHA-256),
+// простой запрос SELECT 1 и Terminate. Для проверки "жив ли сервер" этого достаточно,
+// а подключение драйвера с его метаданными и пулом - заметно тяжелее.
+// Работает с любым host:port, в том числе с локальным поддельным сервером протокола
+public class PgWireProbe {
+    private static final int PROTOCOL_3_0 = 196608;
+    private static final int SSL_REQUEST = 80877103;
+    // Ответы на SELECT 1 и служебные сообщения маленькие; больше - это уже не PostgreSQL
+    private static final int MAX_MESSAGE_BYTES = 1024 * 1024;
+    private static final String QUERY = "SELECT 1";
+
+    public static PostgresService.TestResult ping(String connectionString, long timeoutMs) {
+        long start = System.nanoTime();
+        PostgresService.TestResult result;
+        try (Deadline deadline = Deadline.after(timeoutMs)) {
+            result = probe(connectionString, deadline);
+        }
+        long nanos = System.nanoTime() - start;
+        Metrics.probe("postgres_wire", connectionString, result.success, nanos);
+        ProbeHistory.record("postgres_wire", connectionString, result.success, nanos, result.data);
+        return result;
+    }
+
+    private static PostgresService.TestResult probe(String connectionString, Deadline deadline) {
+        if (connectionString == null || connectionString.isEmpty()) {
+            return new PostgresService.TestResult(false, "Connection string is empty");
+        }
+        Target target;
+        try {
+            target = Target.parse(PostgresService.toJdbcUrl(connectionString));
+        } catch (IllegalArgumentException e) {
+            return new PostgresService.TestResult(false, e.getMessage());
+        }
+
+        PostgresService.TestResult result = new PostgresService.TestResult(true, "PostgreSQL is alive");
+        result.data.put("host", target.host);
+        result.data.put("port", target.port);
+        result.data.put("database", target.database);
+        result.data.put("user", target.user);
+        PhaseTimings timings = new PhaseTimings();
+        long start = System.nanoTime();
+
+        try (ProbeSocket wire = new ProbeSocket();
+             // По истечении срока или при уходе клиента закрываем сокет - блокирующее чтение сразу упадёт
+             Deadline.Registration closeOnCancel = deadline.onCancel(wire::abort)) {
+            deadline.enter("dns");
+            long phaseStart = System.nanoTime();
+            InetAddress address = InetAddress.getByName(target.host);
+            timings.put("dnsNanos", wire.waited(phaseStart));
+            result.data.put("resolvedAddress", address.getHostAddress());
+
+            deadline.enter("connect");
+            phaseStart = System.nanoTime();
+            wire.connect(new InetSocketAddress(address, target.port));
+            timings.put("tcpConnectNanos", wire.waited(phaseStart));
+
+            result.data.put("tls", negotiateTls(wire, target, timings, deadline));
+
+            deadline.enter("startup");
+            phaseStart = System.nanoTime();
+            send(wire, '\0', startupMessage(target));
+            result.data.put("authMethod", authenticate(wire, target));
+            Map<String, String> parameters = new LinkedHashMap<>();
+            int backendPid = readUntilReady(wire, parameters);
+            timings.put("startupNanos", System.nanoTime() - phaseStart);
+            result.data.put("serverVersion", parameters.get("server_version"));
+            result.data.put("parameters", parameters);
+            result.data.put("backendPid", backendPid);
+
+            deadline.enter("query");
+            phaseStart = System.nanoTime();
+            send(wire, 'Q', cstring(QUERY));
+            result.data.put("queryResult", simpleQuery(wire));
+            timings.query(QUERY, System.nanoTime() - phaseStart);
+
+            send(wire, 'X', new byte[0]);
+            // Всё, что не ожидание сети, - собственные затраты пробы
+            timings.put("clientNanosEstimated", Math.max(0, System.nanoTime() - start - wire.waitNanos()));
+        } catch (IOException | RuntimeException e) {
+            String timedOutPhase = deadline.timedOutPhase();
+            result.success = false;
+            result.message = timedOutPhase != null
+                    ? "PostgreSQL wire probe timed out during " + timedOutPhase + " (timeoutMs=" + deadline.timeoutMs() + ")"
+                    : "PostgreSQL wire probe failed during " + deadline.phase() + ": " + e.getMessage();
+            if (timedOutPhase != null) {
+                result.data.put("timedOutPhase", timedOutPhase);
+            }
+            result.data.put("error", e.getMessage());
+        }
+        result.data.put("timings", timings.toMap());
+        result.data.put("deadline", deadline.describe());
+        return result;
+    }
+
+    // sslmode как у libpq: disable и allow начинают без TLS, prefer (по умолчанию) - TLS, если сервер согласен,
+    // require - только TLS без проверки сертификата, verify-ca / verify-full - с проверкой
+    private static String negotiateTls(ProbeSocket wire, Target target, PhaseTimings timings, Deadline deadline)
+            throws IOException {
+        if (target.sslMode.equals("disable") || target.sslMode.equals("allow")) {
+            return "none";
+        }
+        deadline.enter("tls");
+        long phaseStart = System.nanoTime();
+        ByteBuffer request = ByteBuffer.allocate(8).putInt(8).putInt(SSL_REQUEST);
+        wire.write(request.array());
+        wire.flush();
+        int answer = wire.readByte();
+        if (answer != 'S') {
+            timings.put("sslRequestNanos", System.nanoTime() - phaseStart);
+            if (!target.sslMode.equals("prefer")) {
+                throw new IOException("Server does not accept SSL (sslmode=" + target.sslMode + ")");
+            }
+            return "not offered by server";
+        }
+        // prefer и require, как и в libpq, сертификат не проверяют
+        String protocol = wire.startTls(target.host, target.port, target.sslMode.startsWith("verify"),
+                target.sslMode.equals("verify-full"));
+        timings.put("tlsHandshakeNanos", System.nanoTime() - phaseStart);
+        return protocol;
+    }
+
+    private static byte[] startupMessage(Target target) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeInt(body, PROTOCOL_3_0);
+        writeCString(body, "user");
+        writeCString(body, target.user);
+        if (target.database != null) {
+            writeCString(body, "database");
+            writeCString(body, target.database);
+        }
+        writeCString(body, "application_name");
+        writeCString(body, "ConnectionTesterWeb");
+        body.write(0);
+        return body.toByteArray();
+    }
+
+    // До AuthenticationOk. Возвращает способ, которым сервер попросил аутентифицироваться
+    private static String authenticate(ProbeSocket wire, Target target) throws IOException {
+        String method = "trust";
+        ScramClient scram = null;
+        while (true) {
+            Message message = read(wire);
+            if (message.type == 'E') {
+                throw new IOException(message.error());
+            }
+            if (message.type != 'R') {
+                throw new IOException("Unexpected message '" + message.type + "' during authentication");
+            }
+            int code = message.body.getInt();
+            switch (code) {
+                case 0:
+                    return method;
+                case 3:
+                    method = "password";
+                    send(wire, 'p', cstring(requirePassword(target)));
+                    break;
+                case 5: {
+                    method = "md5";
+                    byte[] salt = new byte[4];
+                    message.body.get(salt);
+                    String inner = md5Hex(requirePassword(target).getBytes(StandardCharsets.UTF_8),
+                            target.user.getBytes(StandardCharsets.UTF_8));
+                    send(wire, 'p', cstring("md5" + md5Hex(inner.getBytes(StandardCharsets.US_ASCII), salt)));
+                    break;
+                }
+                case 10: {
+                    List<String> mechanisms = new ArrayList<>();
+                    String mechanism;
+                    while (!(mechanism = message.cstring()).isEmpty()) {
+                        mechanisms.add(mechanism);
+                    }
+                    if (!mechanisms.contains(ScramClient.MECHANISM)) {
+                        throw new IOException("No supported SASL mechanism among " + mechanisms);
+                    }
+                    method = ScramClient.MECHANISM;
+                    scram = new ScramClient(requirePassword(target));
+                    byte[] first = scram.clientFirstMessage().getBytes(StandardCharsets.UTF_8);
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    writeCString(body, ScramClient.MECHANISM);
+                    writeInt(body, first.length);
+                    body.write(first, 0, first.length);
+                    send(wire, 'p', body.toByteArray());
+                    break;
+                }
+                case 11:
+                    if (scram == null) throw new IOException("SASLContinue without SASL");
+                    send(wire, 'p', scram.clientFinalMessage(message.rest()).getBytes(StandardCharsets.UTF_8));
+                    break;
+                case 12:
+                    if (scram == null) throw new IOException("SASLFinal without SASL");
+                    scram.verifyServerFinal(message.rest());
+                    break;
+                default:
+                    // 2 - Kerberos, 7 - GSSAPI, 9 - SSPI
+                    throw new IOException("Unsupported authentication request " + code);
+            }
+        }
+    }
+
+    private static String requirePassword(Target target) {
+        if (target.password == null) {
+            throw new IllegalArgumentException("Server requested a password, but none was given");
+        }
+        return target.password;
+    }
+
+    // ParameterStatus и BackendKeyData до ReadyForQuery; возвращает PID серверного процесса
+    private static int readUntilReady(ProbeSocket wire, Map<String, String> parameters) throws IOException {
+        int backendPid = 0;
+        while (true) {
+            Message message = read(wire);
+            switch (message.type) {
+                case 'S':
+                    parameters.put(message.cstring(), message.cstring());
+                    break;
+                case 'K':
+                    backendPid = message.body.getInt();
+                    break;
+                case 'Z':
+                    return backendPid;
+                case 'E':
+                    throw new IOException(message.error());
+                default:
+                    // NoticeResponse и прочее - пропускаем
+            }
+        }
+    }
+
+    // Simple query: первое значение первой строки; ошибка сервера - исключение
+    private static String simpleQuery(ProbeSocket wire) throws IOException {
+        String value = null;
+        String error = null;
+        while (true) {
+            Message message = read(wire);
+            switch (message.type) {
+                case 'D':
+                    if (value == null && message.body.getShort() > 0) {
+                        int length = message.body.getInt();
+                        if (length >= 0) {
+                            byte[] bytes = new byte[length];
+                            message.body.get(bytes);
+                            value = new String(bytes, StandardCharsets.UTF_8);
+                        }
+                    }
+                    break;
+                case 'E':
+                    error = message.error();
+                    break;
+                case 'Z':
+                    if (error != null) throw new IOException("Query failed: " + error);
+                    return value;
+                default:
+                    // RowDescription, CommandComplete, NoticeResponse
+            }
+        }
+    }
+
+    private static Message read(ProbeSocket wire) throws IOException {
+        char type = (char) wire.readByte();
+        byte[] header = new byte[4];
+        wire.readFully(header);
+        int length = ByteBuffer.wrap(header).getInt();
+        if (length < 4 || length > MAX_MESSAGE_BYTES) {
+            throw new IOException("Invalid length " + length + " of message '" + type + "'");
+        }
+        byte[] body = new byte[length - 4];
+        wire.readFully(body);
+        return new Message(type, body);
+    }
+
+    // type '\0' - StartupMessage, у него нет байта типа
+    private static void send(ProbeSocket wire, char type, byte[] body) throws IOException {
+        ByteBuffer message = ByteBuffer.allocate(body.length + (type != '\0' ? 5 : 4));
+        if (type != '\0') {
+            message.put((byte) type);
+        }
+        message.putInt(body.length + 4).put(body);
+        wire.write(message.array());
+        wire.flush();
+    }
+
+    private static String md5Hex(byte[] first, byte[] second) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(first);
+            md5.update(second);
+            StringBuilder hex = new StringBuilder(32);
+            for (byte b : md5.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] cstring(String value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeCString(out, value);
+        return out.toByteArray();
+    }
+
+    private static void writeCString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+        out.write(0);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    // Куда подключаться - из JDBC URL (первый хост, если их несколько)
+    private static class Target {
+        String host;
+        int port = 5432;
+        String database;
+        String user;
+        String password;
+        String sslMode = "prefer";
+
+        static Target parse(String jdbcUrl) {
+            Target target = new Target();
+            String rest = jdbcUrl.substring("jdbc:postgresql://".length());
+            int query = rest.indexOf('?');
+            String path = query >= 0 ? rest.substring(0, query) : rest;
+            int slash = path.indexOf('/');
+            String hosts = slash >= 0 ? path.substring(0, slash) : path;
+            if (slash >= 0 && slash + 1 < path.length()) {
+                target.database = path.substring(slash + 1);
+            }
+            String hostPort = hosts.split(",")[0];
+            int colon = hostPort.lastIndexOf(':');
+            if (colon > 0 && colon > hostPort.lastIndexOf(']')) {
+                try {
+                    target.port = Integer.parseInt(hostPort.substring(colon + 1));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid port in " + hostPort);
+                }
+                hostPort = hostPort.substring(0, colon);
+            }
+            if (hostPort.startsWith("[") && hostPort.endsWith("]")) {
+                hostPort = hostPort.substring(1, hostPort.length() - 1);
+            }
+            target.host = hostPort.isEmpty() ? "localhost" : hostPort;
+
+            // Параметры URL декодируются так же, как у драйвера
+            QueryParams params = QueryParams.parse(query >= 0 ? rest.substring(query + 1) : "");
+            target.user = params.get("user");
+            target.password = params.get("password");
+            if (params.get("sslmode") != null) {
+                target.sslMode = params.get("sslmode").toLowerCase();
+            } else if ("true".equalsIgnoreCase(params.get("ssl"))) {
+                target.sslMode = "require";
+            }
+            if (target.user == null || target.user.isEmpty()) {
+                throw new IllegalArgumentException("User is required (user=... or user:secret@ in the connection string)");
+            }
+            return target;
+        }
+    }
+
+    // Сообщение сервера: тип и тело без заголовка
+    private static class Message {
+        final char type;
+        final ByteBuffer body;
+
+        Message(char type, byte[] body) {
+            this.type = type;
+            this.body = ByteBuffer.wrap(body);
+        }
+
+        String cstring() {
+            int start = body.position();
+            int end = start;
+            while (end < body.limit() && body.get(end) != 0) end++;
+            String value = new String(body.array(), start, end - start, StandardCharsets.UTF_8);
+            body.position(Math.min(body.limit(), end + 1));
+            return value;
+        }
+
+        String rest() {
+            return new String(body.array(), body.position(), body.remaining(), StandardCharsets.UTF_8);
+        }
+
+        // ErrorResponse: S - уровень, C - SQLSTATE, M - текст
+        String error() {
+            String severity = null;
+            String code = null;
+            String text = null;
+            while (body.hasRemaining()) {
+                byte field = body.get();
+                if (field == 0) break;
+                String value = cstring();
+                if (field == 'S') severity = value;
+                else if (field == 'C') code = value;
+                else if (field == 'M') text = value;
+            }
+            return severity + " " + code + ": " + text;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Разбивка времени пробы по фазам, в наносекундах: DNS, TCP, TLS, аутентификация, запросы.
+// Драйверы не показывают сетевые фазы по отдельности, поэтому DNS, TCP и TLS
+// меряются отдельным сокетом к тому же хосту перед подключением драйвера.
+// Это лишнее подключение к серверу, поэтому только по запросу (phases=true).
+// Аутентификация - оценка: подключение драйвера минус сетевые фазы
+public class PhaseTimings {
+    private static final int NETWORK_TIMEOUT_MS = Integer.getInteger("probe.networkTimeoutMs", 5000);
+    // Код SSLRequest из протокола PostgreSQL
+    private static final int PG_SSL_REQUEST = 80877103;
+
+    public enum Tls {
+        NONE,
+        // TLS сразу после TCP (MongoDB tls=true)
+        DIRECT,
+        // Сначала SSLRequest, TLS - только если сервер ответил 'S' (PostgreSQL)
+        POSTGRES
+    }
+
+    private final long start = System.nanoTime();
+    private final Map<String, Object> phases = new LinkedHashMap<>();
+    private final Map<String, Long> queries = new LinkedHashMap<>();
+    // TCP + TLS с пробного сокета, -1 - не мерили
+    private long networkNanos = -1;
+
+    // host:port, [ipv6]:port или просто host
+    // timeoutMs - остаток срока пробы, дольше NETWORK_TIMEOUT_MS всё равно не ждём
+    public void measureNetwork(String hostPort, int defaultPort, Tls tls, long timeoutMs) {
+        String host = hostPort;
+        int port = defaultPort;
+        int colon = hostPort.lastIndexOf(':');
+        if (colon > 0 && colon > hostPort.lastIndexOf(']')) {
+            host = hostPort.substring(0, colon);
+            try {
+                port = Integer.parseInt(hostPort.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                phases.put("networkError", "Invalid port in " + hostPort);
+                return;
+            }
+        }
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        measure(host, port, tls, (int) Math.max(1, Math.min(NETWORK_TIMEOUT_MS, timeoutMs)));
+    }
+
+    private void measure(String host, int port, Tls tls, int timeoutMs) {
+        long phaseStart = System.nanoTime();
+        InetAddress address;
+        try {
+            address = InetAddress.getAllByName(host)[0];
+        } catch (IOException e) {
+            phases.put("dnsNanos", System.nanoTime() - phaseStart);
+            phases.put("networkError", "DNS resolution failed: " + e.getMessage());
+            return;
+        }
+        phases.put("dnsNanos", System.nanoTime() - phaseStart);
+        phases.put("resolvedAddress", address.getHostAddress());
+
+        try (Socket socket = new Socket()) {
+            phaseStart = System.nanoTime();
+            socket.connect(new InetSocketAddress(address, port), timeoutMs);
+            long tcpNanos = System.nanoTime() - phaseStart;
+            phases.put("tcpConnectNanos", tcpNanos);
+            networkNanos = tcpNanos;
+            if (tls == Tls.NONE) {
+                return;
+            }
+
+            socket.setSoTimeout(timeoutMs);
+            phaseStart = System.nanoTime();
+            if (tls == Tls.POSTGRES && !postgresAcceptsSsl(socket)) {
+                // Отказ в SSL драйвер тоже получает - этот round-trip не относится к аутентификации
+                long sslRequestNanos = System.nanoTime() - phaseStart;
+                phases.put("sslRequestNanos", sslRequestNanos);
+                phases.put("tls", "not offered by server");
+                networkNanos += sslRequestNanos;
+                return;
+            }
+            try {
+                SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                        .createSocket(socket, host, port, false);
+                ssl.startHandshake();
+                long tlsNanos = System.nanoTime() - phaseStart;
+                phases.put("tlsHandshakeNanos", tlsNanos);
+                phases.put("tls", ssl.getSession().getProtocol());
+                networkNanos += tlsNanos;
+            } catch (IOException e) {
+                // Обычно сертификат не из доверенных - драйвер может быть настроен иначе
+                phases.put("tlsHandshakeNanos", System.nanoTime() - phaseStart);
+                phases.put("tlsError", e.getMessage());
+            }
+        } catch (IOException e) {
+            phases.put("networkError", "TCP connect to " + address.getHostAddress() + ":" + port
+                    + " failed: " + e.getMessage());
+        }
+    }
+
+    // DNS или TCP пробного сокета не прошли - драйвер к этому хосту тоже не подключится
+    public String networkError() {
+        return (String) phases.get("networkError");
+    }
+
+    // Подключение драйвера целиком; аутентификация - остаток после сетевых фаз
+    // и otherNanos (прочие известные round-trip внутри подключения)
+    public void driverConnect(long connectNanos, long otherNanos) {
+        phases.put("driverConnectNanos", connectNanos);
+        if (networkNanos >= 0) {
+            phases.put("authNanosEstimated", Math.max(0, connectNanos - networkNanos - otherNanos));
+        }
+    }
+
+    public void put(String phase, long nanos) {
+        phases.put(phase, nanos);
+    }
+
+    // Вспомогательный замер не удался - сама проба от этого не проваливается
+    public void failed(String phase, String error) {
+        phases.put(phase + "Error", error);
+    }
+
+    // Время отдельного запроса/команды; первый из них - ещё и firstQueryNanos
+    public void query(String name, long nanos) {
+        if (queries.isEmpty()) {
+            phases.put("firstQueryNanos", nanos);
+        }
+        queries.merge(name, nanos, Long::sum);
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>(phases);
+        map.put("queriesNanos", queries);
+        map.put("totalNanos", System.nanoTime() - start);
+        return map;
+    }
+
+    private static boolean postgresAcceptsSsl(Socket socket) throws IOException {
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeInt(8);
+        out.writeInt(PG_SSL_REQUEST);
+        out.flush();
+        return new DataInputStream(socket.getInputStream()).readByte() == 'S';
+    }
+}
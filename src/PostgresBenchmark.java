@@ -0,0 +1,184 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Нагрузочный режим для PostgreSQL: N параллельных соединений,
+// на каждом M выполнений запроса. Время подключения и время запросов
+// меряются отдельно, чтобы понять, выдержит ли хост нашу нагрузку
+public class PostgresBenchmark {
+    static final int MAX_CONNECTIONS = 64;
+    static final int MAX_ITERATIONS = 100_000;
+    private static final int MAX_ERROR_SAMPLES = 5;
+
+    // Параметры прогона
+    public static class Options {
+        public int connections = 4;
+        public int iterations = 100;
+        public String query = "SELECT 1";
+        public boolean prepared;
+        public long timeoutMs = 60_000;
+    }
+
+    public static PostgresService.TestResult run(String connectionString, Options options) {
+        if (connectionString == null || connectionString.isEmpty()) {
+            return new PostgresService.TestResult(false, "Connection string is empty");
+        }
+        String jdbcUrl;
+        try {
+            jdbcUrl = PostgresService.toJdbcUrl(connectionString);
+        } catch (IllegalArgumentException e) {
+            return new PostgresService.TestResult(false, e.getMessage());
+        }
+
+        int connections = Math.max(1, Math.min(MAX_CONNECTIONS, options.connections));
+        int iterations = Math.max(1, Math.min(MAX_ITERATIONS, options.iterations));
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.timeoutMs);
+
+        LatencyHistogram connectLatency = new LatencyHistogram();
+        LatencyHistogram queryLatency = new LatencyHistogram();
+        LongAdder ops = new LongAdder();
+        LongAdder errors = new LongAdder();
+        LongAdder connectErrors = new LongAdder();
+        List<String> errorSamples = Collections.synchronizedList(new ArrayList<>());
+
+        // Все воркеры сначала подключаются, и только потом одновременно начинают запросы
+        CountDownLatch connected = new CountDownLatch(connections);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(connections);
+
+        ExecutorService workers = Executors.newFixedThreadPool(connections, WebServer.namedDaemonFactory("pg-bench"));
+        try {
+            for (int i = 0; i < connections; i++) {
+                workers.execute(() -> {
+                    Connection conn = null;
+                    try {
+                        long connectStart = System.nanoTime();
+                        try {
+                            conn = DriverManager.getConnection(jdbcUrl);
+                            connectLatency.record(System.nanoTime() - connectStart);
+                        } catch (SQLException e) {
+                            connectErrors.increment();
+                            sample(errorSamples, "connect: " + e.getMessage());
+                        } finally {
+                            connected.countDown();
+                        }
+                        if (conn == null) return;
+
+                        go.await();
+                        runQueries(conn, options, iterations, deadline, queryLatency, ops, errors, errorSamples);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        closeQuietly(conn);
+                        finished.countDown();
+                    }
+                });
+            }
+
+            long remaining = deadline - System.nanoTime();
+            connected.await(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+            long queryStart = System.nanoTime();
+            go.countDown();
+            boolean completed = finished.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            long elapsedNanos = System.nanoTime() - queryStart;
+
+            long totalOps = ops.sum();
+            boolean success = connectErrors.sum() < connections && errors.sum() == 0 && completed;
+            PostgresService.TestResult result = new PostgresService.TestResult(success,
+                    completed ? "PostgreSQL benchmark finished" : "PostgreSQL benchmark hit the time limit");
+            result.data.put("connections", connections);
+            result.data.put("iterationsPerConnection", iterations);
+            result.data.put("query", options.query);
+            result.data.put("prepared", options.prepared);
+            result.data.put("totalOps", totalOps);
+            result.data.put("errors", errors.sum());
+            result.data.put("connectErrors", connectErrors.sum());
+            result.data.put("errorSamples", new ArrayList<>(errorSamples));
+            result.data.put("elapsedMs", LatencyHistogram.toMillis(elapsedNanos));
+            result.data.put("opsPerSec", elapsedNanos == 0 ? 0 : Math.round(totalOps * 1e9 / elapsedNanos));
+            result.data.put("latencyMs", queryLatency.toMap());
+            result.data.put("connectMs", connectLatency.toMap());
+            return result;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new PostgresService.TestResult(false, "PostgreSQL benchmark interrupted");
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private static void runQueries(Connection conn, Options options, int iterations, long deadline,
+                                   LatencyHistogram latency, LongAdder ops, LongAdder errors, List<String> errorSamples) {
+        try (Statement plain = options.prepared ? null : conn.createStatement();
+             PreparedStatement prepared = options.prepared ? conn.prepareStatement(options.query) : null) {
+            // Зависший запрос не должен пережить общий лимит времени прогона
+            int timeoutSeconds = (int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(deadline - System.nanoTime()));
+            (prepared != null ? prepared : plain).setQueryTimeout(timeoutSeconds);
+            for (int i = 0; i < iterations && System.nanoTime() < deadline; i++) {
+                long start = System.nanoTime();
+                try {
+                    boolean hasResultSet = prepared != null ? prepared.execute() : plain.execute(options.query);
+                    if (hasResultSet) {
+                        // Результат вычитываем полностью - иначе меряем только первый пакет
+                        try (ResultSet rs = prepared != null ? prepared.getResultSet() : plain.getResultSet()) {
+                            while (rs.next()) {
+                                // пропускаем строки
+                            }
+                        }
+                    }
+                    latency.record(System.nanoTime() - start);
+                    ops.increment();
+                } catch (SQLException e) {
+                    errors.increment();
+                    sample(errorSamples, e.getMessage());
+                }
+            }
+        } catch (SQLException e) {
+            errors.increment();
+            sample(errorSamples, "prepare: " + e.getMessage());
+        }
+    }
+
+    private static void sample(List<String> samples, String message) {
+        synchronized (samples) {
+            if (samples.size() < MAX_ERROR_SAMPLES) {
+                samples.add(message);
+            }
+        }
+    }
+
+    private static void closeQuietly(Connection conn) {
+        if (conn == null) return;
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            // Соединение уже не нужно
+        }
+    }
+
+    // Параметры из query string: connections, iterations, query, prepared, timeoutMs
+    static Options optionsFrom(QueryParams params) {
+        Options options = new Options();
+        options.connections = QueryParams.intParam(params.get("connections"), options.connections);
+        options.iterations = QueryParams.intParam(params.get("iterations"), options.iterations);
+        if (params.get("query") != null && !params.get("query").trim().isEmpty()) {
+            options.query = params.get("query");
+        }
+        options.prepared = "true".equalsIgnoreCase(params.get("prepared"));
+        options.timeoutMs = Math.max(1000,
+                Math.min(600_000, QueryParams.intParam(params.get("timeoutMs"), (int) options.timeoutMs)));
+        return options;
+    }
+}
@@ -0,0 +1,465 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Встроенный пул JDBC-соединений, отдельный на каждый JDBC URL.
+// Позволяет мерить отдельно стоимость подключения и стоимость запросов
+// и не порождать новый backend PostgreSQL на каждую пробу.
+public class PostgresPool {
+    // -Dpg.pool.min=1  -Dpg.pool.max=4  -Dpg.pool.borrowTimeoutMs=5000
+    // -Dpg.pool.maxLifetimeSeconds=1800  -Dpg.pool.idleSeconds=600  -Dpg.pool.leakSeconds=60 (0 - не искать утечки)
+    // -Dpg.pool.leakTrace=true - запоминать стек взятия соединения, чтобы показать его при утечке
+    // -Dpg.pool.connectTimeoutSeconds=10 - connectTimeout, loginTimeout и socketTimeout новых соединений пула
+    private static final int MIN_SIZE = Integer.getInteger("pg.pool.min", 1);
+    private static final int MAX_SIZE = Integer.getInteger("pg.pool.max", 4);
+    private static final long BORROW_TIMEOUT_MS = Integer.getInteger("pg.pool.borrowTimeoutMs", 5000);
+    private static final long MAX_LIFETIME_NANOS = TimeUnit.SECONDS.toNanos(Integer.getInteger("pg.pool.maxLifetimeSeconds", 1800));
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(Integer.getInteger("pg.pool.idleSeconds", 600));
+    private static final long LEAK_NANOS = TimeUnit.SECONDS.toNanos(Integer.getInteger("pg.pool.leakSeconds", 60));
+    // Стек на каждое взятие - дорого для горячего пути, поэтому только по запросу
+    private static final boolean LEAK_TRACE = LEAK_NANOS > 0 && Boolean.getBoolean("pg.pool.leakTrace");
+    // Без таймаутов один зависший сервер держал бы поток обслуживания, общий для всех пулов
+    private static final int CONNECT_TIMEOUT_SECONDS = Integer.getInteger("pg.pool.connectTimeoutSeconds", 10);
+
+    // Соединение, вернувшееся в пул совсем недавно, не проверяем повторно
+    private static final long VALIDATION_BYPASS_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private static final Map<String, PostgresPool> POOLS = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService HOUSEKEEPER =
+            Executors.newSingleThreadScheduledExecutor(WebServer.namedDaemonFactory("pg-pool-housekeeper"));
+
+    static {
+        HOUSEKEEPER.scheduleWithFixedDelay(PostgresPool::maintainAll, 10, 10, TimeUnit.SECONDS);
+    }
+
+    private final String jdbcUrl;
+    // jdbcUrl с таймаутами открытия соединения - для дозаполнения пула
+    private final String connectUrl;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition returned = lock.newCondition();
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private final Set<Lease> active = ConcurrentHashMap.newKeySet();
+    private int total;
+    // Пул закрыт (closeAll или удалён обслуживанием): возвращённые соединения закрываются.
+    // Меняется под lock - тем же, под которым borrow занимает слот
+    private boolean closed;
+    private volatile long lastBorrowNanos = System.nanoTime();
+
+    private PostgresPool(String jdbcUrl) {
+        this.jdbcUrl = jdbcUrl;
+        this.connectUrl = PostgresService.withTimeouts(jdbcUrl, CONNECT_TIMEOUT_SECONDS);
+    }
+
+    private static class PooledConnection {
+        final Connection connection;
+        final long createdNanos;
+        long lastReturnedNanos;
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+            this.createdNanos = System.nanoTime();
+            this.lastReturnedNanos = createdNanos;
+        }
+    }
+
+    // Выданное соединение. close() возвращает его в пул (или закрывает, если пула нет)
+    public static class Lease implements AutoCloseable {
+        private final PostgresPool pool;
+        private final PooledConnection pooled;
+        private final boolean reused;
+        private final long connectNanos;
+        private final long borrowedNanos = System.nanoTime();
+        private final Throwable borrowSite;
+        private boolean discard;
+        private boolean closed;
+        private boolean leakReported;
+
+        private Lease(PostgresPool pool, PooledConnection pooled, boolean reused, long connectNanos) {
+            this.pool = pool;
+            this.pooled = pooled;
+            this.reused = reused;
+            this.connectNanos = connectNanos;
+            this.borrowSite = pool != null && LEAK_TRACE ? new Throwable("Connection borrowed here") : null;
+        }
+
+        public Connection connection() {
+            return pooled.connection;
+        }
+
+        // true, если соединение было взято из пула, а не открыто заново
+        public boolean isReused() {
+            return reused;
+        }
+
+        // Время получения соединения: открытие или взятие из пула с проверкой
+        public long connectNanos() {
+            return connectNanos;
+        }
+
+        // Соединение не возвращать в пул (например, после ошибки запроса)
+        public void discard() {
+            discard = true;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            if (pool == null) {
+                closeQuietly(pooled.connection);
+            } else {
+                pool.giveBack(this);
+            }
+        }
+    }
+
+    public static PostgresPool forUrl(String jdbcUrl) {
+        return POOLS.computeIfAbsent(jdbcUrl, PostgresPool::new);
+    }
+
+    // Холодное подключение в обход пула: каждый раз новый backend
+    public static Lease connectCold(String jdbcUrl) throws SQLException {
+        long start = System.nanoTime();
+        Connection connection = open(jdbcUrl);
+        return new Lease(null, new PooledConnection(connection), false, System.nanoTime() - start);
+    }
+
+    // В пределах срока пробы: пула ждём не дольше остатка срока,
+    // новое соединение открываем с таймаутами из того же остатка
+    public Lease borrow(Deadline probeDeadline) throws SQLException {
+        long start = System.nanoTime();
+        long waitMs = Math.min(BORROW_TIMEOUT_MS, probeDeadline.remainingMillis());
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(waitMs);
+        String connectUrl = PostgresService.withTimeouts(jdbcUrl, probeDeadline);
+        PostgresPool pool = this;
+        while (true) {
+            Lease lease = pool.tryBorrow(start, deadline, connectUrl);
+            if (lease != null) return lease;
+            // Пул удалили, пока его брали из POOLS, - берём у того, что пришёл ему на смену,
+            // в пределах того же срока
+            pool = forUrl(jdbcUrl);
+        }
+    }
+
+    // null - пул закрыт и соединений больше не выдаёт
+    private Lease tryBorrow(long start, long deadline, String connectUrl) throws SQLException {
+        lastBorrowNanos = start;
+
+        while (true) {
+            PooledConnection candidate = null;
+            boolean mayCreate = false;
+
+            boolean retired;
+            lock.lock();
+            try {
+                retired = closed;
+                while (!retired && idle.isEmpty() && total >= MAX_SIZE) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new SQLException("Connection pool exhausted: " + MAX_SIZE + " connections in use");
+                    }
+                    returned.awaitNanos(remaining);
+                    retired = closed;
+                }
+                if (!retired && !idle.isEmpty()) {
+                    // LIFO: самое "тёплое" соединение
+                    candidate = idle.pollFirst();
+                } else if (!retired) {
+                    total++;
+                    mayCreate = true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a pooled connection", e);
+            } finally {
+                lock.unlock();
+            }
+
+            if (retired) {
+                return null;
+            }
+            if (mayCreate) {
+                try {
+                    Connection connection = open(connectUrl);
+                    return register(new PooledConnection(connection), false, start);
+                } catch (SQLException | RuntimeException e) {
+                    dropSlot();
+                    throw e;
+                }
+            }
+
+            if (isUsable(candidate)) {
+                return register(candidate, true, start);
+            }
+            closeQuietly(candidate.connection);
+            dropSlot();
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        lock.lock();
+        try {
+            stats.put("total", total);
+            stats.put("idle", idle.size());
+        } finally {
+            lock.unlock();
+        }
+        stats.put("active", active.size());
+        stats.put("min", MIN_SIZE);
+        stats.put("max", MAX_SIZE);
+        return stats;
+    }
+
+    // Соединения всех пулов по состоянию - для /metrics
+    public static Map<String, Long> totals() {
+        long idle = 0;
+        long active = 0;
+        for (PostgresPool pool : POOLS.values()) {
+            pool.lock.lock();
+            try {
+                idle += pool.idle.size();
+            } finally {
+                pool.lock.unlock();
+            }
+            active += pool.active.size();
+        }
+        Map<String, Long> totals = new HashMap<>();
+        totals.put("idle", idle);
+        totals.put("active", active);
+        return totals;
+    }
+
+    // Новое соединение с сервером, с учётом в метриках драйвера
+    private static Connection open(String jdbcUrl) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            Connection connection = DriverManager.getConnection(jdbcUrl);
+            Metrics.connectionCreated("postgres", System.nanoTime() - start);
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            Metrics.connectionFailed("postgres");
+            throw e;
+        }
+    }
+
+    // Закрывает пул, если в нём не осталось ни одного соединения. Под тем же lock, что и borrow:
+    // слот, занятый параллельным borrow, виден в total, и тогда пул остаётся
+    private boolean retireIfEmpty() {
+        lock.lock();
+        try {
+            if (total > 0) return false;
+            closed = true;
+            returned.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Выданные соединения закроются при возврате: пул уже помечен закрытым
+    public static void closeAll() {
+        for (PostgresPool pool : POOLS.values()) {
+            pool.lock.lock();
+            try {
+                pool.closed = true;
+                pool.returned.signalAll();
+            } finally {
+                pool.lock.unlock();
+            }
+            pool.shrink(0, 0);
+        }
+        POOLS.clear();
+    }
+
+    private Lease register(PooledConnection pooled, boolean reused, long start) {
+        Lease lease = new Lease(this, pooled, reused, System.nanoTime() - start);
+        active.add(lease);
+        return lease;
+    }
+
+    private boolean isUsable(PooledConnection pooled) {
+        long now = System.nanoTime();
+        if (now - pooled.createdNanos > MAX_LIFETIME_NANOS) {
+            return false;
+        }
+        if (now - pooled.lastReturnedNanos < VALIDATION_BYPASS_NANOS) {
+            return true;
+        }
+        try {
+            return pooled.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void giveBack(Lease lease) {
+        active.remove(lease);
+        PooledConnection pooled = lease.pooled;
+        boolean keep = !lease.discard && System.nanoTime() - pooled.createdNanos < MAX_LIFETIME_NANOS;
+        if (keep) {
+            try {
+                keep = !pooled.connection.isClosed();
+                // Проба не должна оставлять за собой открытую транзакцию
+                if (keep && !pooled.connection.getAutoCommit()) {
+                    pooled.connection.rollback();
+                    pooled.connection.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                keep = false;
+            }
+        }
+
+        if (!keep) {
+            closeQuietly(pooled.connection);
+            dropSlot();
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (closed) {
+                total--;
+            } else {
+                pooled.lastReturnedNanos = System.nanoTime();
+                idle.addFirst(pooled);
+                returned.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        closeQuietly(pooled.connection);
+    }
+
+    private void dropSlot() {
+        lock.lock();
+        try {
+            total--;
+            returned.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Закрывает соединения сверх keep, простаивающие дольше idleNanos, и все просроченные
+    private void shrink(int keep, long idleNanos) {
+        Deque<PooledConnection> toClose = new ArrayDeque<>();
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            int kept = 0;
+            // Обходим от самых "тёплых" к самым старым
+            Iterator<PooledConnection> it = idle.iterator();
+            while (it.hasNext()) {
+                PooledConnection pooled = it.next();
+                boolean expired = now - pooled.createdNanos > MAX_LIFETIME_NANOS;
+                boolean stale = now - pooled.lastReturnedNanos >= idleNanos;
+                if (expired || (kept >= keep && stale)) {
+                    it.remove();
+                    toClose.add(pooled);
+                    total--;
+                } else {
+                    kept++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (PooledConnection pooled : toClose) {
+            closeQuietly(pooled.connection);
+        }
+    }
+
+    private void fillToMinimum() {
+        while (true) {
+            lock.lock();
+            try {
+                if (closed || total >= MIN_SIZE) return;
+                total++;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                PooledConnection pooled = new PooledConnection(open(connectUrl));
+                lock.lock();
+                try {
+                    if (!closed) {
+                        idle.addLast(pooled);
+                        returned.signal();
+                        continue;
+                    }
+                    total--;
+                } finally {
+                    lock.unlock();
+                }
+                closeQuietly(pooled.connection);
+                return;
+            } catch (SQLException e) {
+                // Сервер недоступен - дозаполним на следующем цикле
+                dropSlot();
+                return;
+            }
+        }
+    }
+
+    private void detectLeaks() {
+        if (LEAK_NANOS <= 0) return;
+        long now = System.nanoTime();
+        for (Lease lease : active) {
+            if (!lease.leakReported && now - lease.borrowedNanos > LEAK_NANOS) {
+                lease.leakReported = true;
+                System.err.println("⚠️  Possible connection leak: connection held for "
+                        + TimeUnit.NANOSECONDS.toSeconds(now - lease.borrowedNanos) + "s"
+                        + (lease.borrowSite == null ? " (start with -Dpg.pool.leakTrace=true to see where)" : ""));
+                if (lease.borrowSite != null) {
+                    lease.borrowSite.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static void maintainAll() {
+        long now = System.nanoTime();
+        for (Iterator<PostgresPool> it = POOLS.values().iterator(); it.hasNext(); ) {
+            PostgresPool pool = it.next();
+            try {
+                pool.detectLeaks();
+                if (now - pool.lastBorrowNanos > IDLE_NANOS) {
+                    // К этой цели давно не обращались - минимальный размер не держим
+                    pool.shrink(0, 0);
+                    if (pool.retireIfEmpty()) {
+                        it.remove();
+                    }
+                } else {
+                    pool.shrink(MIN_SIZE, IDLE_NANOS);
+                    pool.fillToMinimum();
+                }
+            } catch (RuntimeException e) {
+                System.err.println("⚠️  Pool maintenance failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // Соединение уже не нужно
+        }
+    }
+}
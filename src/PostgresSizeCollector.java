@@ -0,0 +1,223 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Размеры баз PostgreSQL отдельно от основной пробы.
+// pg_database_size обходит файлы каждой базы - на больших кластерах это секунды и лишний I/O.
+// Поэтому размеры собираются в фоне, отдельным подключением, с statement_timeout на каждую базу,
+// и кэшируются на кластер (хост, порт, пользователь) на -Dpg.sizes.refreshSeconds
+public class PostgresSizeCollector {
+    // -Dpg.sizes.refreshSeconds=300  -Dpg.sizes.statementTimeoutMs=10000  -Dpg.sizes.workers=2
+    private static final long REFRESH_MS = TimeUnit.SECONDS.toMillis(Integer.getInteger("pg.sizes.refreshSeconds", 300));
+    private static final int STATEMENT_TIMEOUT_MS = Integer.getInteger("pg.sizes.statementTimeoutMs", 10_000);
+    private static final int WORKERS = Integer.getInteger("pg.sizes.workers", 2);
+    private static final long ERROR_RETRY_MS = 30_000;
+
+    private static final ExecutorService EXECUTOR =
+            Executors.newFixedThreadPool(WORKERS, WebServer.namedDaemonFactory("pg-sizes"));
+
+    private static final Map<String, Cluster> CLUSTERS = new ConcurrentHashMap<>();
+
+    // Последний собранный снимок и сбор, который идёт сейчас
+    private static class Cluster {
+        volatile Snapshot last;
+        CompletableFuture<Snapshot> inFlight;
+    }
+
+    public static class Snapshot {
+        final List<Map<String, Object>> databases;
+        final long collectedAt;
+        final long durationMs;
+        final String error;
+
+        Snapshot(List<Map<String, Object>> databases, long collectedAt, long durationMs, String error) {
+            this.databases = databases;
+            this.collectedAt = collectedAt;
+            this.durationMs = durationMs;
+            this.error = error;
+        }
+
+        // Неудачный сбор повторяем раньше, но не на каждую пробу
+        boolean isStale(long now) {
+            return now - collectedAt >= (error != null ? Math.min(REFRESH_MS, ERROR_RETRY_MS) : REFRESH_MS);
+        }
+
+        // Размер базы по имени, null - не собран (нет прав, таймаут)
+        Long sizeOf(String database) {
+            for (Map<String, Object> db : databases) {
+                if (database.equals(db.get("name"))) {
+                    return (Long) db.get("size");
+                }
+            }
+            return null;
+        }
+    }
+
+    // Для основной пробы: не ждёт. Отдаёт то, что есть в кэше (или null),
+    // и запускает фоновое обновление, если снимка нет или он устарел
+    public static Snapshot cachedAndRefresh(String jdbcUrl) {
+        Cluster cluster = CLUSTERS.computeIfAbsent(clusterKey(jdbcUrl), k -> new Cluster());
+        Snapshot last = cluster.last;
+        if (last == null || last.isStale(System.currentTimeMillis())) {
+            refresh(cluster, jdbcUrl);
+        }
+        return last;
+    }
+
+    // Отдельный запрос размеров: свежий снимок из кэша или ожидание сбора не дольше waitMs.
+    // force - собрать заново, даже если снимок ещё не устарел
+    public static Map<String, Object> get(String jdbcUrl, boolean force, long waitMs) {
+        Cluster cluster = CLUSTERS.computeIfAbsent(clusterKey(jdbcUrl), k -> new Cluster());
+        Snapshot last = cluster.last;
+        Map<String, Object> data = new LinkedHashMap<>();
+        if (last != null && !force && !last.isStale(System.currentTimeMillis())) {
+            return describe(last, false, data);
+        }
+
+        CompletableFuture<Snapshot> collecting = refresh(cluster, jdbcUrl);
+        try {
+            return describe(collecting.get(waitMs, TimeUnit.MILLISECONDS), false, data);
+        } catch (TimeoutException e) {
+            // Сбор продолжается в фоне; пока отдаём прошлый снимок, если он есть
+            data.put("note", "Size collection is still running, showing the previous result if any");
+            return describe(cluster.last, true, data);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return describe(cluster.last, true, data);
+        } catch (ExecutionException e) {
+            data.put("error", String.valueOf(e.getCause().getMessage()));
+            return describe(cluster.last, false, data);
+        }
+    }
+
+    public static void clear() {
+        CLUSTERS.clear();
+    }
+
+    private static Map<String, Object> describe(Snapshot snapshot, boolean collecting, Map<String, Object> data) {
+        data.put("collecting", collecting);
+        if (snapshot == null) {
+            data.put("databases", List.of());
+            return data;
+        }
+        data.put("databases", snapshot.databases);
+        data.put("databaseCount", snapshot.databases.size());
+        long total = 0;
+        for (Map<String, Object> db : snapshot.databases) {
+            if (db.get("size") instanceof Long) total += (Long) db.get("size");
+        }
+        data.put("totalSize", total);
+        data.put("totalSizeFormatted", PostgresService.formatBytes(total));
+        data.put("collectedAt", Instant.ofEpochMilli(snapshot.collectedAt).toString());
+        data.put("ageMs", System.currentTimeMillis() - snapshot.collectedAt);
+        data.put("durationMs", snapshot.durationMs);
+        data.put("statementTimeoutMs", STATEMENT_TIMEOUT_MS);
+        if (snapshot.error != null) {
+            data.put("error", snapshot.error);
+        }
+        return data;
+    }
+
+    // Не больше одного сбора на кластер одновременно
+    private static CompletableFuture<Snapshot> refresh(Cluster cluster, String jdbcUrl) {
+        synchronized (cluster) {
+            if (cluster.inFlight == null) {
+                CompletableFuture<Snapshot> future = CompletableFuture.supplyAsync(() -> collect(jdbcUrl), EXECUTOR);
+                cluster.inFlight = future;
+                future.whenComplete((snapshot, error) -> {
+                    synchronized (cluster) {
+                        if (snapshot != null) {
+                            cluster.last = snapshot;
+                        }
+                        cluster.inFlight = null;
+                    }
+                });
+                // Не cluster.inFlight: быстрый сбор мог уже завершиться и обнулить его
+                return future;
+            }
+            return cluster.inFlight;
+        }
+    }
+
+    // По запросу на базу: одна медленная база упирается в свой statement_timeout, а не роняет весь сбор
+    private static Snapshot collect(String jdbcUrl) {
+        long start = System.currentTimeMillis();
+        List<Map<String, Object>> databases = new ArrayList<>();
+        try (PostgresPool.Lease lease = PostgresPool.connectCold(jdbcUrl)) {
+            Connection conn = lease.connection();
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("SET statement_timeout = " + STATEMENT_TIMEOUT_MS);
+            }
+
+            List<String> names = new ArrayList<>();
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT datname FROM pg_database " +
+                         "WHERE datistemplate = false AND has_database_privilege(datname, 'CONNECT') " +
+                         "ORDER BY datname")) {
+                while (rs.next()) {
+                    names.add(rs.getString(1));
+                }
+            }
+
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT pg_database_size(?)")) {
+                // Страховка на случай, если сервер не применит statement_timeout
+                stmt.setQueryTimeout((int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(STATEMENT_TIMEOUT_MS) + 1));
+                for (String name : names) {
+                    Map<String, Object> dbInfo = new LinkedHashMap<>();
+                    dbInfo.put("name", name);
+                    long dbStart = System.nanoTime();
+                    try {
+                        stmt.setString(1, name);
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            if (rs.next()) {
+                                long size = rs.getLong(1);
+                                dbInfo.put("size", size);
+                                dbInfo.put("sizeFormatted", PostgresService.formatBytes(size));
+                            }
+                        }
+                    } catch (SQLException e) {
+                        // 57014 - query_canceled (сработал statement_timeout)
+                        dbInfo.put("size", null);
+                        dbInfo.put("sizeFormatted", "57014".equals(e.getSQLState()) ? "Timed out" : "Unavailable");
+                        dbInfo.put("error", e.getMessage());
+                    }
+                    dbInfo.put("queryMs", (System.nanoTime() - dbStart) / 1_000_000.0);
+                    databases.add(dbInfo);
+                }
+            }
+            return new Snapshot(databases, System.currentTimeMillis(), System.currentTimeMillis() - start, null);
+        } catch (SQLException e) {
+            return new Snapshot(databases, System.currentTimeMillis(), System.currentTimeMillis() - start,
+                    "Size collection failed: " + e.getMessage());
+        }
+    }
+
+    // Кластер = URL без имени базы: размеры всех баз одинаковы, к какой бы базе ни подключились.
+    // Параметры (пользователь, пароль) остаются в ключе - у разных пользователей разные права
+    private static String clusterKey(String jdbcUrl) {
+        String prefix = "jdbc:postgresql://";
+        String rest = jdbcUrl.startsWith(prefix) ? jdbcUrl.substring(prefix.length()) : jdbcUrl;
+        int query = rest.indexOf('?');
+        String authority = query >= 0 ? rest.substring(0, query) : rest;
+        String params = query >= 0 ? rest.substring(query) : "";
+        int slash = authority.indexOf('/');
+        if (slash >= 0) {
+            authority = authority.substring(0, slash);
+        }
+        return ProbeCache.keyOf(authority, params);
+    }
+}
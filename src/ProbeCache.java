@@ -0,0 +1,209 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Схлопывание одинаковых проб и короткий кэш результатов.
+// Одновременные запросы к одной цели (та же строка подключения, учётные данные и команда)
+// ждут одну пробу, а не открывают каждый своё подключение к и так перегруженной базе.
+// Готовый результат отдаётся из кэша ещё -Dprobe.cacheTtlMs (по умолчанию 5000 мс);
+// 0 - только схлопывание одновременных запросов, без кэша.
+// Срок (timeoutMs) в ключ не входит: чужую пробу каждый запрос ждёт не дольше своего срока
+public class ProbeCache {
+    private static final long TTL_MS = Long.getLong("probe.cacheTtlMs", 5000);
+    private static final int MAX_ENTRIES = Integer.getInteger("probe.cacheMaxEntries", 1000);
+
+    // Ключ - SHA-256 от параметров пробы, чтобы секреты не лежали в памяти открытым текстом
+    private static final ConcurrentHashMap<String, Entry> ENTRIES = new ConcurrentHashMap<>();
+
+    private static class Entry {
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+        // Сколько запросов ждут эту пробу, кроме запустившего её
+        final AtomicInteger waiters = new AtomicInteger();
+        volatile long completedAt;
+
+        boolean isExpired(long now) {
+            return future.isDone() && now - completedAt >= TTL_MS;
+        }
+    }
+
+    // Результат вместе с тем, откуда он взялся
+    public static class Result<T> {
+        public final T value;
+        // true - отдан из кэша, проба не запускалась
+        public final boolean cached;
+        // true - дождались чужой пробы, которая уже шла
+        public final boolean shared;
+        // Возраст результата в миллисекундах (0 - только что получен)
+        public final long ageMs;
+
+        Result(T value, boolean cached, boolean shared, long ageMs) {
+            this.value = value;
+            this.cached = cached;
+            this.shared = shared;
+            this.ageMs = ageMs;
+        }
+    }
+
+    // refresh=true - не брать готовый результат из кэша, пробовать заново (и обновить кэш).
+    // Чужая проба не закончилась за срок deadline - этот запрос получает timedOut, а проба идёт дальше
+    @SuppressWarnings("unchecked")
+    public static <T> Result<T> get(String key, boolean refresh, Deadline deadline,
+                                    Supplier<T> probe, Supplier<T> timedOut) {
+        long now = System.currentTimeMillis();
+        Entry fresh = new Entry();
+        Entry entry = ENTRIES.compute(key, (k, existing) ->
+                existing == null || existing.isExpired(now) || (refresh && existing.future.isDone())
+                        ? fresh : existing);
+
+        if (entry != fresh) {
+            boolean done = entry.future.isDone();
+            Metrics.probeCache(done ? "hit" : "shared");
+            T value;
+            entry.waiters.incrementAndGet();
+            try {
+                value = (T) await(entry.future, waitMillis(deadline));
+            } catch (TimeoutException e) {
+                return new Result<>(timedOut.get(), false, true, 0);
+            } finally {
+                entry.waiters.decrementAndGet();
+            }
+            return done
+                    ? new Result<>(value, true, false, Math.max(0, now - entry.completedAt))
+                    : new Result<>(value, false, true, 0);
+        }
+
+        Metrics.probeCache("miss");
+        if (ENTRIES.size() > MAX_ENTRIES) {
+            ENTRIES.values().removeIf(e -> e.isExpired(now));
+        }
+        try {
+            T value = probe.get();
+            fresh.completedAt = System.currentTimeMillis();
+            fresh.future.complete(value);
+            if (TTL_MS <= 0) {
+                ENTRIES.remove(key, fresh);
+            }
+            return new Result<>(value, false, false, 0);
+        } catch (RuntimeException | Error e) {
+            // Ошибки самой пробы не кэшируем: ждавшие её получат исключение, следующий запрос попробует заново
+            ENTRIES.remove(key, fresh);
+            fresh.future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    // То же для асинхронной пробы: поток не ждёт ни свою пробу, ни чужую
+    @SuppressWarnings("unchecked")
+    public static <T> CompletableFuture<Result<T>> getAsync(String key, boolean refresh, Deadline deadline,
+                                                            Supplier<CompletableFuture<T>> probe,
+                                                            Supplier<T> timedOut) {
+        long now = System.currentTimeMillis();
+        Entry fresh = new Entry();
+        Entry entry = ENTRIES.compute(key, (k, existing) ->
+                existing == null || existing.isExpired(now) || (refresh && existing.future.isDone())
+                        ? fresh : existing);
+
+        if (entry != fresh) {
+            boolean done = entry.future.isDone();
+            Metrics.probeCache(done ? "hit" : "shared");
+            entry.waiters.incrementAndGet();
+            CompletableFuture<Result<T>> waiting = entry.future.thenApply(value -> done
+                    ? new Result<>((T) value, true, false, Math.max(0, now - entry.completedAt))
+                    : new Result<>((T) value, false, true, 0));
+            ScheduledFuture<?> timeout = done ? null : Deadline.TIMER.schedule(() -> {
+                if (!waiting.isDone()) {
+                    waiting.complete(new Result<>(timedOut.get(), false, true, 0));
+                }
+            }, waitMillis(deadline), TimeUnit.MILLISECONDS);
+            return waiting.whenComplete((result, error) -> {
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                entry.waiters.decrementAndGet();
+            });
+        }
+
+        Metrics.probeCache("miss");
+        if (ENTRIES.size() > MAX_ENTRIES) {
+            ENTRIES.values().removeIf(e -> e.isExpired(now));
+        }
+        CompletableFuture<T> started;
+        try {
+            started = probe.get();
+        } catch (RuntimeException | Error e) {
+            started = CompletableFuture.failedFuture(e);
+        }
+        return started.whenComplete((value, error) -> {
+            if (error != null) {
+                // Ошибки самой пробы не кэшируем, как и в get
+                ENTRIES.remove(key, fresh);
+                fresh.future.completeExceptionally(error);
+                return;
+            }
+            fresh.completedAt = System.currentTimeMillis();
+            fresh.future.complete(value);
+            if (TTL_MS <= 0) {
+                ENTRIES.remove(key, fresh);
+            }
+        }).thenApply(value -> new Result<>(value, false, false, 0));
+    }
+
+    // true - результат пробы ждёт кто-то ещё, отменять её нельзя
+    public static boolean isShared(String key) {
+        Entry entry = ENTRIES.get(key);
+        return entry != null && entry.waiters.get() > 0;
+    }
+
+    // Убирает результат из кэша (например, проба была отменена и её результат не показателен)
+    public static void invalidate(String key) {
+        ENTRIES.remove(key);
+    }
+
+    public static String keyOf(String... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : parts) {
+                digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static void clear() {
+        ENTRIES.clear();
+    }
+
+    // До момента, когда срок уже точно истёк: remainingMillis округляет вниз
+    private static long waitMillis(Deadline deadline) {
+        return deadline.remainingMillis() + 1;
+    }
+
+    private static Object await(CompletableFuture<Object> future, long waitMs) throws TimeoutException {
+        try {
+            return future.get(waitMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a shared probe", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+}
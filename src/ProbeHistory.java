@@ -0,0 +1,381 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// История проб на диске: каждая проба - запись фиксированного размера в сегменте,
+// отображённом в память (mmap). Запись - несколько put в буфер, без системных вызовов;
+// данные переживают падение процесса (страницы уже у ОС), но не отключение питания.
+//
+// Сегмент probes-<время первой записи>.seg - SEGMENT_RECORDS записей по RECORD_BYTES байт,
+// хвост заполнен нулями. Записи в сегменте упорядочены по времени, поэтому диапазон ищется
+// двоичным поиском по полю времени, а не чтением всего файла. Цели пронумерованы
+// в targets.tsv (id, тип, цель без учётных данных) - в записи только номер.
+// Включается -Dhistory.dir=<каталог>
+public class ProbeHistory {
+    // Запись: время (мс), id цели, статус, 3 байта резерва, фазы в микросекундах (-1 - фазы не было)
+    static final int RECORD_BYTES = 40;
+    static final String[] PHASES = {"dns", "connect", "tls", "auth", "query", "total"};
+    // Ключи фаз в timings проб: для каждой фазы - первый найденный
+    private static final String[][] PHASE_KEYS = {
+            {"dnsNanos"},
+            {"tcpConnectNanos"},
+            {"tlsHandshakeNanos"},
+            {"authNanos", "authNanosEstimated", "startupNanos"},
+            {"firstQueryNanos"},
+    };
+    static final byte OK = 0;
+    static final byte FAILED = 1;
+    static final byte TIMED_OUT = 2;
+    static final byte CANCELLED = 3;
+    private static final String[] STATUS_NAMES = {"ok", "failed", "timedOut", "cancelled"};
+
+    // -Dhistory.segmentRecords=262144 - записей в сегменте (по умолчанию 10 МБ на сегмент)
+    private static final int SEGMENT_RECORDS = Integer.getInteger("history.segmentRecords", 262_144);
+    // -Dhistory.retentionDays=30 - сегменты старше удаляются при ротации и при старте
+    private static final long RETENTION_MS = TimeUnit.DAYS.toMillis(Long.getLong("history.retentionDays", 30));
+    // Как и в Metrics: безграничный рост словаря целей недопустим
+    private static final int MAX_TARGETS = 10_000;
+    private static final String SEGMENT_PREFIX = "probes-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static volatile ProbeHistory instance;
+
+    private final Path dir;
+    private final Writer targetsFile;
+    private final Map<String, Integer> targetIds = new ConcurrentHashMap<>();
+    private final List<String[]> targets = new ArrayList<>();
+    // Сегменты по времени первой записи; последний - текущий, в него идёт запись
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private MappedByteBuffer current;
+    private long lastTimestamp;
+
+    private ProbeHistory(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        Path targetsPath = dir.resolve("targets.tsv");
+        if (Files.exists(targetsPath)) {
+            for (String line : Files.readAllLines(targetsPath, StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t", 3);
+                if (fields.length != 3) continue;
+                // Номер берём из файла, а не по порядку строк: на него ссылаются записи в сегментах
+                int id;
+                try {
+                    id = Integer.parseInt(fields[0]);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (id < 0 || id > MAX_TARGETS) continue;
+                String target = unescape(fields[2]);
+                while (targets.size() <= id) {
+                    targets.add(null);
+                }
+                targets.set(id, new String[]{fields[1], target});
+                targetIds.put(fields[1] + "|" + target, id);
+            }
+        }
+        targetsFile = Files.newBufferedWriter(targetsPath, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    // Чужой файл - не трогаем
+                }
+            }
+        }
+        dropExpired(System.currentTimeMillis());
+        // После перезапуска дописываем последний сегмент с места, где он закончился
+        if (!segments.isEmpty()) {
+            MappedByteBuffer last = map(segments.lastEntry().getValue(), FileChannel.MapMode.READ_WRITE);
+            int count = countOf(last);
+            lastTimestamp = count > 0 ? last.getLong((count - 1) * RECORD_BYTES) : 0;
+            if (count < last.capacity() / RECORD_BYTES) {
+                current = last;
+                current.position(count * RECORD_BYTES);
+            }
+        }
+    }
+
+    public static void openFromConfig(String dir) throws IOException {
+        if (dir == null || dir.isEmpty()) {
+            return;
+        }
+        ProbeHistory history = new ProbeHistory(Path.of(dir));
+        instance = history;
+        System.out.println("🗄 Probe history in " + history.dir.toAbsolutePath() + ", "
+                + history.segments.size() + " segments, retention "
+                + TimeUnit.MILLISECONDS.toDays(RETENTION_MS) + " days");
+    }
+
+    public static boolean isEnabled() {
+        return instance != null;
+    }
+
+    // Вызывается рядом с Metrics.probe. data - ответ пробы: фазы берутся из timings,
+    // срыв срока и отмена (клиент ушёл) - из deadline. Ошибка диска не должна ломать пробу -
+    // история тогда выключается
+    public static void record(String type, String connection, boolean success, long nanos, Map<String, Object> data) {
+        ProbeHistory history = instance;
+        if (history == null) return;
+        Object timings = data != null ? data.get("timings") : null;
+        Object deadline = data != null ? data.get("deadline") : null;
+        Map<?, ?> deadlineInfo = deadline instanceof Map ? (Map<?, ?>) deadline : Map.of();
+        byte status = success ? OK
+                : Boolean.TRUE.equals(deadlineInfo.get("timedOut")) ? TIMED_OUT
+                : deadlineInfo.get("cancelReason") != null ? CANCELLED
+                : FAILED;
+        int[] phases = new int[PHASES.length];
+        for (int i = 0; i < PHASE_KEYS.length; i++) {
+            phases[i] = -1;
+            for (String key : PHASE_KEYS[i]) {
+                Object value = timings instanceof Map ? ((Map<?, ?>) timings).get(key) : null;
+                if (value instanceof Number) {
+                    phases[i] = micros(((Number) value).longValue());
+                    break;
+                }
+            }
+        }
+        phases[PHASES.length - 1] = micros(nanos);
+        try {
+            history.append(history.targetId(type, Metrics.targetOf(connection)), status, phases);
+        } catch (IOException e) {
+            instance = null;
+            System.err.println("Probe history disabled: " + e.getMessage());
+        }
+    }
+
+    private static int micros(long nanos) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, nanos / 1000));
+    }
+
+    private int targetId(String type, String target) throws IOException {
+        Integer id = targetIds.get(type + "|" + target);
+        if (id != null) return id;
+        synchronized (targets) {
+            if (targets.size() >= MAX_TARGETS) {
+                target = "other";
+            }
+            id = targetIds.get(type + "|" + target);
+            if (id != null) return id;
+            id = targets.size();
+            targetsFile.write(id + "\t" + type + "\t" + escape(target) + "\n");
+            targetsFile.flush();
+            targets.add(new String[]{type, target});
+            targetIds.put(type + "|" + target, id);
+            return id;
+        }
+    }
+
+    // Табуляция и перевод строки в цели (например, в строке подключения) сломали бы targets.tsv
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) return value;
+        StringBuilder out = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                out.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    // Время не убывает внутри сегмента (часы могут отступить) - на этом держится двоичный поиск.
+    // Время пишется последним: запись с нулевым временем считается незаписанной
+    private synchronized void append(int targetId, byte status, int[] phases) throws IOException {
+        long now = Math.max(System.currentTimeMillis(), lastTimestamp);
+        if (current == null || !current.hasRemaining()) {
+            rotate(now);
+        }
+        int offset = current.position();
+        current.putInt(offset + 8, targetId);
+        current.put(offset + 12, status);
+        for (int i = 0; i < phases.length; i++) {
+            current.putInt(offset + 16 + 4 * i, phases[i]);
+        }
+        current.putLong(offset, now);
+        current.position(offset + RECORD_BYTES);
+        lastTimestamp = now;
+    }
+
+    private void rotate(long now) throws IOException {
+        if (current != null) {
+            current.force();
+        }
+        long first = segments.isEmpty() ? now : Math.max(now, segments.lastKey() + 1);
+        Path file = dir.resolve(SEGMENT_PREFIX + first + SEGMENT_SUFFIX);
+        current = map(file, FileChannel.MapMode.READ_WRITE);
+        segments.put(first, file);
+        dropExpired(now);
+    }
+
+    // Сегмент старше срока хранения, если и следующий за ним начался раньше границы.
+    // Windows не удаляет файл, пока он отображён в память (например, недавним запросом истории) -
+    // тогда сегмент остаётся до следующей ротации или старта, а история продолжает писаться
+    private void dropExpired(long now) {
+        long border = now - RETENTION_MS;
+        while (segments.size() > 1 && segments.higherKey(segments.firstKey()) < border) {
+            Map.Entry<Long, Path> oldest = segments.firstEntry();
+            try {
+                Files.deleteIfExists(oldest.getValue());
+            } catch (IOException e) {
+                System.err.println("Probe history: cannot delete " + oldest.getValue() + " yet: " + e.getMessage());
+                return;
+            }
+            segments.remove(oldest.getKey());
+        }
+    }
+
+    private static MappedByteBuffer map(Path file, FileChannel.MapMode mode) throws IOException {
+        try (FileChannel channel = mode == FileChannel.MapMode.READ_ONLY
+                ? FileChannel.open(file, StandardOpenOption.READ)
+                : FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Файл сегмента сразу полного размера; на Linux он разреженный, место занимают только записи
+            long size = mode == FileChannel.MapMode.READ_ONLY ? channel.size() : (long) SEGMENT_RECORDS * RECORD_BYTES;
+            return channel.map(mode, 0, size);
+        }
+    }
+
+    // Сколько записей в сегменте: двоичный поиск первой записи с нулевым временем
+    private static int countOf(ByteBuffer segment) {
+        int low = 0;
+        int high = segment.limit() / RECORD_BYTES;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (segment.getLong(middle * RECORD_BYTES) != 0) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    // Первая запись со временем >= time среди первых count
+    private static int lowerBound(ByteBuffer segment, int count, long time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (segment.getLong(middle * RECORD_BYTES) < time) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    public static Map<String, Object> query(String target, long from, long to, int limit) throws IOException {
+        ProbeHistory history = instance;
+        if (history == null) return null;
+        return history.scan(target, from, to, limit);
+    }
+
+    // Записи [from, to) по целям, в "тип цель" которых входит target (пусто - все цели).
+    // Читаются только сегменты, пересекающие диапазон, и внутри них - только сам диапазон
+    private Map<String, Object> scan(String target, long from, long to, int limit) throws IOException {
+        String[][] names;
+        synchronized (targets) {
+            names = targets.toArray(new String[0][]);
+        }
+        boolean[] wanted = new boolean[names.length];
+        for (int i = 0; i < names.length; i++) {
+            // Пропуск в нумерации - строка targets.tsv потерялась
+            wanted[i] = names[i] != null
+                    && (target == null || target.isEmpty() || (names[i][0] + " " + names[i][1]).contains(target));
+        }
+
+        List<Path> files;
+        ByteBuffer live;
+        synchronized (this) {
+            Long first = segments.floorKey(from);
+            files = new ArrayList<>((first != null ? segments.tailMap(first, true) : segments.tailMap(from, true))
+                    .headMap(to, false).values());
+            // Текущий сегмент читаем через его буфер - он уже отображён. Граница - записи,
+            // законченные до этой блокировки: недописанную запись запрос не увидит
+            if (current != null && !files.isEmpty() && files.get(files.size() - 1).equals(segments.lastEntry().getValue())) {
+                live = current.duplicate();
+                live.limit(current.position());
+                files.remove(files.size() - 1);
+            } else {
+                live = null;
+            }
+        }
+
+        List<Map<String, Object>> records = new ArrayList<>();
+        long matched = 0;
+        long scanned = 0;
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (Path file : files) {
+            try {
+                buffers.add(map(file, FileChannel.MapMode.READ_ONLY));
+            } catch (NoSuchFileException e) {
+                // Удалён по сроку хранения, пока шёл запрос
+            }
+        }
+        if (live != null) {
+            buffers.add(live);
+        }
+        for (ByteBuffer segment : buffers) {
+            int count = countOf(segment);
+            for (int i = lowerBound(segment, count, from); i < count; i++) {
+                int offset = i * RECORD_BYTES;
+                long time = segment.getLong(offset);
+                if (time >= to) break;
+                scanned++;
+                int id = segment.getInt(offset + 8);
+                if (id < 0 || id >= wanted.length || !wanted[id]) continue;
+                matched++;
+                if (records.size() < limit) {
+                    records.add(toMap(segment, offset, time, names[id]));
+                }
+            }
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("from", from);
+        result.put("to", to);
+        result.put("segments", buffers.size());
+        result.put("scanned", scanned);
+        result.put("matched", matched);
+        result.put("truncated", matched > records.size());
+        result.put("records", records);
+        return result;
+    }
+
+    private static Map<String, Object> toMap(ByteBuffer segment, int offset, long time, String[] target) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("time", time);
+        record.put("type", target[0]);
+        record.put("target", target[1]);
+        byte status = segment.get(offset + 12);
+        record.put("status", status >= 0 && status < STATUS_NAMES.length ? STATUS_NAMES[status] : String.valueOf(status));
+        for (int i = 0; i < PHASES.length; i++) {
+            int micros = segment.getInt(offset + 16 + 4 * i);
+            if (micros >= 0) {
+                record.put(PHASES[i] + "Ms", micros / 1000.0);
+            }
+        }
+        return record;
+    }
+}
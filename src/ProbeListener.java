@@ -0,0 +1,9 @@
+import java.util.Map;
+
+// Получает шаги пробы по мере их завершения: подключение, версия, роль...
+// Нужен для потоковых ответов, где клиент видит быстрые ответы, не дожидаясь медленных
+public interface ProbeListener {
+    ProbeListener NONE = (step, fields, stepNanos) -> { };
+
+    void onStep(String step, Map<String, Object> fields, long stepNanos);
+}
@@ -0,0 +1,192 @@
+import org.bson.Document;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Фоновый мониторинг: периодически пробует настроенные цели и копит
+// гистограммы задержек по каждой из них. Включается -Dmonitor.config=monitor.json:
+// {"intervalMs":10000, "jitterMs":1000, "workers":4,
+//  "targets":[{"name":"orders-pg","type":"postgres","connection":"...","connect":"pooled"}]}
+public class ProbeMonitor {
+    private static volatile ProbeMonitor instance;
+
+    private final List<MonitoredTarget> targets = new ArrayList<>();
+    private final long intervalMs;
+    private final long jitterMs;
+    private final int workers;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService probeExecutor;
+    private final long startedAt = System.currentTimeMillis();
+
+    private static class MonitoredTarget {
+        final ProbeTarget target;
+        final long intervalMs;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder successes = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        // Запуск пропущен: предыдущая проба ещё идёт или нет свободного воркера
+        final LongAdder skipped = new LongAdder();
+        final AtomicBoolean running = new AtomicBoolean();
+        volatile long lastRunAt;
+        volatile String lastMessage;
+        volatile boolean lastSuccess;
+
+        MonitoredTarget(ProbeTarget target, long intervalMs) {
+            this.target = target;
+            this.intervalMs = intervalMs;
+        }
+    }
+
+    private ProbeMonitor(long intervalMs, long jitterMs, int workers) {
+        this.intervalMs = intervalMs;
+        this.jitterMs = jitterMs;
+        this.workers = workers;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(WebServer.namedDaemonFactory("monitor-scheduler"));
+        // Ограниченный бюджет воркеров: мониторинг не должен съесть ресурсы интерактивных проб
+        this.probeExecutor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(workers * 4),
+                WebServer.namedDaemonFactory("monitor-probe"));
+    }
+
+    // Запускает мониторинг по файлу конфигурации. null или пустой путь - мониторинг выключен
+    public static void startFromConfig(String configPath) throws IOException {
+        if (configPath == null || configPath.isEmpty()) {
+            return;
+        }
+        Document config = Document.parse(Files.readString(Path.of(configPath), StandardCharsets.UTF_8));
+        long intervalMs = Math.max(100, longValue(config.get("intervalMs"), 10_000));
+        long jitterMs = Math.max(0, longValue(config.get("jitterMs"), intervalMs / 10));
+        int workers = (int) Math.max(1, longValue(config.get("workers"), 4));
+
+        ProbeMonitor monitor = new ProbeMonitor(intervalMs, jitterMs, workers);
+        List<?> list = config.get("targets", List.class);
+        if (list != null) {
+            for (Object item : list) {
+                Document doc = (Document) item;
+                long targetInterval = Math.max(100, longValue(doc.get("intervalMs"), intervalMs));
+                monitor.targets.add(new MonitoredTarget(ProbeTarget.fromDocument(doc), targetInterval));
+            }
+        }
+        monitor.start();
+        instance = monitor;
+        System.out.println("📈 Monitoring " + monitor.targets.size() + " targets every " + intervalMs + " ms");
+    }
+
+    public static void shutdown() {
+        ProbeMonitor monitor = instance;
+        if (monitor != null) {
+            monitor.scheduler.shutdownNow();
+            monitor.probeExecutor.shutdownNow();
+            instance = null;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return instance != null;
+    }
+
+    // Снимок статистики по всем целям для /api/monitor
+    public static Map<String, Object> snapshot() {
+        ProbeMonitor monitor = instance;
+        Map<String, Object> data = new LinkedHashMap<>();
+        if (monitor == null) {
+            return data;
+        }
+        data.put("intervalMs", monitor.intervalMs);
+        data.put("jitterMs", monitor.jitterMs);
+        data.put("workers", monitor.workers);
+        data.put("uptimeSeconds", (System.currentTimeMillis() - monitor.startedAt) / 1000);
+
+        List<Map<String, Object>> targets = new ArrayList<>();
+        for (MonitoredTarget mt : monitor.targets) {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("target", mt.target.label());
+            stats.put("type", mt.target.type);
+            stats.put("intervalMs", mt.intervalMs);
+            stats.put("successes", mt.successes.sum());
+            stats.put("failures", mt.failures.sum());
+            stats.put("skipped", mt.skipped.sum());
+            stats.put("latencyMs", mt.latency.toMap());
+            stats.put("lastRunAt", mt.lastRunAt == 0 ? null : Instant.ofEpochMilli(mt.lastRunAt).toString());
+            stats.put("lastSuccess", mt.lastSuccess);
+            stats.put("lastMessage", mt.lastMessage);
+            targets.add(stats);
+        }
+        data.put("targets", targets);
+        return data;
+    }
+
+    private void start() {
+        for (MonitoredTarget mt : targets) {
+            // Первый запуск размазываем по интервалу, чтобы цели не стартовали пачкой
+            long initialDelay = ThreadLocalRandom.current().nextLong(mt.intervalMs);
+            scheduler.schedule(() -> tick(mt), initialDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void tick(MonitoredTarget mt) {
+        try {
+            if (mt.running.compareAndSet(false, true)) {
+                try {
+                    probeExecutor.execute(() -> runProbe(mt));
+                } catch (RejectedExecutionException e) {
+                    mt.running.set(false);
+                    mt.skipped.increment();
+                }
+            } else {
+                mt.skipped.increment();
+            }
+        } finally {
+            if (!scheduler.isShutdown()) {
+                scheduler.schedule(() -> tick(mt), nextDelay(mt), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private long nextDelay(MonitoredTarget mt) {
+        if (jitterMs == 0) {
+            return mt.intervalMs;
+        }
+        long jitter = ThreadLocalRandom.current().nextLong(-jitterMs, jitterMs + 1);
+        return Math.max(1, mt.intervalMs + jitter);
+    }
+
+    private void runProbe(MonitoredTarget mt) {
+        long start = System.nanoTime();
+        try {
+            Map<String, Object> response = mt.target.run();
+            boolean success = Boolean.TRUE.equals(response.get("success"));
+            (success ? mt.successes : mt.failures).increment();
+            mt.lastSuccess = success;
+            mt.lastMessage = String.valueOf(response.get("message"));
+        } catch (RuntimeException e) {
+            mt.failures.increment();
+            mt.lastSuccess = false;
+            mt.lastMessage = "Probe failed: " + e.getMessage();
+        } finally {
+            mt.latency.record(System.nanoTime() - start);
+            mt.lastRunAt = System.currentTimeMillis();
+            mt.running.set(false);
+        }
+    }
+
+    private static long longValue(Object value, long defaultValue) {
+        return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+    }
+}
@@ -0,0 +1,133 @@
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+
+// Сокет проб без драйвера (PgWireProbe, MongoWireProbe): SocketChannel в блокирующем режиме,
+// при необходимости - TLS поверх него. Сроков у блокирующего канала нет - пробы закрывают его
+// через abort() из Deadline.onCancel. Время ожидания сети копится в waitNanos:
+// всё остальное - собственная стоимость пробы
+public class ProbeSocket implements Closeable {
+    private final SocketChannel channel;
+    private SSLSocket ssl;
+    private DataInputStream in;
+    private OutputStream out;
+    private long waitNanos;
+
+    public ProbeSocket() throws IOException {
+        channel = SocketChannel.open();
+    }
+
+    public void connect(InetSocketAddress address) throws IOException {
+        channel.connect(address);
+        channel.socket().setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        out = new BufferedOutputStream(Channels.newOutputStream(channel));
+    }
+
+    // Засчитывает время с since как ожидание сети и возвращает его
+    public long waited(long since) {
+        long nanos = System.nanoTime() - since;
+        waitNanos += nanos;
+        return nanos;
+    }
+
+    public long waitNanos() {
+        return waitNanos;
+    }
+
+    // verify=false - сертификат не проверяется (sslmode=prefer/require, tlsAllowInvalidCertificates);
+    // verifyHostname - ещё и имя хоста в сертификате. Возвращает версию протокола TLS
+    public String startTls(String host, int port, boolean verify, boolean verifyHostname) throws IOException {
+        SSLContext context;
+        try {
+            if (verify) {
+                context = SSLContext.getDefault();
+            } else {
+                context = SSLContext.getInstance("TLS");
+                context.init(null, new TrustManager[]{new TrustAll()}, null);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("TLS is not available: " + e.getMessage(), e);
+        }
+        ssl = (SSLSocket) context.getSocketFactory().createSocket(channel.socket(), host, port, true);
+        if (verify && verifyHostname) {
+            SSLParameters parameters = ssl.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            ssl.setSSLParameters(parameters);
+        }
+        long start = System.nanoTime();
+        ssl.startHandshake();
+        waited(start);
+        in = new DataInputStream(new BufferedInputStream(ssl.getInputStream()));
+        out = new BufferedOutputStream(ssl.getOutputStream());
+        return ssl.getSession().getProtocol();
+    }
+
+    public int readByte() throws IOException {
+        long start = System.nanoTime();
+        int value = in.read();
+        waited(start);
+        if (value < 0) throw new EOFException("Server closed the connection");
+        return value;
+    }
+
+    public void readFully(byte[] bytes) throws IOException {
+        long start = System.nanoTime();
+        in.readFully(bytes);
+        waited(start);
+    }
+
+    public void write(byte[] bytes) throws IOException {
+        out.write(bytes);
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    // Из другого потока: закрываем только канал, без close_notify - TLS-чтение упадёт вслед за ним
+    public void abort() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Соединение уже не нужно
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ssl != null) {
+            ssl.close();
+        }
+        channel.close();
+    }
+
+    private static class TrustAll implements X509TrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import org.bson.Document;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+// Одна цель для проверки: MongoDB или PostgreSQL со своими параметрами.
+// Используется там, где пробы запускаются пачкой, а не по одной из UI
+public class ProbeTarget {
+    public String name;
+    public String type;
+    public String connection;
+    public String user;
+    public String secret;
+    public String command;
+    public boolean pooled;
+    // Движок проб MongoDB: async - MongoAsyncService; null - -Dmongo.engine
+    public String engine;
+
+    // Цель из JSON: {"type":"postgres","connection":"...","user":"...","secret":"...","connect":"pooled"}
+    public static ProbeTarget fromDocument(Document doc) {
+        ProbeTarget target = new ProbeTarget();
+        target.name = doc.getString("name");
+        target.type = doc.getString("type");
+        target.connection = doc.getString("connection");
+        target.user = doc.getString("user");
+        target.secret = doc.getString("secret");
+        target.command = doc.getString("command");
+        target.pooled = "pooled".equalsIgnoreCase(doc.getString("connect"));
+        target.engine = doc.getString("engine");
+
+        // Тип можно не указывать - определяем по схеме строки подключения
+        if (target.type == null && target.connection != null) {
+            target.type = typeOf(target.connection);
+        }
+        return target;
+    }
+
+    // Тип цели по схеме строки подключения: mongodb:// и mongodb+srv:// - mongo, иначе postgres
+    static String typeOf(String connection) {
+        return isMongoUrl(connection) ? "mongo" : "postgres";
+    }
+
+    static boolean isMongoUrl(String connection) {
+        return connection.startsWith("mongodb://") || connection.startsWith("mongodb+srv://");
+    }
+
+    // Выполняет пробу и возвращает результат в том же виде, что и /api/test/*
+    public Map<String, Object> run() {
+        return run(null);
+    }
+
+    // deadline - срок пробы: по нему драйвер бросает ожидание, а поток освобождается.
+    // null - срок по умолчанию
+    public Map<String, Object> run(Deadline deadline) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        String connectionString = connection;
+
+        if ("mongo".equalsIgnoreCase(type)) {
+            if (connectionString != null && (user != null || secret != null)) {
+                connectionString = ApiHandler.addMongoCredentials(connectionString, user, secret);
+            }
+            MongoService.ProbeOptions options = new MongoService.ProbeOptions();
+            options.deadline = deadline;
+            MongoService.TestResult result = MongoService.testConnection(connectionString, command, options);
+            response.put("success", result.success);
+            response.put("message", result.message);
+            response.put("data", result.data);
+        } else if ("postgres".equalsIgnoreCase(type)) {
+            if (connectionString != null && (user != null || secret != null)) {
+                connectionString = ApiHandler.addCredentialsToUrl(connectionString, user, secret);
+            }
+            PostgresService.ProbeOptions options = new PostgresService.ProbeOptions();
+            options.pooled = pooled;
+            options.deadline = deadline;
+            PostgresService.TestResult result = PostgresService.testConnection(connectionString, options);
+            response.put("success", result.success);
+            response.put("message", result.message);
+            response.put("data", result.data);
+        } else {
+            response.put("success", false);
+            response.put("message", "Unknown target type: " + type + " (use mongo or postgres)");
+            response.put("data", new LinkedHashMap<>());
+        }
+        return response;
+    }
+
+    // true - проба MongoDB на асинхронном драйвере, поток на неё не нужен (runAsync)
+    public boolean isAsync() {
+        return "mongo".equalsIgnoreCase(type) && MongoAsyncService.isAsync(engine);
+    }
+
+    // Проба MongoDB на асинхронном драйвере, ответ в том же виде, что у run()
+    public CompletableFuture<Map<String, Object>> runAsync(Deadline deadline) {
+        String connectionString = connection;
+        if (connectionString != null && (user != null || secret != null)) {
+            connectionString = ApiHandler.addMongoCredentials(connectionString, user, secret);
+        }
+        MongoService.ProbeOptions options = new MongoService.ProbeOptions();
+        options.deadline = deadline;
+        return MongoAsyncService.testConnectionAsync(connectionString, command, options).thenApply(result -> {
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("success", result.success);
+            response.put("message", result.message);
+            response.put("data", result.data);
+            return response;
+        });
+    }
+
+    // Имя цели для ответов и логов: заданное явно или строка подключения без секретов
+    public String label() {
+        if (name != null && !name.isEmpty()) {
+            return name;
+        }
+        return redact(connection);
+    }
+
+    // Убирает user:secret@ и параметр password из строки подключения
+    static String redact(String connection) {
+        if (connection == null) {
+            return "";
+        }
+        String result = connection;
+        int scheme = result.indexOf("://");
+        int authorityEnd = result.length();
+        for (char c : new char[]{'/', '?'}) {
+            int pos = scheme >= 0 ? result.indexOf(c, scheme + 3) : -1;
+            if (pos >= 0 && pos < authorityEnd) authorityEnd = pos;
+        }
+        int at = result.lastIndexOf('@', authorityEnd - 1);
+        if (scheme >= 0 && at > scheme) {
+            result = result.substring(0, scheme + 3) + result.substring(at + 1);
+        }
+        return result.replaceAll("(?i)([?&]pass" + "word=)[^&]*", "$1***");
+    }
+}
@@ -0,0 +1,209 @@
+import com.sun.net.httpserver.HttpExchange;
+import org.bson.Document;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// Параметры запроса: query string и, для POST, тело (form-urlencoded или JSON-объект).
+// Строка разбирается за один проход в массив смещений - без split и промежуточных массивов строк.
+// Декодируются только значения, которые обработчик запросил: длинные строки подключения
+// и JSON команд не копируются, если их никто не читает
+public class QueryParams {
+    static final int MAX_BODY_BYTES = 1024 * 1024;
+
+    private final String raw;
+    // Тройки: начало ключа, конец ключа (позиция '=' или конец пары), конец значения
+    private int[] pairs;
+    private int count;
+    // Значения из JSON-тела, уже готовые: ключ, значение, ключ, значение...
+    private final List<String> json = new ArrayList<>();
+
+    private QueryParams(String raw) {
+        this.raw = raw != null ? raw : "";
+    }
+
+    // Сырая query string, как getRawQuery() - ещё не декодированная
+    public static QueryParams parse(String rawQuery) {
+        return new QueryParams(rawQuery);
+    }
+
+    // Параметры из URL и, для POST, из тела. Значения из тела идут после параметров URL.
+    // IllegalArgumentException - тело слишком большое или не JSON
+    public static QueryParams of(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            return new QueryParams(query);
+        }
+
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        String body = readBody(exchange.getRequestBody());
+        if (contentType != null && contentType.toLowerCase().startsWith("application/json")) {
+            QueryParams params = new QueryParams(query);
+            params.addJson(body);
+            return params;
+        }
+        // form-urlencoded (и тело без Content-Type): тот же формат, что и query string
+        if (query == null || query.isEmpty()) return new QueryParams(body);
+        if (body.isEmpty()) return new QueryParams(query);
+        return new QueryParams(query + "&" + body);
+    }
+
+    // Последнее значение ключа (как раньше в HashMap), null - ключа нет.
+    // Ключ без '=' (?nocache) даёт пустую строку
+    public String get(String key) {
+        for (int i = json.size() - 2; i >= 0; i -= 2) {
+            if (key.equals(json.get(i))) return json.get(i + 1);
+        }
+        index();
+        for (int i = (count - 1) * 3; i >= 0; i -= 3) {
+            if (keyEquals(i, key)) return valueAt(i);
+        }
+        return null;
+    }
+
+    // Все значения ключа по порядку: повторяющиеся параметры (?connection=a&connection=b)
+    public List<String> getAll(String key) {
+        List<String> values = new ArrayList<>();
+        index();
+        for (int i = 0; i < count * 3; i += 3) {
+            if (keyEquals(i, key)) values.add(valueAt(i));
+        }
+        for (int i = 0; i < json.size(); i += 2) {
+            if (key.equals(json.get(i))) values.add(json.get(i + 1));
+        }
+        return values;
+    }
+
+    // Целое из значения параметра; null или не число - defaultValue
+    static int intParam(String value, int defaultValue) {
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    // Один проход по строке: только границы пар, без копирования
+    private void index() {
+        if (pairs != null) return;
+        pairs = new int[24];
+        int start = 0;
+        int length = raw.length();
+        while (start < length) {
+            int end = raw.indexOf('&', start);
+            if (end < 0) end = length;
+            if (end > start) {
+                int eq = raw.indexOf('=', start);
+                if (eq < 0 || eq > end) eq = end;
+                if (count * 3 == pairs.length) {
+                    pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                }
+                pairs[count * 3] = start;
+                pairs[count * 3 + 1] = eq;
+                pairs[count * 3 + 2] = end;
+                count++;
+            }
+            start = end + 1;
+        }
+    }
+
+    private boolean keyEquals(int pair, String key) {
+        int start = pairs[pair];
+        int end = pairs[pair + 1];
+        if (!needsDecoding(start, end)) {
+            return end - start == key.length() && raw.regionMatches(start, key, 0, key.length());
+        }
+        return key.equals(decode(start, end));
+    }
+
+    private String valueAt(int pair) {
+        int eq = pairs[pair + 1];
+        int end = pairs[pair + 2];
+        return eq >= end ? "" : decode(eq + 1, end);
+    }
+
+    private boolean needsDecoding(int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = raw.charAt(i);
+            if (c == '%' || c == '+') return true;
+        }
+        return false;
+    }
+
+    // Как URLDecoder.decode (UTF-8, '+' - пробел), но без исключения на битом '%':
+    // такой символ остаётся как есть - в паролях '%' встречается и без кодирования
+    private String decode(int start, int end) {
+        if (!needsDecoding(start, end)) {
+            return raw.substring(start, end);
+        }
+        StringBuilder out = new StringBuilder(end - start);
+        byte[] bytes = null;
+        int i = start;
+        while (i < end) {
+            char c = raw.charAt(i);
+            if (c == '+') {
+                out.append(' ');
+                i++;
+            } else if (c == '%' && hexAt(i + 1, end) >= 0 && hexAt(i + 2, end) >= 0) {
+                // Подряд идущие %XX - один кусок UTF-8
+                if (bytes == null) bytes = new byte[(end - i) / 3];
+                int n = 0;
+                while (i + 2 < end && raw.charAt(i) == '%' && hexAt(i + 1, end) >= 0 && hexAt(i + 2, end) >= 0) {
+                    bytes[n++] = (byte) ((hexAt(i + 1, end) << 4) | hexAt(i + 2, end));
+                    i += 3;
+                }
+                out.append(new String(bytes, 0, n, StandardCharsets.UTF_8));
+            } else {
+                out.append(c);
+                i++;
+            }
+        }
+        return out.toString();
+    }
+
+    private int hexAt(int i, int end) {
+        return i < end ? Character.digit(raw.charAt(i), 16) : -1;
+    }
+
+    // JSON-объект: строки как есть, числа и boolean - текстом, вложенные объекты - JSON-строкой
+    // (например, command), массив - повторяющийся параметр
+    private void addJson(String body) {
+        if (body.isBlank()) return;
+        Document document;
+        try {
+            document = Document.parse(body);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid JSON body: " + e.getMessage(), e);
+        }
+        for (Map.Entry<String, Object> entry : document.entrySet()) {
+            if (entry.getValue() instanceof List) {
+                for (Object item : (List<?>) entry.getValue()) {
+                    addJsonValue(entry.getKey(), item);
+                }
+            } else {
+                addJsonValue(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void addJsonValue(String key, Object value) {
+        if (value == null) return;
+        json.add(key);
+        json.add(value instanceof Document ? ((Document) value).toJson() : String.valueOf(value));
+    }
+
+    private static String readBody(InputStream body) throws IOException {
+        try (InputStream is = body) {
+            byte[] bytes = is.readNBytes(MAX_BODY_BYTES + 1);
+            if (bytes.length > MAX_BODY_BYTES) {
+                throw new IllegalArgumentException("Request body is larger than " + MAX_BODY_BYTES + " bytes");
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
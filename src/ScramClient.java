@@ -0,0 +1,190 @@
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Клиентская сторона SCRAM-SHA-256 и SCRAM-SHA-1 (RFC 5802, RFC 7677) для PgWireProbe и MongoWireProbe.
+// Без channel binding (gs2-header "n,,"). Имя пользователя PostgreSQL берёт из StartupMessage,
+// поэтому для него в client-first оно пустое, как у libpq. SASLprep пароля не делается -
+// для паролей из ASCII он ничего не меняет
+public class ScramClient {
+    public static final String MECHANISM = "SCRAM-SHA-256";
+    public static final String SHA_1 = "SCRAM-SHA-1";
+    // Защита от сервера, который просит неразумно много итераций PBKDF2
+    private static final int MAX_ITERATIONS = 1_000_000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // PBKDF2 на тысячах итераций - основная стоимость пробы с паролем. Результат зависит только
+    // от пароля, соли и числа итераций, поэтому запоминаем его, как это делают драйверы.
+    // Ключ - HMAC пароля на соли сервера: ни пароля, ни несолёного хэша, который перебирается
+    // по словарю, в памяти не остаётся. Вытесняются давно не использованные (LRU)
+    private static final int MAX_CACHED_KEYS = 256;
+    private static final Map<String, byte[]> SALTED_PASSWORDS = Collections.synchronizedMap(
+            new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                    return size() > MAX_CACHED_KEYS;
+                }
+            });
+
+    private final String username;
+    private final String password;
+    private final String clientNonce;
+    // SHA-256 или SHA-1: HMAC, PBKDF2 и хэш ключа
+    private final String hmacAlgorithm;
+    private final String digestAlgorithm;
+    private final int keyBits;
+    private String clientFirstBare;
+    private byte[] serverSignature;
+
+    public ScramClient(String password) {
+        this(MECHANISM, "", password);
+    }
+
+    // password - то, что уходит в PBKDF2: для SCRAM-SHA-1 у MongoDB это уже хэш, см. MongoWireProbe
+    public ScramClient(String mechanism, String username, String password) {
+        this(mechanism, username, password, randomNonce());
+    }
+
+    // Фиксированный nonce - для сверки с примерами из RFC (ScramClientTest)
+    ScramClient(String mechanism, String username, String password, String clientNonce) {
+        if (mechanism.equals(MECHANISM)) {
+            hmacAlgorithm = "HmacSHA256";
+            digestAlgorithm = "SHA-256";
+            keyBits = 256;
+        } else if (mechanism.equals(SHA_1)) {
+            hmacAlgorithm = "HmacSHA1";
+            digestAlgorithm = "SHA-1";
+            keyBits = 160;
+        } else {
+            throw new IllegalArgumentException("Unsupported SCRAM mechanism " + mechanism);
+        }
+        this.username = username;
+        this.password = password;
+        this.clientNonce = clientNonce;
+    }
+
+    public String clientFirstMessage() {
+        // В saslname запятая и '=' экранируются
+        clientFirstBare = "n=" + username.replace("=", "=3D").replace(",", "=2C") + ",r=" + clientNonce;
+        return "n,," + clientFirstBare;
+    }
+
+    // server-first: r=<nonce>,s=<соль>,i=<итерации> -> client-final с доказательством знания пароля.
+    // IllegalStateException - ответ сервера некорректен
+    public String clientFinalMessage(String serverFirst) {
+        Map<String, String> attributes = parse(serverFirst);
+        String nonce = attributes.get("r");
+        String salt = attributes.get("s");
+        String iterations = attributes.get("i");
+        if (nonce == null || salt == null || iterations == null) {
+            throw new IllegalStateException("Invalid SCRAM server-first message: " + serverFirst);
+        }
+        if (!nonce.startsWith(clientNonce) || nonce.length() == clientNonce.length()) {
+            throw new IllegalStateException("SCRAM server nonce does not extend the client nonce");
+        }
+        int count;
+        try {
+            count = Integer.parseInt(iterations);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Invalid SCRAM iteration count: " + iterations);
+        }
+        if (count < 1 || count > MAX_ITERATIONS) {
+            throw new IllegalStateException("SCRAM iteration count out of range: " + count);
+        }
+
+        byte[] saltedPassword = saltedPassword(salt, count);
+        byte[] clientKey = hmac(saltedPassword, "Client Key");
+        byte[] storedKey = digest(clientKey);
+        // c=biws - base64 от gs2-header "n,,"
+        String withoutProof = "c=biws,r=" + nonce;
+        String authMessage = clientFirstBare + "," + serverFirst + "," + withoutProof;
+        byte[] clientSignature = hmac(storedKey, authMessage);
+        byte[] proof = new byte[clientKey.length];
+        for (int i = 0; i < proof.length; i++) {
+            proof[i] = (byte) (clientKey[i] ^ clientSignature[i]);
+        }
+        serverSignature = hmac(hmac(saltedPassword, "Server Key"), authMessage);
+        return withoutProof + ",p=" + Base64.getEncoder().encodeToString(proof);
+    }
+
+    // server-final: v=<подпись сервера> - сервер тоже знает пароль; e=<ошибка> - отказ
+    public void verifyServerFinal(String serverFinal) {
+        Map<String, String> attributes = parse(serverFinal);
+        if (attributes.containsKey("e")) {
+            throw new IllegalStateException("SCRAM authentication failed: " + attributes.get("e"));
+        }
+        String verifier = attributes.get("v");
+        if (serverSignature == null || verifier == null
+                || !MessageDigest.isEqual(serverSignature, Base64.getDecoder().decode(verifier))) {
+            throw new IllegalStateException("SCRAM server signature does not match");
+        }
+    }
+
+    private static Map<String, String> parse(String message) {
+        Map<String, String> attributes = new HashMap<>();
+        for (String part : message.split(",")) {
+            if (part.length() >= 2 && part.charAt(1) == '=') {
+                attributes.put(part.substring(0, 1), part.substring(2));
+            }
+        }
+        return attributes;
+    }
+
+    private static String randomNonce() {
+        byte[] bytes = new byte[18];
+        RANDOM.nextBytes(bytes);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private byte[] saltedPassword(String salt, int iterations) {
+        byte[] saltBytes = Base64.getDecoder().decode(salt);
+        if (saltBytes.length == 0) {
+            throw new IllegalStateException("Empty SCRAM salt");
+        }
+        String key = hmacAlgorithm + "," + salt + "," + iterations + ","
+                + Base64.getEncoder().encodeToString(hmac(saltBytes, password));
+        byte[] cached = SALTED_PASSWORDS.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        byte[] saltedPassword = pbkdf2(password, saltBytes, iterations);
+        SALTED_PASSWORDS.put(key, saltedPassword);
+        return saltedPassword;
+    }
+
+    private byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, keyBits);
+            return SecretKeyFactory.getInstance("PBKDF2With" + hmacAlgorithm).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance(hmacAlgorithm);
+            mac.init(new SecretKeySpec(key, hmacAlgorithm));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] digest(byte[] data) {
+        try {
+            return MessageDigest.getInstance(digestAlgorithm).digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,369 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Массовая проверка доступности host:port до полноценного подключения драйвера.
+// Все подключения идут неблокирующими SocketChannel через один Selector, поэтому
+// проверка сотен адресов укладывается примерно в один timeoutMs, а не в сумму таймаутов.
+// Меряется только TCP handshake (SYN - SYN/ACK), данные не отправляются
+public class TcpScanner {
+    // -Dscan.maxEndpoints=1024 - адресов за один запрос (каждый - открытый сокет на время проверки)
+    static final int MAX_ENDPOINTS = Integer.getInteger("scan.maxEndpoints", 1024);
+    static final long DEFAULT_TIMEOUT_MS = 2000;
+    static final long MAX_TIMEOUT_MS = 30_000;
+    // -Dscan.dnsThreads=16 - InetAddress разрешает имена только блокирующе
+    private static final int DNS_THREADS = Integer.getInteger("scan.dnsThreads", 16);
+
+    private static final ExecutorService RESOLVER =
+            Executors.newFixedThreadPool(DNS_THREADS, WebServer.namedDaemonFactory("scan-dns"));
+
+    // Один проверяемый адрес и результат проверки
+    public static class Endpoint {
+        // Строка, из которой получен адрес (строка подключения или диапазон)
+        public final String source;
+        public final String host;
+        public final int port;
+        public String address;
+        // open - подключились; closed - отказ или ошибка сети; timeout - не успели; dnsFailed - имя не разрешилось
+        public String status;
+        public long connectNanos = -1;
+        public String error;
+        private long startNanos;
+
+        Endpoint(String source, String host, int port) {
+            this.source = source;
+            this.host = host;
+            this.port = port;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("host", host);
+            map.put("port", port);
+            map.put("source", source);
+            if (address != null) map.put("address", address);
+            map.put("status", status);
+            map.put("reachable", "open".equals(status));
+            if (connectNanos >= 0) map.put("connectMs", LatencyHistogram.toMillis(connectNanos));
+            if (error != null) map.put("error", error);
+            return map;
+        }
+    }
+
+    // Итог проверки
+    public static class Summary {
+        public int total;
+        public int open;
+        public int closed;
+        public int timedOut;
+        public int dnsFailed;
+        public long elapsedMs;
+    }
+
+    // Адреса из строк подключения и диапазонов:
+    //   mongodb://[user:secret@]h1[:port],h2[:port]/db?...  (порт по умолчанию 27017)
+    //   postgresql://... и jdbc:postgresql://h1[:port],h2/db  (порт по умолчанию 5432)
+    //   host:port, [ipv6]:port, 10.0.0.0/28:5432, 10.0.0.5:5432-5440
+    // defaultPort - для host и CIDR без порта, 0 - порт обязателен.
+    // IllegalArgumentException - формат не распознан или адресов больше MAX_ENDPOINTS
+    public static List<Endpoint> parseTargets(List<String> targets, int defaultPort) {
+        List<Endpoint> endpoints = new ArrayList<>();
+        for (String raw : targets) {
+            String target = raw.trim();
+            if (target.isEmpty()) continue;
+            if (target.startsWith("mongodb://")) {
+                addHosts(endpoints, target, authorityOf(target, "mongodb://"), 27017);
+            } else if (target.startsWith("mongodb+srv://")) {
+                // Хосты и порты - в SRV-записи DNS; скан работает только с известными адресами
+                throw new IllegalArgumentException("SRV not supported by scan: " + ProbeTarget.redact(target)
+                        + " (resolve _mongodb._tcp.<host> and pass host:port or mongodb://h1:port,h2:port)");
+            } else if (target.startsWith("postgresql://") || target.startsWith("jdbc:postgresql://")) {
+                // Тот же разбор, что и у пробы: postgresql:// приводится к JDBC
+                String jdbcUrl = PostgresService.toJdbcUrl(target);
+                addHosts(endpoints, target, authorityOf(jdbcUrl, "jdbc:postgresql://"), 5432);
+            } else if (target.contains("://")) {
+                throw new IllegalArgumentException("Unsupported scheme in " + target
+                        + " (use mongodb://, postgresql://, jdbc:postgresql:// or host:port)");
+            } else {
+                addRange(endpoints, target, defaultPort);
+            }
+            if (endpoints.size() > MAX_ENDPOINTS) {
+                throw new IllegalArgumentException("Too many endpoints (max " + MAX_ENDPOINTS + ")");
+            }
+        }
+        return endpoints;
+    }
+
+    // Хосты между "://" и первым '/' или '?', без user:secret@
+    private static String authorityOf(String url, String scheme) {
+        String rest = url.substring(scheme.length());
+        int end = rest.length();
+        for (char c : new char[]{'/', '?'}) {
+            int index = rest.indexOf(c);
+            if (index >= 0 && index < end) end = index;
+        }
+        String authority = rest.substring(0, end);
+        int at = authority.lastIndexOf('@');
+        return at >= 0 ? authority.substring(at + 1) : authority;
+    }
+
+    private static void addHosts(List<Endpoint> endpoints, String source, String authority, int defaultPort) {
+        String label = ProbeTarget.redact(source);
+        for (String hostPort : authority.split(",")) {
+            if (hostPort.isEmpty()) continue;
+            String[] parts = splitHostPort(hostPort);
+            int port = parts[1] != null ? parsePort(parts[1], hostPort) : defaultPort;
+            endpoints.add(new Endpoint(label, parts[0], port));
+        }
+        if (authority.isEmpty()) {
+            endpoints.add(new Endpoint(label, "localhost", defaultPort));
+        }
+    }
+
+    // host[:ports], [ipv6][:ports], a.b.c.d/prefix[:ports]; ports - 5432 или 5432-5440
+    private static void addRange(List<Endpoint> endpoints, String target, int defaultPort) {
+        String[] parts = splitHostPort(target);
+        int firstPort;
+        int lastPort;
+        if (parts[1] != null) {
+            int dash = parts[1].indexOf('-');
+            firstPort = parsePort(dash < 0 ? parts[1] : parts[1].substring(0, dash), target);
+            lastPort = dash < 0 ? firstPort : parsePort(parts[1].substring(dash + 1), target);
+            if (lastPort < firstPort) {
+                throw new IllegalArgumentException("Invalid port range in " + target);
+            }
+        } else if (defaultPort > 0) {
+            firstPort = lastPort = defaultPort;
+        } else {
+            throw new IllegalArgumentException("No port in " + target + " (use host:port or pass port=)");
+        }
+
+        List<String> hosts = parts[0].contains("/") ? expandCidr(parts[0]) : List.of(parts[0]);
+        long count = (long) hosts.size() * (lastPort - firstPort + 1);
+        if (endpoints.size() + count > MAX_ENDPOINTS) {
+            throw new IllegalArgumentException(target + " expands to " + count + " endpoints (max " + MAX_ENDPOINTS + ")");
+        }
+        for (String host : hosts) {
+            for (int port = firstPort; port <= lastPort; port++) {
+                endpoints.add(new Endpoint(target, host, port));
+            }
+        }
+    }
+
+    // {host, port или null}; IPv6 - только в квадратных скобках
+    private static String[] splitHostPort(String hostPort) {
+        if (hostPort.startsWith("[")) {
+            int close = hostPort.indexOf(']');
+            if (close < 0) throw new IllegalArgumentException("Invalid IPv6 address: " + hostPort);
+            String host = hostPort.substring(1, close);
+            String rest = hostPort.substring(close + 1);
+            return new String[]{host, rest.startsWith(":") ? rest.substring(1) : null};
+        }
+        int colon = hostPort.lastIndexOf(':');
+        if (colon < 0) return new String[]{hostPort, null};
+        return new String[]{hostPort.substring(0, colon), hostPort.substring(colon + 1)};
+    }
+
+    private static int parsePort(String value, String target) {
+        try {
+            int port = Integer.parseInt(value.trim());
+            if (port >= 1 && port <= 65535) return port;
+        } catch (NumberFormatException e) {
+            // ниже - общая ошибка
+        }
+        throw new IllegalArgumentException("Invalid port '" + value + "' in " + target);
+    }
+
+    // IPv4 CIDR; для сетей крупнее /31 адрес сети и broadcast пропускаются
+    private static List<String> expandCidr(String cidr) {
+        int slash = cidr.indexOf('/');
+        byte[] bytes;
+        int prefix;
+        try {
+            prefix = Integer.parseInt(cidr.substring(slash + 1));
+            String ip = cidr.substring(0, slash);
+            if (!ip.matches("\\d{1,3}(\\.\\d{1,3}){3}")) throw new IllegalArgumentException();
+            // Литерал IPv4 - без обращения к DNS
+            bytes = InetAddress.getByName(ip).getAddress();
+        } catch (UnknownHostException | RuntimeException e) {
+            throw new IllegalArgumentException("Invalid CIDR " + cidr + " (only IPv4 a.b.c.d/prefix is supported)");
+        }
+        if (prefix < 0 || prefix > 32) {
+            throw new IllegalArgumentException("Invalid prefix in " + cidr);
+        }
+        long size = 1L << (32 - prefix);
+        if (size > MAX_ENDPOINTS + 2L) {
+            throw new IllegalArgumentException(cidr + " has " + size + " addresses (max " + MAX_ENDPOINTS + ")");
+        }
+        long base = ((bytes[0] & 0xFFL) << 24 | (bytes[1] & 0xFFL) << 16 | (bytes[2] & 0xFFL) << 8 | (bytes[3] & 0xFFL))
+                & ~(size - 1);
+        List<String> hosts = new ArrayList<>();
+        for (long i = size > 2 ? 1 : 0; i < (size > 2 ? size - 1 : size); i++) {
+            long ip = base + i;
+            hosts.add(((ip >> 24) & 0xFF) + "." + ((ip >> 16) & 0xFF) + "." + ((ip >> 8) & 0xFF) + "." + (ip & 0xFF));
+        }
+        return hosts;
+    }
+
+    // Проверяет все адреса за один срок timeoutMs: имена разрешаются в пуле scan-dns,
+    // подключение к адресу начинается сразу, как только его имя разрешилось
+    public static Summary scan(List<Endpoint> endpoints, long timeoutMs) throws IOException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        // Разрешённые имена из пула scan-dns; Endpoint меняет только поток проверки
+        Queue<Object[]> resolved = new ConcurrentLinkedQueue<>();
+        List<Future<?>> lookups = new ArrayList<>();
+        List<SocketChannel> channels = new ArrayList<>();
+
+        try (Selector selector = Selector.open()) {
+            for (Endpoint endpoint : endpoints) {
+                if (isLiteral(endpoint.host)) {
+                    resolved.add(lookup(endpoint));
+                } else {
+                    lookups.add(RESOLVER.submit(() -> {
+                        resolved.add(lookup(endpoint));
+                        selector.wakeup();
+                    }));
+                }
+            }
+
+            int pending = endpoints.size();
+            while (pending > 0) {
+                Object[] next;
+                while ((next = resolved.poll()) != null) {
+                    Endpoint endpoint = (Endpoint) next[0];
+                    if (next[1] == null) {
+                        endpoint.status = "dnsFailed";
+                        endpoint.error = (String) next[2];
+                        pending--;
+                    } else if (connect(endpoint, (InetAddress) next[1], selector, channels)) {
+                        pending--;
+                    }
+                }
+                long remaining = deadline - System.nanoTime();
+                if (pending == 0 || remaining <= 0) break;
+
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (finishConnect(key)) {
+                        pending--;
+                    }
+                }
+            }
+        } finally {
+            for (Future<?> lookup : lookups) {
+                lookup.cancel(true);
+            }
+            for (SocketChannel channel : channels) {
+                closeQuietly(channel);
+            }
+        }
+
+        Summary summary = new Summary();
+        summary.total = endpoints.size();
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.status == null) {
+                endpoint.status = "timeout";
+                endpoint.error = endpoint.address == null
+                        ? "DNS lookup did not finish in " + timeoutMs + " ms"
+                        : "No answer in " + timeoutMs + " ms";
+            }
+            switch (endpoint.status) {
+                case "open": summary.open++; break;
+                case "timeout": summary.timedOut++; break;
+                case "dnsFailed": summary.dnsFailed++; break;
+                default: summary.closed++;
+            }
+        }
+        summary.elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return summary;
+    }
+
+    // {endpoint, адрес или null, ошибка}
+    private static Object[] lookup(Endpoint endpoint) {
+        try {
+            return new Object[]{endpoint, InetAddress.getByName(endpoint.host), null};
+        } catch (UnknownHostException e) {
+            return new Object[]{endpoint, null, "DNS resolution failed: " + e.getMessage()};
+        }
+    }
+
+    // IP-литерал разрешается без DNS - сразу в потоке проверки
+    private static boolean isLiteral(String host) {
+        return host.indexOf(':') >= 0 || host.matches("\\d{1,3}(\\.\\d{1,3}){3}");
+    }
+
+    // true - результат уже известен (подключились сразу или ошибка), иначе ждём OP_CONNECT
+    private static boolean connect(Endpoint endpoint, InetAddress address, Selector selector,
+                                   List<SocketChannel> channels) {
+        endpoint.address = address.getHostAddress();
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channels.add(channel);
+            channel.configureBlocking(false);
+            endpoint.startNanos = System.nanoTime();
+            if (channel.connect(new InetSocketAddress(address, endpoint.port))) {
+                endpoint.connectNanos = System.nanoTime() - endpoint.startNanos;
+                endpoint.status = "open";
+                closeQuietly(channel);
+                return true;
+            }
+            channel.register(selector, SelectionKey.OP_CONNECT, endpoint);
+            return false;
+        } catch (IOException e) {
+            // Сюда попадает и нехватка файловых дескрипторов - это тоже ответ
+            endpoint.status = "closed";
+            endpoint.error = String.valueOf(e.getMessage());
+            closeQuietly(channel);
+            return true;
+        }
+    }
+
+    private static boolean finishConnect(SelectionKey key) {
+        Endpoint endpoint = (Endpoint) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            if (!channel.finishConnect()) {
+                return false;
+            }
+            endpoint.connectNanos = System.nanoTime() - endpoint.startNanos;
+            endpoint.status = "open";
+        } catch (IOException e) {
+            // Connection refused, No route to host и т.п.
+            endpoint.connectNanos = System.nanoTime() - endpoint.startNanos;
+            endpoint.status = "closed";
+            endpoint.error = String.valueOf(e.getMessage());
+        }
+        key.cancel();
+        closeQuietly(channel);
+        return true;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Сокет уже не нужен
+        }
+    }
+}
@@ -1,9 +1,33 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class WebServer {
+    // Настройки исполнителя запросов (через -D параметры JVM)
+    // -Dexecutor=virtual|platform  -Dexecutor.threads=64  -Dmax.inflight=512
+    private static final String EXECUTOR_MODE = System.getProperty("executor", "virtual");
+    private static final int PLATFORM_THREADS = Integer.getInteger("executor.threads", 64);
+    private static final int MAX_IN_FLIGHT = Integer.getInteger("max.inflight", 512);
+
+    // Атрибут обмена: ответ будет отправлен позже, из callback (см. detach)
+    private static final String COMPLETION_ATTRIBUTE = "connectiontester.completion";
+
     private HttpServer server;
+    private ExecutorService executor;
     private final int port;
 
     public WebServer(int port) {
@@ -11,29 +35,72 @@ public class WebServer {
     }
 
     public void start() throws IOException {
-        server = HttpServer.create(new InetSocketAddress(port), 0);
+        // Конфигурация - до открытия порта: ошибка в history.dir или monitor.config
+        // не должна оставить занятый порт и живой пул обработчиков.
+        // История проб на диске: -Dhistory.dir=<каталог>. Открывается до мониторинга - его пробы тоже пишутся
+        ProbeHistory.openFromConfig(System.getProperty("history.dir"));
+
+        // Фоновый мониторинг целей из файла -Dmonitor.config
+        ProbeMonitor.startFromConfig(System.getProperty("monitor.config"));
+
+        try {
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+        } catch (IOException e) {
+            // Порт занят - мониторинг без сервера не нужен
+            ProbeMonitor.shutdown();
+            throw e;
+        }
+
+        // Каждый запрос выполняется в своём потоке, чтобы медленная проба не блокировала остальных
+        executor = createExecutor(EXECUTOR_MODE, PLATFORM_THREADS, "http-worker");
+
+        // Общий лимит одновременно выполняющихся запросов на все обработчики
+        InFlightLimiter limiter = new InFlightLimiter(maxInFlight());
 
         // Регистрируем обработчики
-        server.createContext("/", new ApiHandler.RootHandler());
-        server.createContext("/api/test/mongo", new ApiHandler.MongoTestHandler());
-        server.createContext("/api/test/postgres", new ApiHandler.PostgresTestHandler());
+        register("/", new ApiHandler.RootHandler(), limiter);
+        register("/api/test/mongo", new ApiHandler.MongoTestHandler(), limiter);
+        register("/api/test/postgres", new ApiHandler.PostgresTestHandler(), limiter);
+        register("/api/test/postgres/sizes", new ApiHandler.PostgresSizesHandler(), limiter);
+        register("/api/test/batch", new ApiHandler.BatchTestHandler(), limiter);
+        register("/api/monitor", new ApiHandler.MonitorHandler(), limiter);
+        register("/api/history", new ApiHandler.HistoryHandler(), limiter);
+        register("/api/scan", new ApiHandler.ScanHandler(), limiter);
+        register("/api/ping/postgres", new ApiHandler.PostgresPingHandler(), limiter);
+        register("/api/ping/mongo", new ApiHandler.MongoPingHandler(), limiter);
+        register("/api/bench/postgres", new ApiHandler.PostgresBenchHandler(), limiter);
+        register("/api/bench/mongo", new ApiHandler.MongoBenchHandler(), limiter);
+        // Без лимитера: метрики должны отдаваться и тогда, когда сервер перегружен
+        register("/metrics", new ApiHandler.MetricsHandler(), null);
 
-        server.setExecutor(null); // создаст дефолтный executor
+        server.setExecutor(executor);
         server.start();
 
         System.out.println("╔══════════════════════════════════════════════════╗");
         System.out.println("║       DATABASE CONNECTION TESTER SERVER         ║");
         System.out.println("╠══════════════════════════════════════════════════╣");
         System.out.println("║ 🚀 Server started on http://localhost:" + port + "       ║");
+        System.out.println("║ 🧵 Executor: " + describeExecutor() + ", max in-flight: " + maxInFlight());
         System.out.println("╠══════════════════════════════════════════════════╣");
         System.out.println("║ 📌 Available endpoints:                          ║");
         System.out.println("║    • Web UI: http://localhost:" + port + "/             ║");
         System.out.println("║    • MongoDB API: /api/test/mongo                ║");
         System.out.println("║    • PostgreSQL API: /api/test/postgres          ║");
+        System.out.println("║    • PostgreSQL sizes: /api/test/postgres/sizes  ║");
+        System.out.println("║    • Batch API: /api/test/batch                  ║");
+        System.out.println("║    • Monitoring: /api/monitor                    ║");
+        System.out.println("║    • Probe history: /api/history                 ║");
+        System.out.println("║    • TCP reachability scan: /api/scan            ║");
+        System.out.println("║    • PostgreSQL wire ping: /api/ping/postgres    ║");
+        System.out.println("║    • MongoDB wire ping: /api/ping/mongo          ║");
+        System.out.println("║    • PostgreSQL benchmark: /api/bench/postgres   ║");
+        System.out.println("║    • MongoDB benchmark: /api/bench/mongo         ║");
+        System.out.println("║    • Prometheus metrics: /metrics                ║");
         System.out.println("╠══════════════════════════════════════════════════╣");
         System.out.println("║ 📝 API Usage:                                    ║");
         System.out.println("║    GET /api/test/mongo?connection=<url>          ║");
         System.out.println("║    GET /api/test/postgres?connection=<url>       ║");
+        System.out.println("║    POST /api/test/batch {\"targets\":[...]}        ║");
         System.out.println("╠══════════════════════════════════════════════════╣");
         System.out.println("║ 🛑 Press Enter to stop the server                ║");
         System.out.println("╚══════════════════════════════════════════════════╝");
@@ -42,7 +109,135 @@ public class WebServer {
     public void stop() {
         if (server != null) {
             server.stop(0);
+            server = null;
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            ProbeMonitor.shutdown();
+            ProbeCache.clear();
+            MongoClientCache.clear();
+            PostgresSizeCollector.clear();
+            PostgresPool.closeAll();
             System.out.println("\n✅ Server stopped successfully");
         }
     }
-}
\ No newline at end of file
+
+    private void register(String path, HttpHandler handler, InFlightLimiter limiter) {
+        HttpContext context = server.createContext(path, handler);
+        // Метрики - первым фильтром, чтобы учитывались и отказы лимитера (503)
+        context.getFilters().add(new Metrics.RequestFilter(handler.getClass().getSimpleName()));
+        if (limiter != null) {
+            context.getFilters().add(limiter);
+        }
+    }
+
+    // Обработчик вернётся раньше, чем отправит ответ (асинхронная проба): фильтры откладывают
+    // освобождение лимита и учёт запроса до complete(exchange). Обработчик обязан его вызвать
+    static void detach(HttpExchange exchange) {
+        exchange.setAttribute(COMPLETION_ATTRIBUTE, new CompletableFuture<Void>());
+    }
+
+    static void complete(HttpExchange exchange) {
+        Object completion = exchange.getAttribute(COMPLETION_ATTRIBUTE);
+        if (completion instanceof CompletableFuture) {
+            ((CompletableFuture<?>) completion).complete(null);
+        }
+    }
+
+    // Исполнитель обработчиков сервера: на нём пишутся ответы асинхронных проб,
+    // а не на потоках продолжений драйвера
+    static Executor executorOf(HttpExchange exchange) {
+        Executor executor = exchange.getHttpContext().getServer().getExecutor();
+        return executor != null ? executor : CompletableFuture.delayedExecutor(0, TimeUnit.MILLISECONDS);
+    }
+
+    // Действие по окончании запроса: сразу, если обработчик уже ответил, иначе - по complete(exchange)
+    static void afterResponse(HttpExchange exchange, Runnable action) {
+        Object completion = exchange.getAttribute(COMPLETION_ATTRIBUTE);
+        if (completion instanceof CompletableFuture) {
+            ((CompletableFuture<?>) completion).whenComplete((ignored, error) -> action.run());
+        } else {
+            action.run();
+        }
+    }
+
+    // У пула платформенных потоков очередь без границ: запросы сверх числа потоков лимитер
+    // пропустил бы, а они просто ждали бы в очереди. Поэтому в этом режиме лимит - не больше пула
+    private int maxInFlight() {
+        return isVirtual(executor) ? MAX_IN_FLIGHT : Math.min(MAX_IN_FLIGHT, PLATFORM_THREADS);
+    }
+
+    private String describeExecutor() {
+        return isVirtual(executor) ? "virtual threads" : "platform pool (" + PLATFORM_THREADS + " threads)";
+    }
+
+    // Создаёт исполнитель: виртуальные потоки, если JVM их поддерживает (Java 21+),
+    // иначе ограниченный пул обычных потоков
+    static ExecutorService createExecutor(String mode, int threads, String namePrefix) {
+        if ("virtual".equalsIgnoreCase(mode)) {
+            try {
+                // Через reflection, чтобы проект продолжал собираться на JDK 17
+                return (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor")
+                        .invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("⚠️  Virtual threads are not available on this JVM, using platform pool");
+            }
+        } else if (!"platform".equalsIgnoreCase(mode)) {
+            System.err.println("⚠️  Unknown executor mode '" + mode + "', using platform pool");
+        }
+        return Executors.newFixedThreadPool(threads, namedDaemonFactory(namePrefix));
+    }
+
+    static ThreadFactory namedDaemonFactory(String namePrefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static boolean isVirtual(ExecutorService executor) {
+        return !(executor instanceof java.util.concurrent.ThreadPoolExecutor);
+    }
+
+    // Ограничивает число одновременно обрабатываемых запросов.
+    // Сверх лимита сразу отвечаем 503, а не копим очередь из зависших проб
+    static class InFlightLimiter extends Filter {
+        private final Semaphore permits;
+
+        InFlightLimiter(int maxInFlight) {
+            this.permits = new Semaphore(maxInFlight);
+        }
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            if (!permits.tryAcquire()) {
+                rejectBusy(exchange);
+                return;
+            }
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                WebServer.afterResponse(exchange, permits::release);
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Limits the number of in-flight requests";
+        }
+
+        private void rejectBusy(HttpExchange exchange) throws IOException {
+            byte[] response = "{\"success\":false,\"message\":\"Server is busy, too many requests in flight\",\"data\":{}}"
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            exchange.sendResponseHeaders(503, response.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response);
+            }
+        }
+    }
+}
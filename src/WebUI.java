@@ -188,6 +188,11 @@ public class WebUI {
                                    style="margin-top: 10px;">
                             <div class="example">Valid JSON commands: {"ping": 1}, {"hello": 1}, {"listDatabases": 1}, {"listCollections": 1}, {"serverStatus": 1}</div>
                             
+                            <label class="example" style="display: block;">
+                                <input type="checkbox" id="mongoTopology" style="width: auto; margin: 0 5px 0 0;">
+                                Probe every replica set member directly (RTT, state, replication lag)
+                            </label>
+                            
                             <div class="button-group">
                                 <button class="btn-mongo" onclick="testMongo()">
                                     🔍 Test MongoDB
@@ -212,6 +217,11 @@ public class WebUI {
                             </div>
                             <div class="example">Оставьте поля пустыми если используете полный URL с credentials</div>
                             
+                            <label class="example" style="display: block;">
+                                <input type="checkbox" id="postgresPooled" style="width: auto; margin: 0 5px 0 0;">
+                                Use pooled connection (measure query cost without connect)
+                            </label>
+                            
                             <div class="button-group">
                                 <button class="btn-postgres" onclick="testPostgres()">
                                     🔍 Test PostgreSQL
@@ -240,6 +250,9 @@ public class WebUI {
                         if (command) {
                             url += '&command=' + encodeURIComponent(command);
                         }
+                        if (document.getElementById('mongoTopology').checked) {
+                            url += '&topology=members';
+                        }
                         
                         await testConnection('mongo', url, true);
                     }
@@ -256,6 +269,9 @@ public class WebUI {
                         if (pass) {
                             url += '&secret=' + encodeURIComponent(pass);
                         }
+                        if (document.getElementById('postgresPooled').checked) {
+                            url += '&connect=pooled';
+                        }
                         
                         await testConnection('postgres', url, true);
                     }
@@ -275,8 +291,37 @@ public class WebUI {
                                 fetchUrl = '/api/test/' + type + '?connection=' + encodeURIComponent(urlOrConnection);
                             }
                             
-                            const response = await fetch(fetchUrl);
-                            const data = await response.json();
+                            // Шаги пробы приходят NDJSON-строками по мере выполнения
+                            const response = await fetch(fetchUrl + '&stream=ndjson');
+                            const reader = response.body.getReader();
+                            const decoder = new TextDecoder();
+                            const steps = [];
+                            let buffer = '';
+                            let data = null;
+                            
+                            while (true) {
+                                const chunk = await reader.read();
+                                if (chunk.done) break;
+                                buffer += decoder.decode(chunk.value, { stream: true });
+                                let newline;
+                                while ((newline = buffer.indexOf('\\n')) >= 0) {
+                                    const line = buffer.slice(0, newline).trim();
+                                    buffer = buffer.slice(newline + 1);
+                                    if (!line) continue;
+                                    const event = JSON.parse(line);
+                                    if (event.event === 'step') {
+                                        steps.push(event);
+                                        resultDiv.innerHTML = '<span class="status-icon">⏳</span>Testing ' + type.toUpperCase() + ' connection...' +
+                                                            steps.map(s => '<pre>' + s.step + ' (' + s.stepMs + ' ms): ' +
+                                                                JSON.stringify(s.data, null, 2) + '</pre>').join('');
+                                    } else if (event.event === 'result') {
+                                        data = event;
+                                    }
+                                }
+                            }
+                            if (!data) {
+                                throw new Error('Stream ended without a result');
+                            }
                             
                             if (data.success) {
                                 resultDiv.className = 'success';
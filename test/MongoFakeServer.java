@@ -0,0 +1,340 @@
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.Binary;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+// Поддельный сервер MongoDB для MongoWireProbeTest: ровно та часть OP_MSG, которую проходит
+// MongoWireProbe - hello (или isMaster), saslStart и saslContinue для SCRAM-SHA-256 и SCRAM-SHA-1.
+// Сторона сервера для SCRAM написана отдельно от ScramClient, поэтому это настоящая сверка
+public class MongoFakeServer implements Closeable {
+    private static final int OP_MSG = 2013;
+    private static final int ITERATIONS = 4096;
+    private static final int AUTHENTICATION_FAILED = 18;
+    private static final int COMMAND_NOT_FOUND = 59;
+    private static final DocumentCodec CODEC = new DocumentCodec();
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // MODERN - сервер 4.4+: hello, оба механизма в saslSupportedMechs, skipEmptyExchange.
+    // SHA1 - то же, но пользователь создан только с SCRAM-SHA-1.
+    // LEGACY - сервер 3.6: hello неизвестен (только isMaster), saslSupportedMechs нет,
+    // skipEmptyExchange не понимает и ждёт пустой третий шаг SASL
+    public enum Mode { MODERN, SHA1, LEGACY }
+
+    private final ServerSocket server;
+    private final Mode mode;
+    private final String user;
+    private final String password;
+
+    // Свободный порт на loopback; единственный пользователь user с паролем password
+    public MongoFakeServer(Mode mode, String user, String password) throws IOException {
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.mode = mode;
+        this.user = user;
+        this.password = password;
+        Thread acceptor = new Thread(this::acceptLoop, "mongo-fake-" + mode.name().toLowerCase());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try (Socket socket = server.accept()) {
+                new Connection(new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+                        socket.getOutputStream()).serve();
+            } catch (IOException | RuntimeException e) {
+                // Клиент закрыл соединение или прислал не то - сервер продолжает принимать следующие
+            }
+        }
+    }
+
+    // Одно соединение: команды по очереди, пока клиент его не закроет
+    private class Connection {
+        private final DataInputStream in;
+        private final OutputStream out;
+        private Scram scram;
+
+        Connection(DataInputStream in, OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        void serve() throws IOException {
+            while (true) {
+                byte[] header = new byte[16];
+                try {
+                    in.readFully(header);
+                } catch (EOFException e) {
+                    return;
+                }
+                ByteBuffer fields = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+                int length = fields.getInt();
+                int requestId = fields.getInt();
+                fields.getInt();
+                if (fields.getInt() != OP_MSG) {
+                    throw new IOException("Only OP_MSG is supported");
+                }
+                byte[] body = new byte[length - 16];
+                in.readFully(body);
+                // Флаги (4 байта), секция kind 0 и документ команды
+                int documentLength = ByteBuffer.wrap(body, 5, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+                Document command = new RawBsonDocument(body, 5, documentLength).decode(CODEC);
+                reply(requestId, execute(command));
+            }
+        }
+
+        private Document execute(Document command) {
+            String name = command.keySet().iterator().next();
+            switch (name) {
+                case "hello":
+                    if (mode == Mode.LEGACY) {
+                        return error(COMMAND_NOT_FOUND, "CommandNotFound", "no such command: 'hello'");
+                    }
+                    return hello(command);
+                case "isMaster":
+                case "ismaster":
+                    return hello(command);
+                case "saslStart":
+                    return saslStart(command);
+                case "saslContinue":
+                    return saslContinue(command);
+                default:
+                    return error(COMMAND_NOT_FOUND, "CommandNotFound", "no such command: '" + name + "'");
+            }
+        }
+
+        private Document hello(Document command) {
+            Document reply = new Document(mode == Mode.LEGACY ? "ismaster" : "isWritablePrimary", true)
+                    .append("maxBsonObjectSize", 16 * 1024 * 1024)
+                    .append("minWireVersion", 0)
+                    .append("maxWireVersion", mode == Mode.LEGACY ? 6 : 17);
+            if (mode != Mode.LEGACY && user.equals(userOf(command.getString("saslSupportedMechs")))) {
+                reply.append("saslSupportedMechs", mode == Mode.SHA1
+                        ? Collections.singletonList(ScramClient.SHA_1)
+                        : Arrays.asList(ScramClient.SHA_1, ScramClient.MECHANISM));
+            }
+            return reply.append("ok", 1.0);
+        }
+
+        private Document saslStart(Document command) {
+            String mechanism = command.getString("mechanism");
+            List<String> allowed = mode == Mode.SHA1 || mode == Mode.LEGACY
+                    ? Collections.singletonList(ScramClient.SHA_1)
+                    : Arrays.asList(ScramClient.SHA_1, ScramClient.MECHANISM);
+            if (!allowed.contains(mechanism)) {
+                return error(2, "BadValue", "Unsupported mechanism " + mechanism);
+            }
+            Document options = command.get("options", Document.class);
+            boolean skipEmptyExchange = mode != Mode.LEGACY && options != null
+                    && Boolean.TRUE.equals(options.get("skipEmptyExchange"));
+            scram = new Scram(mechanism, skipEmptyExchange);
+            String serverFirst = scram.serverFirst(text(command));
+            if (serverFirst == null) {
+                return authenticationFailed();
+            }
+            return sasl(serverFirst, false);
+        }
+
+        private Document saslContinue(Document command) {
+            if (scram == null) {
+                return error(17, "ProtocolError", "No SASL session state found");
+            }
+            if (scram.verified) {
+                // Пустой третий шаг сервера без skipEmptyExchange
+                scram = null;
+                return sasl("", true);
+            }
+            String serverFinal = scram.serverFinal(text(command));
+            if (serverFinal == null) {
+                scram = null;
+                return authenticationFailed();
+            }
+            return sasl(serverFinal, scram.skipEmptyExchange);
+        }
+
+        private void reply(int responseTo, Document reply) throws IOException {
+            BasicOutputBuffer buffer = new BasicOutputBuffer();
+            buffer.writeInt32(0);
+            buffer.writeInt32(RANDOM.nextInt(Integer.MAX_VALUE));
+            buffer.writeInt32(responseTo);
+            buffer.writeInt32(OP_MSG);
+            buffer.writeInt32(0);
+            buffer.writeByte(0);
+            CODEC.encode(new BsonBinaryWriter(buffer), reply, EncoderContext.builder().build());
+            buffer.writeInt32(0, buffer.getPosition());
+            out.write(buffer.toByteArray());
+            out.flush();
+        }
+    }
+
+    // Серверная сторона одного обмена SCRAM (RFC 5802)
+    private class Scram {
+        final String mechanism;
+        final boolean skipEmptyExchange;
+        private final String hmacAlgorithm;
+        private final String digestAlgorithm;
+        private final int keyBits;
+        private String clientFirstBare;
+        private String serverFirst;
+        private byte[] saltedPassword;
+        boolean verified;
+
+        Scram(String mechanism, boolean skipEmptyExchange) {
+            this.mechanism = mechanism;
+            this.skipEmptyExchange = skipEmptyExchange;
+            boolean sha256 = mechanism.equals(ScramClient.MECHANISM);
+            hmacAlgorithm = sha256 ? "HmacSHA256" : "HmacSHA1";
+            digestAlgorithm = sha256 ? "SHA-256" : "SHA-1";
+            keyBits = sha256 ? 256 : 160;
+        }
+
+        // null - неизвестный пользователь
+        String serverFirst(String clientFirst) {
+            clientFirstBare = clientFirst.substring(clientFirst.indexOf(",,") + 2);
+            String name = attribute(clientFirstBare, "n").replace("=2C", ",").replace("=3D", "=");
+            if (!user.equals(name)) {
+                return null;
+            }
+            byte[] salt = new byte[16];
+            RANDOM.nextBytes(salt);
+            byte[] nonce = new byte[18];
+            RANDOM.nextBytes(nonce);
+            // Для SCRAM-SHA-1 MongoDB солит md5("user:mongo:password")
+            String secret = mechanism.equals(ScramClient.SHA_1)
+                    ? hex(digest("MD5", (user + ":mongo:" + password).getBytes(StandardCharsets.UTF_8)))
+                    : password;
+            saltedPassword = pbkdf2(secret, salt);
+            serverFirst = "r=" + attribute(clientFirstBare, "r") + Base64.getEncoder().encodeToString(nonce)
+                    + ",s=" + Base64.getEncoder().encodeToString(salt) + ",i=" + ITERATIONS;
+            return serverFirst;
+        }
+
+        // null - неверное доказательство (неверный пароль)
+        String serverFinal(String clientFinal) {
+            int proofAt = clientFinal.lastIndexOf(",p=");
+            if (proofAt < 0) {
+                return null;
+            }
+            String withoutProof = clientFinal.substring(0, proofAt);
+            byte[] proof = Base64.getDecoder().decode(clientFinal.substring(proofAt + 3));
+            String authMessage = clientFirstBare + "," + serverFirst + "," + withoutProof;
+            byte[] clientKey = hmac(saltedPassword, "Client Key");
+            byte[] clientSignature = hmac(digest(digestAlgorithm, clientKey), authMessage);
+            if (proof.length != clientKey.length) {
+                return null;
+            }
+            byte[] recovered = new byte[proof.length];
+            for (int i = 0; i < proof.length; i++) {
+                recovered[i] = (byte) (proof[i] ^ clientSignature[i]);
+            }
+            if (!MessageDigest.isEqual(recovered, clientKey)) {
+                return null;
+            }
+            verified = true;
+            return "v=" + Base64.getEncoder().encodeToString(hmac(hmac(saltedPassword, "Server Key"), authMessage));
+        }
+
+        private byte[] pbkdf2(String password, byte[] salt) {
+            try {
+                PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, ITERATIONS, keyBits);
+                return SecretKeyFactory.getInstance("PBKDF2With" + hmacAlgorithm).generateSecret(spec).getEncoded();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private byte[] hmac(byte[] key, String data) {
+            try {
+                Mac mac = Mac.getInstance(hmacAlgorithm);
+                mac.init(new SecretKeySpec(key, hmacAlgorithm));
+                return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static Document sasl(String payload, boolean done) {
+        return new Document("conversationId", 1)
+                .append("done", done)
+                .append("payload", new Binary(payload.getBytes(StandardCharsets.UTF_8)))
+                .append("ok", 1.0);
+    }
+
+    private static Document authenticationFailed() {
+        return error(AUTHENTICATION_FAILED, "AuthenticationFailed", "Authentication failed.");
+    }
+
+    private static Document error(int code, String codeName, String message) {
+        return new Document("ok", 0.0).append("errmsg", message).append("code", code).append("codeName", codeName);
+    }
+
+    private static String text(Document command) {
+        Binary payload = command.get("payload", Binary.class);
+        return payload != null ? new String(payload.getData(), StandardCharsets.UTF_8) : "";
+    }
+
+    // saslSupportedMechs: "<база>.<пользователь>"
+    private static String userOf(String namespace) {
+        return namespace != null && namespace.indexOf('.') >= 0 ? namespace.substring(namespace.indexOf('.') + 1) : null;
+    }
+
+    private static String attribute(String message, String name) {
+        for (String part : message.split(",")) {
+            if (part.startsWith(name + "=")) {
+                return part.substring(name.length() + 1);
+            }
+        }
+        return "";
+    }
+
+    private static byte[] digest(String algorithm, byte[] data) {
+        try {
+            return MessageDigest.getInstance(algorithm).digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
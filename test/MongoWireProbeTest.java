@@ -0,0 +1,66 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// MongoWireProbe против MongoFakeServer: современный сервер, пользователь только с SCRAM-SHA-1
+// и сервер 3.6 (isMaster вместо hello, без saslSupportedMechs, с пустым третьим шагом SASL)
+class MongoWireProbeTest {
+    private static final String USER = "probe";
+    private static final String PASSWORD = "test-only";
+    private static final String CREDENTIALS = USER + ":" + PASSWORD;
+
+    @Test
+    void withoutCredentials() throws IOException {
+        assertAuthenticated(MongoFakeServer.Mode.MODERN, null, null, "none");
+    }
+
+    @Test
+    void scramSha256ByDefault() throws IOException {
+        assertAuthenticated(MongoFakeServer.Mode.MODERN, CREDENTIALS, null, ScramClient.MECHANISM);
+    }
+
+    @Test
+    void explicitScramSha1() throws IOException {
+        assertAuthenticated(MongoFakeServer.Mode.MODERN, CREDENTIALS, "authMechanism=SCRAM-SHA-1", ScramClient.SHA_1);
+    }
+
+    @Test
+    void userWithSha1Only() throws IOException {
+        assertAuthenticated(MongoFakeServer.Mode.SHA1, CREDENTIALS, null, ScramClient.SHA_1);
+    }
+
+    @Test
+    void legacyServer() throws IOException {
+        assertAuthenticated(MongoFakeServer.Mode.LEGACY, CREDENTIALS, null, ScramClient.SHA_1);
+    }
+
+    @Test
+    void wrongPasswordIsRejected() throws IOException {
+        for (MongoFakeServer.Mode mode : new MongoFakeServer.Mode[]{
+                MongoFakeServer.Mode.MODERN, MongoFakeServer.Mode.LEGACY}) {
+            MongoService.TestResult result = ping(mode, USER + ":wrong", null);
+            assertFalse(result.success, mode.name());
+            assertTrue(result.message.contains("code 18"), result.message);
+        }
+    }
+
+    private static void assertAuthenticated(MongoFakeServer.Mode mode, String credentials, String options,
+                                            String authMethod) throws IOException {
+        MongoService.TestResult result = ping(mode, credentials, options);
+        assertTrue(result.success, mode + ": " + result.message);
+        assertEquals(authMethod, result.data.get("authMethod"));
+    }
+
+    private static MongoService.TestResult ping(MongoFakeServer.Mode mode, String credentials, String options)
+            throws IOException {
+        try (MongoFakeServer server = new MongoFakeServer(mode, USER, PASSWORD)) {
+            String uri = "mongodb://" + (credentials != null ? credentials + "@" : "") + "127.0.0.1:" + server.port()
+                    + "/admin" + (options != null ? "?" + options : "");
+            return MongoWireProbe.ping(uri, 5_000);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+// Поддельный сервер PostgreSQL для PgWireProbeTest: ровно та часть протокола 3.0, которую проходит
+// PgWireProbe - SSLRequest (отказ 'N'), StartupMessage, аутентификация, SELECT 1 и Terminate.
+// Сторона сервера для SCRAM написана отдельно от ScramClient, поэтому это настоящая сверка
+public class PgFakeServer implements Closeable {
+    private static final int SSL_REQUEST = 80877103;
+    private static final int ITERATIONS = 4096;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // ERROR - FATAL ErrorResponse сразу после StartupMessage, как на несуществующую базу
+    public enum Mode { TRUST, PASSWORD, MD5, SCRAM, ERROR }
+
+    private final ServerSocket server;
+    private final Mode mode;
+    private final String password;
+
+    // Свободный порт на loopback; пароль один для любого пользователя
+    public PgFakeServer(Mode mode, String password) throws IOException {
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.mode = mode;
+        this.password = password;
+        Thread acceptor = new Thread(this::acceptLoop, "pg-fake-" + mode.name().toLowerCase());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try (Socket socket = server.accept()) {
+                handle(new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+                        new DataOutputStream(socket.getOutputStream()));
+            } catch (IOException e) {
+                // Клиент оборвал соединение или сервер закрыт
+            }
+        }
+    }
+
+    private void handle(DataInputStream in, DataOutputStream out) throws IOException {
+        byte[] startup = readStartup(in);
+        if (readInt(startup, 0) == SSL_REQUEST) {
+            out.write('N');
+            out.flush();
+            startup = readStartup(in);
+        }
+        Map<String, String> parameters = new HashMap<>();
+        int pos = 4;
+        while (pos < startup.length && startup[pos] != 0) {
+            String name = cstringAt(startup, pos);
+            pos += name.getBytes(StandardCharsets.UTF_8).length + 1;
+            String value = cstringAt(startup, pos);
+            pos += value.getBytes(StandardCharsets.UTF_8).length + 1;
+            parameters.put(name, value);
+        }
+        String user = parameters.getOrDefault("user", "");
+
+        if (!authenticate(in, out, user)) {
+            return;
+        }
+        send(out, 'R', intBytes(0));
+        send(out, 'S', concat(cstring("server_version"), cstring("16.2 (fake)")));
+        send(out, 'S', concat(cstring("client_encoding"), cstring("UTF8")));
+        send(out, 'K', concat(intBytes(4242), intBytes(1)));
+        send(out, 'Z', new byte[]{'I'});
+        out.flush();
+
+        if (in.read() != 'Q') {
+            return;
+        }
+        readBody(in);
+        ByteArrayOutputStream row = new ByteArrayOutputStream();
+        row.write(0);
+        row.write(1);
+        row.write(intBytes(1), 0, 4);
+        row.write('1');
+        send(out, 'D', row.toByteArray());
+        send(out, 'C', cstring("SELECT 1"));
+        send(out, 'Z', new byte[]{'I'});
+        out.flush();
+        // Terminate
+        if (in.read() == 'X') {
+            readBody(in);
+        }
+    }
+
+    // false - ошибка уже отправлена клиенту
+    private boolean authenticate(DataInputStream in, DataOutputStream out, String user) throws IOException {
+        switch (mode) {
+            case TRUST:
+                return true;
+            case ERROR:
+                return fail(out, "3D000", "database \"missing\" does not exist");
+            case PASSWORD: {
+                send(out, 'R', intBytes(3));
+                out.flush();
+                return password.equals(readPassword(in))
+                        || fail(out, "28P01", "password authentication failed for user \"" + user + "\"");
+            }
+            case MD5: {
+                byte[] salt = new byte[4];
+                RANDOM.nextBytes(salt);
+                send(out, 'R', concat(intBytes(5), salt));
+                out.flush();
+                String inner = hex(md5(password.getBytes(StandardCharsets.UTF_8), user.getBytes(StandardCharsets.UTF_8)));
+                String expected = "md5" + hex(md5(inner.getBytes(StandardCharsets.US_ASCII), salt));
+                return expected.equals(readPassword(in))
+                        || fail(out, "28P01", "password authentication failed for user \"" + user + "\"");
+            }
+            case SCRAM:
+                return scram(in, out, user);
+            default:
+                throw new IllegalStateException("Unknown mode " + mode);
+        }
+    }
+
+    private boolean scram(DataInputStream in, DataOutputStream out, String user) throws IOException {
+        send(out, 'R', concat(intBytes(10), cstring(ScramClient.MECHANISM), new byte[]{0}));
+        out.flush();
+        // SASLInitialResponse: механизм, длина и client-first
+        byte[] initial = readMessage(in, 'p');
+        String mechanism = cstringAt(initial, 0);
+        int offset = mechanism.length() + 1;
+        int length = readInt(initial, offset);
+        String clientFirst = new String(initial, offset + 4, length, StandardCharsets.UTF_8);
+        String clientFirstBare = clientFirst.substring(clientFirst.indexOf(",,") + 2);
+        String clientNonce = attribute(clientFirstBare, "r");
+
+        byte[] salt = new byte[16];
+        RANDOM.nextBytes(salt);
+        byte[] serverNonce = new byte[12];
+        RANDOM.nextBytes(serverNonce);
+        String serverFirst = "r=" + clientNonce + Base64.getEncoder().encodeToString(serverNonce)
+                + ",s=" + Base64.getEncoder().encodeToString(salt) + ",i=" + ITERATIONS;
+        send(out, 'R', concat(intBytes(11), serverFirst.getBytes(StandardCharsets.UTF_8)));
+        out.flush();
+
+        String clientFinal = new String(readMessage(in, 'p'), StandardCharsets.UTF_8);
+        int proofAt = clientFinal.lastIndexOf(",p=");
+        String withoutProof = clientFinal.substring(0, proofAt);
+        byte[] proof = Base64.getDecoder().decode(clientFinal.substring(proofAt + 3));
+        String authMessage = clientFirstBare + "," + serverFirst + "," + withoutProof;
+
+        byte[] saltedPassword = pbkdf2(password, salt);
+        byte[] clientKey = hmac(saltedPassword, "Client Key");
+        byte[] clientSignature = hmac(sha256(clientKey), authMessage);
+        byte[] recovered = new byte[clientKey.length];
+        for (int i = 0; i < recovered.length && i < proof.length; i++) {
+            recovered[i] = (byte) (proof[i] ^ clientSignature[i]);
+        }
+        if (proof.length != clientKey.length || !MessageDigest.isEqual(recovered, clientKey)) {
+            return fail(out, "28P01", "password authentication failed for user \"" + user + "\"");
+        }
+        byte[] serverSignature = hmac(hmac(saltedPassword, "Server Key"), authMessage);
+        send(out, 'R', concat(intBytes(12),
+                ("v=" + Base64.getEncoder().encodeToString(serverSignature)).getBytes(StandardCharsets.UTF_8)));
+        return true;
+    }
+
+    private static boolean fail(DataOutputStream out, String sqlState, String text) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (String[] field : new String[][]{{"S", "FATAL"}, {"C", sqlState}, {"M", text}}) {
+            body.write(field[0].charAt(0));
+            byte[] value = cstring(field[1]);
+            body.write(value, 0, value.length);
+        }
+        body.write(0);
+        send(out, 'E', body.toByteArray());
+        out.flush();
+        return false;
+    }
+
+    private static String readPassword(DataInputStream in) throws IOException {
+        byte[] body = readMessage(in, 'p');
+        return cstringAt(body, 0);
+    }
+
+    private static byte[] readStartup(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        byte[] body = new byte[length - 4];
+        in.readFully(body);
+        return body;
+    }
+
+    private static byte[] readMessage(DataInputStream in, char expected) throws IOException {
+        int type = in.read();
+        if (type != expected) {
+            throw new IOException("Expected message '" + expected + "', got " + type);
+        }
+        return readBody(in);
+    }
+
+    private static byte[] readBody(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        byte[] body = new byte[length - 4];
+        in.readFully(body);
+        return body;
+    }
+
+    private static void send(DataOutputStream out, char type, byte[] body) throws IOException {
+        out.write(type);
+        out.writeInt(body.length + 4);
+        out.write(body);
+    }
+
+    private static String attribute(String message, String name) {
+        for (String part : message.split(",")) {
+            if (part.startsWith(name + "=")) {
+                return part.substring(name.length() + 1);
+            }
+        }
+        throw new IllegalStateException("No " + name + "= in " + message);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    private static String cstringAt(byte[] bytes, int offset) {
+        int end = offset;
+        while (end < bytes.length && bytes[end] != 0) end++;
+        return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] cstring(String value) {
+        return concat(value.getBytes(StandardCharsets.UTF_8), new byte[]{0});
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] md5(byte[] first, byte[] second) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(first);
+            md5.update(second);
+            return md5.digest();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, ITERATIONS, 256);
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// PgWireProbe против PgFakeServer во всех режимах аутентификации
+class PgWireProbeTest {
+    private static final String USER = "probe";
+    private static final String PASSWORD = "test-only";
+
+    @Test
+    void trust() throws IOException {
+        assertAuthenticated(PgFakeServer.Mode.TRUST, null, "trust");
+    }
+
+    @Test
+    void cleartextPassword() throws IOException {
+        assertAuthenticated(PgFakeServer.Mode.PASSWORD, PASSWORD, "password");
+    }
+
+    @Test
+    void md5() throws IOException {
+        assertAuthenticated(PgFakeServer.Mode.MD5, PASSWORD, "md5");
+    }
+
+    @Test
+    void scram() throws IOException {
+        assertAuthenticated(PgFakeServer.Mode.SCRAM, PASSWORD, ScramClient.MECHANISM);
+    }
+
+    @Test
+    void wrongPasswordIsRejected() throws IOException {
+        for (PgFakeServer.Mode mode : new PgFakeServer.Mode[]{
+                PgFakeServer.Mode.PASSWORD, PgFakeServer.Mode.MD5, PgFakeServer.Mode.SCRAM}) {
+            assertFailed(mode, "wrong", "28P01");
+        }
+    }
+
+    @Test
+    void errorAfterStartup() throws IOException {
+        assertFailed(PgFakeServer.Mode.ERROR, PASSWORD, "3D000");
+    }
+
+    private static void assertAuthenticated(PgFakeServer.Mode mode, String password, String authMethod)
+            throws IOException {
+        PostgresService.TestResult result = ping(mode, password);
+        assertTrue(result.success, mode + ": " + result.message);
+        assertEquals(authMethod, result.data.get("authMethod"));
+    }
+
+    private static void assertFailed(PgFakeServer.Mode mode, String password, String sqlState) throws IOException {
+        PostgresService.TestResult result = ping(mode, password);
+        assertFalse(result.success, mode + " password=" + password);
+        assertTrue(result.message.contains(sqlState), result.message);
+    }
+
+    private static PostgresService.TestResult ping(PgFakeServer.Mode mode, String password) throws IOException {
+        try (PgFakeServer server = new PgFakeServer(mode, PASSWORD)) {
+            String url = "jdbc:postgresql://127.0.0.1:" + server.port() + "/postgres?user=" + USER
+                    + (password != null ? "&password=" + password : "");
+            return PgWireProbe.ping(url, 5_000);
+        }
+    }
+}
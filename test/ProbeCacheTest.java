@@ -0,0 +1,73 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProbeCacheTest {
+
+    // Запрос с коротким сроком не ждёт чужую долгую пробу дольше своего срока,
+    // а запустивший её получает настоящий результат
+    @Test
+    void waiterGetsItsOwnTimeout() throws Exception {
+        String key = ProbeCache.keyOf("test", "waiterGetsItsOwnTimeout");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<ProbeCache.Result<String>> owner = CompletableFuture.supplyAsync(() -> {
+            try (Deadline deadline = Deadline.after(10_000)) {
+                return ProbeCache.get(key, false, deadline, () -> {
+                    started.countDown();
+                    await(release);
+                    return "probed";
+                }, () -> "owner timed out");
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        long start = System.nanoTime();
+        ProbeCache.Result<String> waiter;
+        try (Deadline deadline = Deadline.after(200)) {
+            waiter = ProbeCache.get(key, false, deadline, () -> "second probe", () -> "waiter timed out");
+        }
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertEquals("waiter timed out", waiter.value);
+        assertTrue(waiter.shared);
+        assertTrue(waitedMs < 2_000, "waited " + waitedMs + " ms");
+
+        release.countDown();
+        ProbeCache.Result<String> result = owner.get(5, TimeUnit.SECONDS);
+        assertEquals("probed", result.value);
+        assertFalse(result.shared);
+        ProbeCache.invalidate(key);
+    }
+
+    @Test
+    void asyncWaiterGetsItsOwnTimeout() throws Exception {
+        String key = ProbeCache.keyOf("test", "asyncWaiterGetsItsOwnTimeout");
+        CompletableFuture<String> slow = new CompletableFuture<>();
+        try (Deadline ownerDeadline = Deadline.after(10_000); Deadline waiterDeadline = Deadline.after(200)) {
+            CompletableFuture<ProbeCache.Result<String>> owner =
+                    ProbeCache.getAsync(key, false, ownerDeadline, () -> slow, () -> "owner timed out");
+            CompletableFuture<ProbeCache.Result<String>> waiter = ProbeCache.getAsync(key, false, waiterDeadline,
+                    () -> CompletableFuture.completedFuture("second probe"), () -> "waiter timed out");
+
+            assertEquals("waiter timed out", waiter.get(5, TimeUnit.SECONDS).value);
+            assertFalse(owner.isDone());
+            slow.complete("probed");
+            assertEquals("probed", owner.get(5, TimeUnit.SECONDS).value);
+        }
+        ProbeCache.invalidate(key);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
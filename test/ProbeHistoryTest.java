@@ -0,0 +1,53 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProbeHistoryTest {
+
+    // Номера целей после перезапуска берутся из targets.tsv, а не из порядка строк
+    @Test
+    void reloadKeepsTargetIds() throws IOException {
+        Path dir = Files.createTempDirectory("history");
+        Files.write(dir.resolve("targets.tsv"), List.of("3\tpostgres\tdb3:5432", "1\tpostgres\tdb1:5432"),
+                StandardCharsets.UTF_8);
+        ProbeHistory.openFromConfig(dir.toString());
+
+        ProbeHistory.record("postgres", "postgresql://db1:5432/app", true, 1_000_000, null);
+        ProbeHistory.record("postgres", "postgresql://db4:5432/app", true, 1_000_000, null);
+
+        assertEquals(List.of("3\tpostgres\tdb3:5432", "1\tpostgres\tdb1:5432", "4\tpostgres\tdb4:5432"),
+                Files.readAllLines(dir.resolve("targets.tsv"), StandardCharsets.UTF_8));
+        assertEquals(List.of("db1:5432", "db4:5432"), targetsOf(ProbeHistory.query("", 0, Long.MAX_VALUE, 10)));
+    }
+
+    // Табуляция и перевод строки в цели не ломают targets.tsv и переживают перезапуск
+    @Test
+    void controlCharactersAreEscaped() throws IOException {
+        Path dir = Files.createTempDirectory("history");
+        ProbeHistory.openFromConfig(dir.toString());
+        ProbeHistory.record("mongodb", "mongodb://a\tb\nc:27017", false, 1_000_000, null);
+
+        List<String> lines = Files.readAllLines(dir.resolve("targets.tsv"), StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertEquals(3, lines.get(0).split("\t").length, lines.get(0));
+
+        ProbeHistory.openFromConfig(dir.toString());
+        assertEquals(List.of("a\tb\nc:27017"), targetsOf(ProbeHistory.query("", 0, Long.MAX_VALUE, 10)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> targetsOf(Map<String, Object> result) {
+        assertTrue(result != null, "history is not enabled");
+        return ((List<Map<String, Object>>) result.get("records")).stream()
+                .map(record -> record.get("target"))
+                .toList();
+    }
+}
@@ -0,0 +1,43 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Примеры обмена из RFC 5802 (SCRAM-SHA-1) и RFC 7677 (SCRAM-SHA-256): пользователь user, пароль pencil
+class ScramClientTest {
+
+    @Test
+    void rfc5802Sha1() {
+        assertExchange(ScramClient.SHA_1, "fyko+d2lbbFgONRv9qkxdawL",
+                "r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j,s=QSXCR+Q6sek8bf92,i=4096",
+                "c=biws,r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j,p=v0X8v3Bz2T0CJGbJQyF0X+HI4Ts=",
+                "v=rmF9pqV8S7suAoZWja4dJRkFsKQ=");
+    }
+
+    @Test
+    void rfc7677Sha256() {
+        assertExchange(ScramClient.MECHANISM, "rOprNGfwEbeRWgbNEkqO",
+                "r=rOprNGfwEbeRWgbNEkqO%hvYDpWUa2RaTCAfuxFIlj)hNlF$k0,s=W22ZaJ0SNY7soEsUEjb6gQ==,i=4096",
+                "c=biws,r=rOprNGfwEbeRWgbNEkqO%hvYDpWUa2RaTCAfuxFIlj)hNlF$k0,"
+                        + "p=dHzbZapWIk4jUhN+Ute9ytag9zjfMHgsqmmiz7AndVQ=",
+                "v=6rriTRBi23WpRR/wtup+mMhUZUn/dB5nLTJRsjl95G4=");
+    }
+
+    @Test
+    void wrongServerSignatureIsRejected() {
+        ScramClient scram = new ScramClient(ScramClient.MECHANISM, "user", "pencil", "rOprNGfwEbeRWgbNEkqO");
+        scram.clientFirstMessage();
+        scram.clientFinalMessage(
+                "r=rOprNGfwEbeRWgbNEkqO%hvYDpWUa2RaTCAfuxFIlj)hNlF$k0,s=W22ZaJ0SNY7soEsUEjb6gQ==,i=4096");
+        assertThrows(IllegalStateException.class,
+                () -> scram.verifyServerFinal("v=rmF9pqV8S7suAoZWja4dJRkFsKQ="));
+    }
+
+    private static void assertExchange(String mechanism, String clientNonce, String serverFirst,
+                                       String clientFinal, String serverFinal) {
+        ScramClient scram = new ScramClient(mechanism, "user", "pencil", clientNonce);
+        assertEquals("n,,n=user,r=" + clientNonce, scram.clientFirstMessage());
+        assertEquals(clientFinal, scram.clientFinalMessage(serverFirst));
+        scram.verifyServerFinal(serverFinal);
+    }
+}